@@ -0,0 +1,26 @@
+package sir.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this module with the GC profiler, so allocation
+ * rates are reported next to latencies. Usual JMH command line options can be
+ * given, e.g. a regular expression selecting benchmarks or {@code -p} to
+ * change corpus sizes.
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions command_line = new CommandLineOptions(args);
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(command_line);
+		if (command_line.getIncludes().isEmpty())
+			options.include("sir\\.bench\\..*Benchmark");
+		options.addProfiler(GCProfiler.class);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,178 @@
+package sir.bench;
+
+import java.util.Random;
+
+/**
+ * Generator of synthetic Sir sources for the benchmarks.
+ * <p>
+ * A corpus mixes global variables (plain, static and extern), routines
+ * (plain, static and extern) whose bodies nest var, if, while, return,
+ * expression and label statements, long string literals and both kinds of
+ * comments. Sizes are configurable, and the same
+ * seed always generates the same text.
+ */
+public class Corpus {
+	private static final String[] operators = {
+			"+", "-", "*", "/", "%", "<<", ">>", "<", "<=", ">", ">=", "==", "!=", "&", "^", "|", "&&", "||"
+	};
+
+	private final Random random;
+	private final StringBuilder out;
+
+	private final int expression_depth;
+	private final int string_length;
+	private final int comment_length;
+
+	private int labels;
+
+	public Corpus(int expression_depth, int string_length, int comment_length, long seed) {
+		this.random = new Random(seed);
+		this.out = new StringBuilder();
+		this.expression_depth = expression_depth;
+		this.string_length = string_length;
+		this.comment_length = comment_length;
+	}
+
+	/**
+	 * Source declaring {@code globals} global variables and {@code routines}
+	 * routines, interleaved.
+	 */
+	public String generate(int globals, int routines) {
+		out.setLength(0);
+		int declarations = globals + routines;
+		for (int i = 0; i < declarations; i++) {
+			if (random.nextInt(4) == 0) comment();
+			if (random.nextInt(declarations) < globals && globals-- > 0) global(i);
+			else if (routines-- > 0) routine(i);
+			else global(i);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Fully parenthesized infix expression nested {@code depth} levels deep,
+	 * every token separated by a blank.
+	 */
+	public String expression(int depth) {
+		out.setLength(0);
+		infix(depth);
+		return out.toString();
+	}
+
+	private void global(int n) {
+		switch (random.nextInt(3)) {
+			case 0:
+				out.append("var g").append(n).append(" = ");
+				initializer();
+				out.append(", h").append(n).append(";\n");
+				break;
+			case 1:
+				out.append("static var s").append(n).append(" = \"");
+				for (int i = 0; i < string_length; i++)
+					out.append((char) ('a' + random.nextInt(26)));
+				out.append("\\n\";\n");
+				break;
+			default:
+				out.append("extern var e").append(n).append(", f").append(n).append(";\n");
+		}
+	}
+
+	private void initializer() {
+		if (expression_depth == 0) out.append(random.nextInt(1000));
+		else infix(expression_depth);
+	}
+
+	private void routine(int n) {
+		switch (random.nextInt(3)) {
+			case 0:
+				out.append("extern routine x").append(n).append("(a, b);\n");
+				return;
+			case 1:
+				out.append("static ");
+				break;
+		}
+		out.append("routine r").append(n).append("(a, b, c) {\n");
+		labels = 0;
+		for (int i = random.nextInt(8); i >= 0; i--)
+			statement(1);
+		out.append("}\n\n");
+	}
+
+	// Statement indented level tabs, blocks nest at most three levels deep
+	private void statement(int level) {
+		for (int i = 0; i < level; i++)
+			out.append('\t');
+		switch (random.nextInt(level < 3 ? 7 : 5)) {
+			case 0:
+				out.append("l").append(labels++).append(":\n");
+				break;
+			case 1:
+				out.append("var v").append(level).append(" = ");
+				infix(expression_depth);
+				out.append(";\n");
+				break;
+			case 2:
+				out.append("return ");
+				infix(expression_depth);
+				out.append(";\n");
+				break;
+			case 3:
+				out.append((char) ('a' + random.nextInt(3))).append(random.nextBoolean() ? " = " : " += ");
+				infix(expression_depth);
+				out.append(";\n");
+				break;
+			case 4:
+				out.append(";\n");
+				break;
+			case 5:
+				out.append("if (");
+				infix(expression_depth);
+				out.append(") ");
+				block(level);
+				if (random.nextBoolean()) {
+					out.append(" else ");
+					block(level);
+				}
+				out.append('\n');
+				break;
+			default:
+				out.append("while (");
+				infix(expression_depth);
+				out.append(") ");
+				block(level);
+				out.append('\n');
+		}
+	}
+
+	private void block(int level) {
+		out.append("{\n");
+		for (int i = random.nextInt(3); i >= 0; i--)
+			statement(level + 1);
+		for (int i = 0; i < level; i++)
+			out.append('\t');
+		out.append('}');
+	}
+
+	private void comment() {
+		boolean inline = random.nextBoolean();
+		out.append(inline ? "// " : "/* ");
+		for (int i = 0; i < comment_length; i++) {
+			out.append(i % 8 == 7 ? ' ' : (char) ('a' + random.nextInt(26)));
+			if (!inline && i % 64 == 63) out.append('\n');
+		}
+		out.append(inline ? "\n" : " */\n");
+	}
+
+	private void infix(int depth) {
+		if (depth == 0) {
+			if (random.nextBoolean()) out.append(random.nextInt(100));
+			else out.append((char) ('a' + random.nextInt(26)));
+			return;
+		}
+		out.append("( ");
+		infix(depth - 1);
+		out.append(' ').append(operators[random.nextInt(operators.length)]).append(' ');
+		infix(random.nextInt(depth));
+		out.append(" )");
+	}
+}
@@ -0,0 +1,56 @@
+package sir.bench;
+
+import org.openjdk.jmh.annotations.*;
+import sir.compiler.Lexer;
+import sir.compiler.Parser;
+import sir.compiler.StringSource;
+import sir.compiler.TokenStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Generated source shared by the benchmarks, in memory, in a file and lexed.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+	@Param({"100", "2000"})
+	public int declarations;
+
+	@Param({"0", "4"})
+	public int expression_depth;
+
+	@Param({"32"})
+	public int string_length;
+
+	@Param({"80"})
+	public int comment_length;
+
+	String text;
+	File file;
+	TokenStream tokens;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		Corpus corpus = new Corpus(expression_depth, string_length, comment_length, 42);
+		text = corpus.generate(declarations / 2, declarations - declarations / 2);
+
+		file = File.createTempFile("corpus", ".sir");
+		file.deleteOnExit();
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+
+		Lexer lexer = new Lexer(source());
+		lexer.lex();
+		tokens = lexer.production();
+
+		Parser parser = new Parser(tokens);
+		if (!parser.check())
+			throw new IllegalStateException("Generated corpus does not parse: " + parser.diagnostics().get(0));
+	}
+
+	StringSource source() {
+		return new StringSource(file.getPath(), text);
+	}
+}
@@ -0,0 +1,48 @@
+package sir.bench;
+
+import org.openjdk.jmh.annotations.*;
+import sir.compiler.ExpressionCache;
+import sir.compiler.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of evaluating an expression again, looked up in the cache by its
+ * source or through its compiled handle, against parsing it every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExpressionBenchmark {
+	@Param({"(x * 3 + 7) % 11 < 5 && x != 2", "x > 0 ? x * y - 1.5 : -x"})
+	public String expression;
+
+	private ExpressionCache cache;
+	private ExpressionCache.Compiled compiled;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		cache = new ExpressionCache(256);
+		cache.define("x", Value.Integer(100000));
+		cache.define("y", Value.Float(0.25));
+		compiled = cache.compile(expression);
+	}
+
+	@Benchmark
+	public Value cached() {
+		return cache.evaluate(expression);
+	}
+
+	@Benchmark
+	public Value handle() {
+		return cache.evaluate(compiled);
+	}
+
+	@Benchmark
+	public ExpressionCache.Compiled compile() {
+		return new ExpressionCache(1).compile(expression);
+	}
+}
@@ -0,0 +1,52 @@
+package sir.bench;
+
+import org.openjdk.jmh.annotations.*;
+import sir.compiler.Ast;
+import sir.compiler.Lexer;
+import sir.compiler.Parser;
+import sir.compiler.StringSource;
+import sir.compiler.TokenStream;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of each front-end phase taken on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyBenchmark {
+	@State(Scope.Benchmark)
+	public static class Infix {
+		@Param({"2", "6", "10"})
+		public int depth;
+
+		String expression;
+
+		@Setup(Level.Trial)
+		public void generate() {
+			expression = new Corpus(depth, 0, 0, 42).expression(depth);
+		}
+	}
+
+	@Benchmark
+	public TokenStream lex(CorpusState corpus) {
+		Lexer lexer = new Lexer(corpus.source());
+		lexer.lex();
+		return lexer.production();
+	}
+
+	@Benchmark
+	public Ast parse(CorpusState corpus) {
+		Parser parser = new Parser(corpus.tokens);
+		parser.check();
+		return parser.ast();
+	}
+
+	@Benchmark
+	public int expression(Infix infix) {
+		return new Parser(new Lexer(new StringSource("<expression>", infix.expression)), null).parse_expression();
+	}
+}
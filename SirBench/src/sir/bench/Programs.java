@@ -0,0 +1,166 @@
+package sir.bench;
+
+import sir.compiler.*;
+import sir.vm.Compiler;
+import sir.vm.Optimizer;
+import sir.vm.Program;
+import sir.vm.ProgramWriter;
+import sir.vm.TreeInterpreter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sample Sir programs run by the virtual machine benchmarks, each returning
+ * a value from its {@code main} so that runs can be checked.
+ */
+public class Programs {
+	public static final Map<String, String> sources = new LinkedHashMap<>();
+
+	static {
+		sources.put("fib", ""
+				+ "var calls = 0;\n"
+				+ "routine fib(n) {\n"
+				+ "	calls += 1;\n"
+				+ "	if (n < 2) return n;\n"
+				+ "	return fib(n - 1) + fib(n - 2);\n"
+				+ "}\n"
+				+ "routine main() { return fib(24) + calls; }\n");
+		sources.put("loop", ""
+				+ "routine main() {\n"
+				+ "	var i = 0, sum = 0;\n"
+				+ "	while (i < 300000) {\n"
+				+ "		sum += i * i % 7;\n"
+				+ "		i++;\n"
+				+ "	}\n"
+				+ "	return sum;\n"
+				+ "}\n");
+		sources.put("collatz", ""
+				+ "routine steps(n) {\n"
+				+ "	var count = 0;\n"
+				+ "	while (n != 1) {\n"
+				+ "		if (n % 2 == 0) n = n / 2;\n"
+				+ "		else n = 3 * n + 1;\n"
+				+ "		count++;\n"
+				+ "	}\n"
+				+ "	return count;\n"
+				+ "}\n"
+				+ "routine main() {\n"
+				+ "	var i = 1, best = 0;\n"
+				+ "	while (i < 3000) {\n"
+				+ "		var s = steps(i);\n"
+				+ "		if (s > best) best = s;\n"
+				+ "		i += 1;\n"
+				+ "	}\n"
+				+ "	return best;\n"
+				+ "}\n");
+		sources.put("primes", ""
+				+ "static var found = 0;\n"
+				+ "routine prime(n) {\n"
+				+ "	if (n < 2) return false;\n"
+				+ "	var d = 2;\n"
+				+ "	while (d * d <= n) {\n"
+				+ "		if (n % d == 0) return false;\n"
+				+ "		d++;\n"
+				+ "	}\n"
+				+ "	return true;\n"
+				+ "}\n"
+				+ "routine main() {\n"
+				+ "	var n = 0;\n"
+				+ "	while (n < 20000) {\n"
+				+ "		if (prime(n)) found += 1;\n"
+				+ "		n++;\n"
+				+ "	}\n"
+				+ "	return found;\n"
+				+ "}\n");
+		sources.put("floats", ""
+				+ "routine f(x) { return 4.0 / (1.0 + x * x); }\n"
+				+ "routine main() {\n"
+				+ "	var steps = 100000, h = 1.0 / steps, sum = 0.0, i = 0;\n"
+				+ "	while (i < steps) {\n"
+				+ "		sum += f((i + 0.5) * h);\n"
+				+ "		i++;\n"
+				+ "	}\n"
+				+ "	return sum * h;\n"
+				+ "}\n");
+		sources.put("strings", ""
+				+ "routine main() {\n"
+				+ "	var i = 0, line = \"\", lines = 0;\n"
+				+ "	while (i < 50000) {\n"
+				+ "		line = line + (i % 10);\n"
+				+ "		if (i % 40 == 39) { lines++; line = \"\"; }\n"
+				+ "		i++;\n"
+				+ "	}\n"
+				+ "	return lines + \":\" + line;\n"
+				+ "}\n");
+		sources.put("machine", ""
+				+ "routine run(n) {\n"
+				+ "	var state = 0, count = 0, next;\n"
+				+ "	dispatch:\n"
+				+ "	if (count >= n) goto done;\n"
+				+ "	count++;\n"
+				+ "	next = state == 0 ? idle : state == 1 ? busy : state == 2 ? wait : stop;\n"
+				+ "	goto (next);\n"
+				+ "	idle: state = count % 3 == 0 ? 1 : 2; goto dispatch;\n"
+				+ "	busy: state = 2; goto dispatch;\n"
+				+ "	wait: state = count % 5 == 0 ? 3 : 0; goto dispatch;\n"
+				+ "	stop: state = 0; goto dispatch;\n"
+				+ "	done:\n"
+				+ "	return state * 1000000 + count;\n"
+				+ "}\n"
+				+ "routine main() { return run(100000); }\n");
+	}
+
+	/**
+	 * Compiles a program, optimized or not.
+	 */
+	public static Program compile(String source, boolean optimize) {
+		Front front = new Front(source);
+		ProgramWriter writer = new Compiler(front.ast, front.symbols, front.resolver, front.diagnostics).compile();
+		front.check();
+		if (optimize)
+			new Optimizer(writer).optimize();
+		try {
+			return Program.wrap(writer.to_buffer());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Tree interpreter running a program.
+	 */
+	public static TreeInterpreter interpreter(String source) {
+		Front front = new Front(source);
+		TreeInterpreter interpreter = new TreeInterpreter(front.ast, front.symbols, front.resolver, front.diagnostics);
+		front.check();
+		return interpreter;
+	}
+
+	// A program parsed, folded and resolved
+	private static final class Front {
+		final Ast ast;
+		final SymbolTable symbols;
+		final Resolver resolver;
+		final Diagnostics diagnostics;
+
+		Front(String source) {
+			Lexer lexer = new Lexer(new StringSource("<benchmark>", source));
+			Parser parser = new Parser(lexer, lexer.diagnostics(), null);
+			diagnostics = parser.diagnostics();
+			if (!parser.check())
+				throw new IllegalStateException("Program does not parse: " + diagnostics.get(0));
+			ast = parser.ast();
+			symbols = lexer.production().symbols();
+			new ConstantFolder(ast, symbols, diagnostics).visit(0);
+			resolver = new Resolver(ast, symbols, diagnostics);
+			resolver.visit(0);
+		}
+
+		void check() {
+			if (!diagnostics.is_empty())
+				throw new IllegalStateException("Program does not compile: " + diagnostics.get(0));
+		}
+	}
+}
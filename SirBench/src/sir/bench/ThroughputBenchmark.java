@@ -0,0 +1,108 @@
+package sir.bench;
+
+import org.openjdk.jmh.annotations.*;
+import sir.compiler.Ast;
+import sir.compiler.Lexer;
+import sir.compiler.MappedSource;
+import sir.compiler.Metrics;
+import sir.compiler.Parser;
+import sir.compiler.Token;
+import sir.compiler.TokenStream;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front-end throughput, reported per second in tokens and bytes next to the
+ * raw operation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThroughputBenchmark {
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long tokens;
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			tokens = 0;
+			bytes = 0;
+		}
+
+		void count(CorpusState corpus) {
+			tokens += corpus.tokens.size();
+			bytes += corpus.text.length();
+		}
+	}
+
+	@Benchmark
+	public TokenStream lex(CorpusState corpus, Counters counters) {
+		Lexer lexer = new Lexer(corpus.source());
+		lexer.lex();
+		counters.count(corpus);
+		return lexer.production();
+	}
+
+	@Benchmark
+	public TokenStream lex_mapped(CorpusState corpus, Counters counters) throws IOException {
+		Lexer lexer = new Lexer(new MappedSource(corpus.file.getPath()));
+		lexer.lex();
+		counters.count(corpus);
+		return lexer.production();
+	}
+
+	@Benchmark
+	public Token.Type pull(CorpusState corpus, Counters counters) {
+		Lexer lexer = new Lexer(corpus.source());
+		Token.Type type;
+		do type = lexer.nextToken();
+		while (type != Token.Type.EOF);
+		counters.count(corpus);
+		return type;
+	}
+
+	@Benchmark
+	public Ast parse(CorpusState corpus, Counters counters) {
+		counters.count(corpus);
+		Parser parser = new Parser(corpus.tokens);
+		parser.check();
+		return parser.ast();
+	}
+
+	@Benchmark
+	public Ast parse_parallel(CorpusState corpus, Counters counters) {
+		counters.count(corpus);
+		Parser parser = new Parser(corpus.tokens);
+		parser.check_parallel(ForkJoinPool.commonPool(), 4096);
+		return parser.ast();
+	}
+
+	@Benchmark
+	public Ast lex_and_parse(CorpusState corpus, Counters counters) {
+		counters.count(corpus);
+		Lexer lexer = new Lexer(corpus.source());
+		Parser parser = new Parser(lexer, lexer.diagnostics(), null);
+		parser.check();
+		return parser.ast();
+	}
+
+	/**
+	 * Same as {@link #lex_and_parse}, with metrics enabled, to keep an eye
+	 * on what instrumentation costs.
+	 */
+	@Benchmark
+	public Ast lex_and_parse_metered(CorpusState corpus, Counters counters) {
+		counters.count(corpus);
+		Metrics metrics = new Metrics();
+		Lexer lexer = new Lexer(corpus.source(), metrics);
+		Parser parser = new Parser(lexer, lexer.diagnostics(), metrics);
+		parser.check();
+		return parser.ast();
+	}
+}
@@ -0,0 +1,58 @@
+package sir.bench;
+
+import org.openjdk.jmh.annotations.*;
+import sir.compiler.Token;
+import sir.compiler.Value;
+import sir.compiler.ValueStack;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of an arithmetic loop on boxed values against unboxed ones, run with
+ * {@code -prof gc} to see the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueBenchmark {
+	@Param({"INTEGER", "FLOAT"})
+	public String type;
+
+	private static final int N = 1000;
+
+	private Value step;
+	private ValueStack stack;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		step = type.equals("INTEGER") ? Value.Integer(3) : Value.Float(0.5);
+		stack = new ValueStack(4);
+	}
+
+	// sum = sum * step + i, N times
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Value boxed() {
+		Value sum = Value.Integer(0);
+		for (int i = 0; i < N; i++)
+			sum = Value.binary(Token.Type.PLUS, Value.binary(Token.Type.TIMES, sum, step), Value.Integer(i));
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public long unboxed() {
+		ValueStack stack = this.stack;
+		stack.set_int(0, 0);
+		stack.set(1, step);
+		for (int i = 0; i < N; i++) {
+			stack.set_int(2, i);
+			stack.binary(Token.Type.TIMES, 0, 0, 1);
+			stack.binary(Token.Type.PLUS, 0, 0, 2);
+		}
+		return stack.bits(0);
+	}
+}
@@ -0,0 +1,48 @@
+package sir.bench;
+
+import org.openjdk.jmh.annotations.*;
+import sir.compiler.Value;
+import sir.vm.Program;
+import sir.vm.TreeInterpreter;
+import sir.vm.VirtualMachine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run time of the sample {@link Programs} on the virtual machine: as
+ * compiled, once optimized, and optimized with hot routines compiled by the
+ * JIT; and on the tree interpreter. See {@link VmProfile} for the
+ * dispatches each takes on the virtual machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VmBenchmark {
+	@Param({"fib", "loop", "collatz", "primes", "floats", "strings", "machine"})
+	public String program;
+
+	@Param({"interpreter", "optimized", "jit", "tree"})
+	public String tier;
+
+	private VirtualMachine machine;
+	private TreeInterpreter interpreter;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if (tier.equals("tree")) {
+			interpreter = Programs.interpreter(Programs.sources.get(program));
+			return;
+		}
+		Program compiled = Programs.compile(Programs.sources.get(program), !tier.equals("interpreter"));
+		machine = new VirtualMachine(compiled);
+		machine.jit(tier.equals("jit"));
+	}
+
+	@Benchmark
+	public Value run() {
+		return interpreter != null ? interpreter.run() : machine.run();
+	}
+}
@@ -0,0 +1,58 @@
+package sir.bench;
+
+import sir.vm.Opcode;
+import sir.vm.VirtualMachine;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Counts the instructions the virtual machine interprets, its JIT off, to
+ * run each of the sample {@link Programs}, as compiled and once optimized,
+ * then lists the pairs of successive opcodes dispatched most over all
+ * programs: the candidates for superinstructions.
+ */
+public class VmProfile {
+	private static final int PAIRS = 16;
+
+	public static void main(String[] args) {
+		long[] plain = new long[Opcode.COUNT * Opcode.COUNT];
+		long[] optimized = new long[Opcode.COUNT * Opcode.COUNT];
+		System.out.printf("%-10s %12s %12s %8s%n", "program", "dispatches", "optimized", "saved");
+		for (Map.Entry<String, String> entry : Programs.sources.entrySet()) {
+			long before = profile(entry.getValue(), false, plain);
+			long after = profile(entry.getValue(), true, optimized);
+			System.out.printf("%-10s %12d %12d %7.1f%%%n",
+					entry.getKey(), before, after, 100.0 * (before - after) / before);
+		}
+		System.out.println();
+		print("Most dispatched pairs, as compiled", plain);
+		print("Most dispatched pairs, optimized", optimized);
+	}
+
+	private static long profile(String source, boolean optimize, long[] pairs) {
+		VirtualMachine machine = new VirtualMachine(Programs.compile(source, optimize));
+		machine.jit(false);
+		machine.profile(true);
+		machine.run();
+		for (int first = 0; first < Opcode.COUNT; first++)
+			for (int second = 0; second < Opcode.COUNT; second++)
+				pairs[first * Opcode.COUNT + second] += machine.pair_count(first, second);
+		return machine.dispatches();
+	}
+
+	private static void print(String title, long[] pairs) {
+		long total = 0;
+		Integer[] order = new Integer[pairs.length];
+		for (int i = 0; i < pairs.length; i++) {
+			order[i] = i;
+			total += pairs[i];
+		}
+		Arrays.sort(order, (x, y) -> Long.compare(pairs[y], pairs[x]));
+		System.out.println(title);
+		for (int i = 0; i < PAIRS; i++)
+			System.out.printf("  %-14s %-14s %10d %5.1f%%%n", Opcode.name(order[i] / Opcode.COUNT),
+					Opcode.name(order[i] % Opcode.COUNT), pairs[order[i]], 100.0 * pairs[order[i]] / total);
+		System.out.println();
+	}
+}
@@ -0,0 +1,117 @@
+package sir.compiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * Errors reported by the front end, collected instead of thrown so that a
+ * single pass reports all of them.
+ * <p>
+ * Messages are kept as a format and its arguments, and only rendered when
+ * read: reporting an error costs an allocation, not a string. {@link Token}
+ * arguments render as their text.
+ */
+public class Diagnostics {
+	public static class Diagnostic {
+		private final int line, offset;
+		private final String format;
+		private final Object[] args;
+
+		private Diagnostic(int line, int offset, String format, Object[] args) {
+			this.line = line;
+			this.offset = offset;
+			this.format = format;
+			this.args = args;
+		}
+
+		public int line_of() {
+			return line;
+		}
+
+		/**
+		 * Offset of the error in the source, -1 if unknown.
+		 */
+		public int offset_of() {
+			return offset;
+		}
+
+		public String message() {
+			Object[] rendered = args.clone();
+			for (int i = 0; i < rendered.length; i++)
+				if (rendered[i] instanceof Token)
+					rendered[i] = describe((Token) rendered[i]);
+			return String.format(format, rendered);
+		}
+
+		private static String describe(Token token) {
+			switch (token.type_of()) {
+				case EOF:       return "end of file";
+				case STRING:    return "string \"" + token.str_value() + "\"";
+				default:        return "'" + token.str_value() + "'";
+			}
+		}
+
+		public String toString() {
+			return "line " + line + ": " + message();
+		}
+	}
+
+	private final ArrayList<Diagnostic> entries;
+
+	public Diagnostics() {
+		this.entries = new ArrayList<>();
+	}
+
+	public void report(int line, String format, Object... args) {
+		entries.add(new Diagnostic(line, -1, format, args));
+	}
+
+	public void report_at(int offset, int line, String format, Object... args) {
+		entries.add(new Diagnostic(line, offset, format, args));
+	}
+
+	public void report(Diagnostic diagnostic) {
+		entries.add(diagnostic);
+	}
+
+	/**
+	 * Appends the diagnostics of {@code other}, moving them down by
+	 * {@code line_shift} lines.
+	 */
+	public void merge(Diagnostics other, int line_shift) {
+		for (Diagnostic diagnostic : other.entries)
+			entries.add(line_shift == 0 ? diagnostic
+					: new Diagnostic(diagnostic.line + line_shift, diagnostic.offset, diagnostic.format, diagnostic.args));
+	}
+
+	/**
+	 * Orders the diagnostics by line, keeping the report order on a line.
+	 */
+	public void sort() {
+		entries.sort((a, b) -> Integer.compare(a.line, b.line));
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean is_empty() {
+		return entries.isEmpty();
+	}
+
+	public Diagnostic get(int i) {
+		return entries.get(i);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Prints every diagnostic as {@code path:line: message}.
+	 */
+	public void render(String path, PrintStream out) {
+		for (Diagnostic diagnostic : entries)
+			out.println(path + ":" + diagnostic.line + ": " + diagnostic.message());
+	}
+}
@@ -0,0 +1,77 @@
+package sir.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Editable {@link Source} kept in a gap buffer, so that successive edits
+ * around the same place only move the characters between two edit points.
+ */
+public class EditBuffer implements Source {
+	private final String path;
+	private char[] chars;
+	private int gap_start, gap_end;
+
+	public EditBuffer(String path, CharSequence text) {
+		this.path = path;
+		this.chars = new char[text.length() + 1024];
+		for (int i = 0; i < text.length(); i++)
+			chars[i] = text.charAt(i);
+		this.gap_start = text.length();
+		this.gap_end = chars.length;
+	}
+
+	public String path() {
+		return path;
+	}
+
+	public int length() {
+		return chars.length - (gap_end - gap_start);
+	}
+
+	public char char_at(int at) {
+		return at < gap_start ? chars[at] : chars[at + gap_end - gap_start];
+	}
+
+	public String substring(int start, int end) {
+		StringBuilder str = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+			str.append(char_at(i));
+		return str.toString();
+	}
+
+	/**
+	 * Replaces {@code removed} characters from {@code offset} by the
+	 * {@code inserted} text.
+	 */
+	public void replace(int offset, int removed, CharSequence inserted) {
+		move_gap(offset);
+		gap_end += removed;
+		if (gap_end - gap_start < inserted.length())
+			grow(inserted.length());
+		for (int i = 0; i < inserted.length(); i++)
+			chars[gap_start++] = inserted.charAt(i);
+	}
+
+	private void move_gap(int offset) {
+		if (offset < gap_start) {
+			int count = gap_start - offset;
+			System.arraycopy(chars, offset, chars, gap_end - count, count);
+			gap_start -= count;
+			gap_end -= count;
+		} else if (offset > gap_start) {
+			int count = offset - gap_start;
+			System.arraycopy(chars, gap_end, chars, gap_start, count);
+			gap_start += count;
+			gap_end += count;
+		}
+	}
+
+	private void grow(int needed) {
+		int tail = chars.length - gap_end;
+		int capacity = Math.max(chars.length * 2, length() + needed + 1024);
+		char[] grown = Arrays.copyOf(chars, capacity);
+		System.arraycopy(chars, gap_end, grown, capacity - tail, tail);
+		chars = grown;
+		gap_end = capacity - tail;
+	}
+}
@@ -5,8 +5,9 @@ public class LexTest {
 	public static void main(String[] args) {
 		System.out.println(System.getProperty("user.dir"));
 
-		Lexer lexer = new Lexer("SirLex/samples/main.sir", true);
+		Lexer lexer = new Lexer("SirLex/samples/main.sir", new Metrics(System.out));
 		lexer.lex();
+		System.out.print(lexer.production());
 	}
 
 }
@@ -1,38 +1,83 @@
 package sir.compiler;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-
-public class Lexer {
-	final String[] keywords = new String[]{
-			"routine", "make", "let", "get", "register", "finalize",
-			"var", "undef", "goto", "if", "else", "do", "while", "for", "unless",
-			"return", "enum", "struct", "static", "extern"
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static sir.compiler.Token.Type.*;
+
+/**
+ * Either {@link #lex()} the whole source and hand the {@link #production()}
+ * over, or pull tokens from the lexer itself as a {@link TokenSource}: it then
+ * only lexes on demand and keeps a bounded window of tokens.
+ */
+public class Lexer implements TokenSource {
+	// Character classes of the 7-bit ASCII range, anything above is rejected
+	private static final byte WHITESPACE = 1, ID_START = 2, ID_PART = 4, DIGIT = 8, PUNCTUATION = 16, OPERATOR = 32;
+	private static final byte[] classes = new byte[128];
+	private static final Token.Type[] punctuation = new Token.Type[128];
+
+	// Exactly representable powers of ten, for the fast path of float literals
+	private static final double[] powers_of_ten = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
 	};
 
-	final String[] operators = new String[]{
-			"+", "-", "*", "/", "%", "!", "&&", "||", "^", "=", ">", "<", "++",
-			"--", "**", "+=", "-=", "*=", "/=", "&=", "|=", "^=", "~=", "<=",
-			">=", "!=", "==", ">>", "<<", "~", "|", "&", ">>=", "<<="
-	};
+	static {
+		for (char c : new char[]{'\n', '\t', '\r', ' '})
+			classes[c] |= WHITESPACE;
+		for (char c = 'a'; c <= 'z'; c++)
+			classes[c] |= ID_START | ID_PART;
+		for (char c = 'A'; c <= 'Z'; c++)
+			classes[c] |= ID_START | ID_PART;
+		for (char c = '0'; c <= '9'; c++)
+			classes[c] |= DIGIT | ID_PART;
+		classes['_'] |= ID_START | ID_PART;
+		for (char c : new char[]{'$', '#'})
+			classes[c] |= ID_START;
+		for (char c : new char[]{'+', '-', '*', '/', '%', '!', '&', '|', '^', '~', '=', '>', '<'})
+			classes[c] |= OPERATOR;
+
+		Token.Type[] types = {DOT, COMMA, L_BRACE, R_BRACE, COLON, QUESTION, L_PAREN, R_PAREN, L_BRACKET, R_BRACKET, SEMICOLON};
+		char[] chars = {'.', ',', '{', '}', ':', '?', '(', ')', '[', ']', ';'};
+		for (int i = 0; i < chars.length; i++) {
+			classes[chars[i]] |= PUNCTUATION;
+			punctuation[chars[i]] = types[i];
+		}
+	}
+
+	private Source source;
+	private int at, end, lineno;
 
-	private enum CommentMode {INLINE, MULTILINE}
+	private SymbolTable symbols;
+	private TokenStream tokens;     // null until lexing starts, see production()
+	private Diagnostics diagnostics;
 
-	private String input;
-	private int at, lineno;
+	// Set when a string or comment runs into the end of the lexed range
+	private boolean clipped;
 
-	private char curr, next;
-	private ArrayList<Token> tokens;
+	// Pull mode: current token in the window, dropped tokens are behind it,
+	// and the EOF token once lexed, -1 until then
+	private static final int WINDOW = 64;
+	private int current, eof = -1;
 
-	private final boolean verbose;
+	// Null when disabled
+	private final Metrics metrics;
 
-	public Lexer(String path, boolean verbose) {
-		this.verbose = verbose;
+	public Lexer(String path) {
+		this(path, null);
+	}
+
+	public Lexer(String path, Metrics metrics) {
+		this.metrics = metrics;
 		try {
-			this.tokens = new ArrayList<>();
-			this.input = getFileContent(path) + " ";
+			this.source = new MappedSource(path);
+			this.symbols = new SymbolTable();
+			this.diagnostics = new Diagnostics();
+			this.end = source.length();
 			this.lineno = 1;
 			this.at = 0;
 		} catch (IOException e) {
@@ -40,232 +85,405 @@ public class Lexer {
 		}
 	}
 
-	private boolean next() {
-		if (curr == '\n') lineno++;
+	public Lexer(Source source) {
+		this(source, new SymbolTable(), null);
+	}
 
-		if (at < input.length()) {
-			curr = next;
-			next = next_char();
-			return true;
-		}
-		return false;
+	public Lexer(Source source, Metrics metrics) {
+		this(source, new SymbolTable(), metrics);
 	}
 
-	private char next_char() {
-		if (at > input.length())
-			return '\0';
-		return input.charAt(at++);
+	public Lexer(Source source, SymbolTable symbols, Metrics metrics) {
+		this.metrics = metrics;
+		this.source = source;
+		this.symbols = symbols;
+		this.diagnostics = new Diagnostics();
+		this.end = source.length();
+		this.lineno = 1;
+		this.at = 0;
+	}
+
+	/**
+	 * Lexer resuming at offset {@code start} of the source, which must be a
+	 * token boundary, on line {@code line}.
+	 */
+	public Lexer(Source source, SymbolTable symbols, int start, int line, Metrics metrics) {
+		this.metrics = metrics;
+		this.source = source;
+		this.symbols = symbols;
+		this.tokens = new TokenStream(source, symbols, 64);
+		this.diagnostics = new Diagnostics();
+		this.end = source.length();
+		this.lineno = line;
+		this.at = start;
+	}
+
+	private Lexer(Source source, int start, int end) {
+		this.metrics = null;
+		this.source = source;
+		this.symbols = new SymbolTable();
+		this.tokens = new TokenStream(source, symbols, (end - start) / 6 + 16);
+		this.diagnostics = new Diagnostics();
+		this.end = end;
+		this.lineno = 1;
+		this.at = start;
 	}
 
 	public void lex() {
-		while (next())
+		long start = metrics != null ? metrics.start() : 0;
+		production();
+		lex_rest();
+		if (metrics != null) {
+			metrics.tokens(tokens.size());
+			metrics.phase("lex", start);
+		}
+	}
+
+	private void lex_rest() {
+		while (at < end)
 			process();
-		tokens.add(Token.EOF(lineno));
-		if (verbose)
-			System.out.println(tokens.toString().substring(1).replace("), ", ")\n").replace("]", ""));
+		tokens.add(EOF, end, end, lineno, SymbolTable.NONE);
 	}
 
-	public ArrayList<Token> production() {
-		return tokens;
+	/**
+	 * Lexes up to the next token only, returns false once the input is
+	 * exhausted. The EOF token is not produced in this mode.
+	 */
+	public boolean lex_token() {
+		int count = production().size();
+		while (at < end && tokens.size() == count)
+			process();
+		return tokens.size() > count;
 	}
 
-	private void process() {
-		if (verbose)
-			System.out.println(lineno + ": curr='" + repr(curr) + "' \tnext='" + repr(next) + "'");
+	/**
+	 * Same production as {@link #lex()}, lexing chunks of about
+	 * {@code chunk_size} characters in parallel on the pool.
+	 * <p>
+	 * The source is split right after newlines, which only strings and
+	 * multi-line comments can span. Each chunk is lexed with its own symbol
+	 * table as if it started outside of any string or comment, which holds as
+	 * long as the previous chunk ended cleanly. Chunks are joined in order,
+	 * renumbering lines and re-interning identifiers so that symbol ids are
+	 * the sequential ones. From the first chunk found ending inside a string
+	 * or comment, lexing falls back to the sequential loop.
+	 */
+	public void lex_parallel(ForkJoinPool pool, int chunk_size) {
+		int[] bounds = split(chunk_size);
+		if (bounds.length <= 2) {
+			lex();
+			return;
+		}
+		long start = metrics != null ? metrics.start() : 0;
+		production();
+
+		List<ForkJoinTask<Lexer>> chunks = new ArrayList<>();
+		for (int k = 0; k + 1 < bounds.length; k++) {
+			final Lexer chunk = new Lexer(source, bounds[k], bounds[k + 1]);
+			chunks.add(pool.submit(() -> {
+				while (chunk.at < chunk.end)
+					chunk.process();
+				return chunk;
+			}));
+		}
 
-		if ((curr + "" + next).equals("//"))        comment(CommentMode.INLINE);
-		else if ((curr + "" + next).equals("/*"))   comment(CommentMode.MULTILINE);
-		else if (isWhitespace(curr))                return;
-		else if (isIdStart(curr))                   identifier();
-		else if (isPunctuation(curr))               punctuation();
-		else if (curr == '"')                       string();
-		else if (isNumStart(curr))                  number();
-		else if (isOperator(curr + "" + next))      operator2();
-		else if (isOperator(curr + ""))             operator1();
-		else { /* TODO ERROR */ }
+		for (int k = 0; k < chunks.size(); k++) {
+			Lexer chunk = chunks.get(k).join();
+			if (chunk.clipped && k + 1 < chunks.size()) {
+				for (int rest = k + 1; rest < chunks.size(); rest++)
+					chunks.get(rest).cancel(false);
+				break;
+			}
+			append(chunk);
+		}
+		lex_rest();
+		if (metrics != null) {
+			metrics.tokens(tokens.size());
+			metrics.phase("lex", start);
+		}
 	}
 
-	private void number() {
-		boolean decimal = false;
-		String num = "" + curr;
-		while (isNumPart(next)) {
-			if (next == '.' && !decimal) decimal = true;
-			else if (next == '.') { /* TODO ERROR */ }
-			num += next;
-			next();
+	// Chunk boundaries, the first being the current position and the last the end
+	private int[] split(int chunk_size) {
+		int[] bounds = new int[(end - at) / Math.max(chunk_size, 1) + 2];
+		int count = 0;
+		bounds[count++] = at;
+		for (int i = at + chunk_size; i < end; i += chunk_size) {
+			while (i < end && source.char_at(i - 1) != '\n')
+				i++;
+			if (i < end && i > bounds[count - 1]) bounds[count++] = i;
 		}
-		tokens.add(Token.Number(num, lineno));
+		bounds[count++] = end;
+		return Arrays.copyOf(bounds, count);
 	}
 
-	private void operator1() {
-		tokens.add(Token.Operator("" + curr, lineno));
+	// Appends the tokens of a chunk lexed from the current position
+	private void append(Lexer chunk) {
+		TokenStream from = chunk.tokens;
+		SymbolTable local = from.symbols();
+		int[] ids = new int[local.size()];
+		for (int id = 0; id < ids.length; id++)
+			ids[id] = SymbolTable.is_keyword(id) ? id : symbols.intern(local.name(id));
+
+		tokens.append(from, lineno - 1, ids);
+		diagnostics.merge(chunk.diagnostics, lineno - 1);
+		lineno += chunk.lineno - 1;
+		at = chunk.at;
 	}
 
-	private void operator2() {
-		String op2 = "" + curr + next;
-		next();
-		if (isOperator(op2 + next)) {
-			tokens.add(Token.Operator(op2 + next, lineno));
-			next();
-		} else tokens.add(Token.Operator(op2, lineno));
+	public int line() {
+		return lineno;
 	}
 
-	private void string() {
-		boolean escape = false;
-		String str = "";
-		next();
-		while (curr != '"') {
-			if (curr == '\\') escape = !escape;
-
-			if (escape) {
-				switch (next) {
-					case 'n':
-						str += "\n";
-						break;
-					case 't':
-						str += "\t";
-						break;
-					case 'r':
-						str += "\r";
-						break;
-					case '0':
-						str += "\0";
-						break;
-					case 'b':
-						str += "\b";
-						break;
-					case '"':
-						str += "\"";
-						break;
-					default:
-						// TODO ERROR
-						break;
-				}
-				next();
-				escape = false;
-			} else str += curr;
-			next();
+	// Index of the token k after the current one, lexing up to it. The EOF
+	// token is produced once and returned over and over.
+	private int fill(int k) {
+		if (tokens == null) tokens = new TokenStream(source, symbols, WINDOW);
+		while (eof < 0 && current + k >= tokens.size()) {
+			if (!lex_token()) {
+				eof = tokens.size();
+				tokens.add(EOF, end, end, lineno, SymbolTable.NONE);
+			}
+			if (metrics != null)
+				metrics.tokens(1);
 		}
-		tokens.add(Token.String(str, lineno));
+		return eof < 0 ? current + k : Math.min(current + k, eof);
 	}
 
-	private void punctuation() {
-		tokens.add(Token.Punctuation(curr, lineno));
+	public Token.Type nextToken() {
+		current = fill(1);
+		if (current >= WINDOW - LOOKAHEAD) {
+			tokens.discard(current);
+			if (eof >= 0) eof -= current;
+			current = 0;
+		}
+		return type_of(0);
 	}
 
-	private void identifier() {
-		String identifier = "" + curr;
-		while (isIdPart(next)) {
-			identifier += next;
-			next();
-		}
+	public Token.Type type_of(int k) {
+		int i = fill(k);
+		return tokens.type_of(i);
+	}
 
-		if (isKeyword(identifier))
-			tokens.add(Token.Keyword(identifier, lineno));
-		else if (isReservedWord(identifier))
-			switch (identifier) {
-				case "null":
-					tokens.add(Token.Null(lineno));
-					break;
-				case "true":
-					tokens.add(Token.Bool("true", lineno));
-					break;
-				case "false":
-					tokens.add(Token.Bool("false", lineno));
-			}
-		else
-			tokens.add(Token.Identifier(identifier, lineno));
+	public int symbol_of(int k) {
+		int i = fill(k);
+		return tokens.symbol_of(i);
 	}
 
-	private void comment(final CommentMode mode) {
-		switch (mode) {
-			case INLINE:
-				while (curr != '\n') next();
-				break;
-			case MULTILINE:
-				while (!(curr + "" + next).equals("*/")) next();
-				break;
-		}
-		if (mode.equals(CommentMode.MULTILINE)) next();
+	public int line_of(int k) {
+		int i = fill(k);
+		return tokens.line_of(i);
 	}
 
-	private boolean isNumStart(final char c) {
-		return c >= '0' && c <= '9';
+	public String str_value(int k) {
+		int i = fill(k);
+		return tokens.str_value(i);
 	}
 
-	private boolean isNumPart(final char c) {
-		return c == '.' || isNumStart(c);
+	public long int_value(int k) {
+		int i = fill(k);
+		return tokens.int_value(i);
 	}
 
+	public double float_value(int k) {
+		int i = fill(k);
+		return tokens.float_value(i);
+	}
 
-	private boolean isIdStart(final char c) {
-		return c == '_' || c == '$' || c == '%' || c == '#' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	public Token token(int k) {
+		int i = fill(k);
+		return tokens.token(i);
+	}
+
+	/**
+	 * Tokens lexed so far, in a stream sized for the whole source.
+	 */
+	public TokenStream production() {
+		if (tokens == null) tokens = new TokenStream(source, symbols);
+		return tokens;
 	}
 
-	private boolean isIdPart(final char c) {
-		return c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	public Diagnostics diagnostics() {
+		return diagnostics;
 	}
 
-	private boolean isKeyword(final String sym) {
-		for (String keyword : keywords)
-			if (sym.equals(keyword)) return true;
-		return false;
+	private char peek(int offset) {
+		int i = at + offset;
+		return i < end ? source.char_at(i) : '\0';
 	}
 
-	private boolean isReservedWord(final String sym) {
-		for (String word : new String[]{"null", "true", "false"})
-			if (word.equals(sym)) return true;
-		return false;
+	private static boolean is(char c, int mask) {
+		return c < 128 && (classes[c] & mask) != 0;
+	}
+
+	private void process() {
+		char c = source.char_at(at);
+		if (c == '/' && peek(1) == '/')     inline_comment();
+		else if (c == '/' && peek(1) == '*') multiline_comment();
+		else if (is(c, WHITESPACE))         whitespace(c);
+		else if (is(c, ID_START))           identifier();
+		else if (is(c, PUNCTUATION))        punctuation(c);
+		else if (c == '"')                  string();
+		else if (is(c, DIGIT))              number();
+		else if (is(c, OPERATOR))           operator(c);
+		else {
+			diagnostics.report_at(at, lineno, "Unexpected character '%c'", c);
+			at++;
+		}
 	}
 
-	private boolean isPunctuation(final char sym) {
-		for (char p : new char[]{'.', ',', '{', '}', ':', '(', ')', '[', ']', ';'})
-			if (sym == p) return true;
-		return false;
+	private void emit(Token.Type type, int start) {
+		tokens.add(type, start, at, lineno, SymbolTable.NONE);
 	}
 
-	private boolean isOperator(final String sym) {
-		for (String op : operators)
-			if (sym.equals(op)) return true;
-		return false;
+	private void emit(Token.Type type, int start, int symbol) {
+		tokens.add(type, start, at, lineno, symbol);
 	}
 
-	private boolean isWhitespace(final char sym) {
-		return sym == '\n' || sym == '\t' || sym == '\r' || sym == ' ';
+	private void whitespace(char c) {
+		if (c == '\n') lineno++;
+		at++;
 	}
 
-	private String repr(final char c) {
+	/**
+	 * Decodes the literal as it is scanned: integers into a long, checking
+	 * for overflow, and decimals into a double. Decimals whose digits and
+	 * fraction are exactly representable take a single division, others are
+	 * left to {@link Double#parseDouble(String)} for correct rounding.
+	 */
+	private void number() {
+		int start = at, line = lineno;
+		long mantissa = 0;
+		int fraction = -1; // digits after the '.', -1 until one is met
+		boolean overflow = false, malformed = false;
+		for (; at < end; at++) {
+			char c = source.char_at(at);
+			if (c == '.') {
+				if (fraction >= 0) malformed = true;
+				else fraction = 0;
+			} else if (is(c, DIGIT)) {
+				int digit = c - '0';
+				if (mantissa > (Long.MAX_VALUE - digit) / 10) overflow = true;
+				else mantissa = mantissa * 10 + digit;
+				if (fraction >= 0) fraction++;
+			} else break;
+		}
+
+		// The literal is copied, as an edited source may move it before the
+		// message is read
+		if (malformed) {
+			diagnostics.report_at(start, line, "Malformed number literal '%s'", source.substring(start, at));
+			tokens.add_number(NUMBER, start, at, line, 0);
+		} else if (fraction < 0) {
+			if (overflow)
+				diagnostics.report_at(start, line, "Integer literal '%s' is too large", source.substring(start, at));
+			tokens.add_number(NUMBER, start, at, line, overflow ? 0 : mantissa);
+		} else {
+			double value = !overflow && mantissa <= 1L << 53 && fraction < powers_of_ten.length
+					? mantissa / powers_of_ten[fraction]
+					: Double.parseDouble(source.substring(start, at));
+			tokens.add_number(FLOAT, start, at, line, Double.doubleToRawLongBits(value));
+		}
+	}
+
+	private void operator(char c) {
+		int start = at;
+		char n = peek(1);
+		Token.Type single, pair;
 		switch (c) {
-			case '\n':
-				return "\\n";
-			case '\t':
-				return "\\t";
-			case '\r':
-				return "\\r";
-			case '\b':
-				return "\\b";
-			case '\0':
-				return "\\0";
+			case '+':   single = PLUS;          pair = pair(n, '+', PLUSPLUS, '=', PLUS_ASSIGN);        break;
+			case '-':   single = MINUS;         pair = pair(n, '-', MINUSMINUS, '=', MINUS_ASSIGN);     break;
+			case '&':   single = B_AND;         pair = pair(n, '&', AND, '=', B_AND_ASSIGN);            break;
+			case '|':   single = B_OR;          pair = pair(n, '|', OR, '=', B_OR_ASSIGN);              break;
+			case '*':   single = TIMES;         pair = pair(n, '=', TIMES_ASSIGN, '=', TIMES_ASSIGN);   break;
+			case '/':   single = DIV;           pair = pair(n, '=', DIV_ASSIGN, '=', DIV_ASSIGN);       break;
+			case '%':   single = MOD;           pair = pair(n, '=', MOD_ASSIGN, '=', MOD_ASSIGN);       break;
+			case '^':   single = B_XOR;         pair = pair(n, '=', B_XOR_ASSIGN, '=', B_XOR_ASSIGN);   break;
+			case '~':   single = B_NOT;         pair = pair(n, '=', B_NOT_ASSIGN, '=', B_NOT_ASSIGN);   break;
+			case '!':   single = NOT;           pair = pair(n, '=', NEQUALS, '=', NEQUALS);     break;
+			case '=':   single = STRICT_ASSIGN; pair = pair(n, '=', EQUALS, '=', EQUALS);       break;
+			case '>':   single = GT;            pair = pair(n, '>', R_SHIFT, '=', GEQ);         break;
+			case '<':   single = LT;            pair = pair(n, '<', L_SHIFT, '=', LEQ);         break;
 			default:
-				return "" + c;
+				at++;
+				return;
 		}
+
+		if (pair == null) at += 1;
+		else if ((pair == R_SHIFT || pair == L_SHIFT) && peek(2) == '=') {
+			pair = pair == R_SHIFT ? R_SHIFT_ASSIGN : L_SHIFT_ASSIGN;
+			at += 3;
+		} else at += 2;
+		emit(pair == null ? single : pair, start);
 	}
 
-	private String getFileContent(String path) throws java.io.IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(path));
-		String line = null;
-		StringBuilder stringBuilder = new StringBuilder();
-		String ls = System.getProperty("line.separator");
+	private static Token.Type pair(char next, char a, Token.Type type_a, char b, Token.Type type_b) {
+		if (next == a) return type_a;
+		if (next == b) return type_b;
+		return null;
+	}
 
-		try {
-			while ((line = reader.readLine()) != null) {
-				stringBuilder.append(line);
-				stringBuilder.append(ls);
+	private void string() {
+		int start = at++, line = lineno;
+		clipped = true;
+		while (at < end) {
+			char c = source.char_at(at++);
+			if (c == '\\') {
+				if (at < end && "ntr0b\"\\".indexOf(source.char_at(at)) < 0)
+					diagnostics.report_at(at - 1, lineno, "Unknown escape '\\%c'", source.char_at(at));
+				at++;
+			} else if (c == '\n') lineno++;
+			else if (c == '"') {
+				clipped = false;
+				break;
 			}
+		}
+		if (at > end) at = end;
+		if (clipped) diagnostics.report_at(start, line, "Unterminated string");
+		tokens.add(STRING, start, at, line, SymbolTable.NONE);
+	}
+
+	private void punctuation(char c) {
+		int start = at++;
+		emit(punctuation[c], start);
+	}
+
+	private void identifier() {
+		int start = at++;
+		while (at < end && is(source.char_at(at), ID_PART))
+			at++;
+
+		int word = SymbolTable.word(source, start, at - start);
+		switch (word) {
+			case SymbolTable.NONE:
+				emit(IDENTIFIER, start, symbols.intern(source, start, at));
+				break;
+			case SymbolTable.NULL_LITERAL:
+				emit(NULL, start);
+				break;
+			case SymbolTable.TRUE_LITERAL:
+			case SymbolTable.FALSE_LITERAL:
+				emit(BOOL, start, word);
+				break;
+			default:
+				emit(KEYWORD, start, word);
+		}
+	}
+
+	private void inline_comment() {
+		while (at < end && source.char_at(at) != '\n')
+			at++;
+	}
 
-		} finally {
-			reader.close();
+	private void multiline_comment() {
+		int start = at, line = lineno;
+		at += 2;
+		while (at < end && !(source.char_at(at) == '*' && peek(1) == '/')) {
+			if (source.char_at(at) == '\n') lineno++;
+			at++;
 		}
-		return stringBuilder.toString();
+		clipped = at >= end;
+		if (clipped) diagnostics.report_at(start, line, "Unterminated comment");
+		at = Math.min(at + 2, end);
 	}
 }
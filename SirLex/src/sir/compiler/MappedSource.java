@@ -0,0 +1,52 @@
+package sir.compiler;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link Source} reading a file through a read-only memory mapping.
+ * <p>
+ * The lexical grammar of Sir is plain ASCII, so characters are read straight
+ * out of the mapped bytes; only materialized lexemes are decoded (as UTF-8),
+ * which keeps non-ASCII string literals intact. The file content never lives
+ * on the heap, whatever its size.
+ */
+public class MappedSource implements Source {
+	private final String path;
+	private final MappedByteBuffer buffer;
+	private final int length;
+
+	public MappedSource(String path) throws IOException {
+		this.path = path;
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(path + ": source files larger than 2GB are not supported");
+			this.length = (int) size;
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	public String path() {
+		return path;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char char_at(int at) {
+		return (char) (buffer.get(at) & 0xFF);
+	}
+
+	public String substring(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(start + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,134 @@
+package sir.compiler;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Phase timers and counters of a compilation.
+ * <p>
+ * Instrumented code holds a null reference when metrics are disabled and
+ * checks it before each call, which is all that is paid then. Given a trace
+ * stream every event is also printed as it happens, and subclasses may
+ * override the event methods to forward them elsewhere, to a profiler for
+ * instance.
+ * <p>
+ * Metrics are not thread safe, parallel tasks each fill their own and
+ * {@link #merge(Metrics)} them afterwards.
+ */
+public class Metrics {
+	private final PrintStream trace;
+
+	private final Map<String, long[]> phases;     // runs and total nanoseconds
+	private final Map<String, long[]> rejections; // per expected token or keyword
+	private long tokens;
+	private long matched;
+	private long nodes;
+
+	public Metrics() {
+		this(null);
+	}
+
+	public Metrics(PrintStream trace) {
+		this.trace = trace;
+		this.phases = new LinkedHashMap<>();
+		this.rejections = new HashMap<>();
+	}
+
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Ends a run of {@code phase} begun at {@code start}, as returned by
+	 * {@link #start()}.
+	 */
+	public void phase(String phase, long start) {
+		long nanos = System.nanoTime() - start;
+		long[] entry = entry(phases, phase);
+		entry[0]++;
+		entry[1] += nanos;
+		if (trace != null)
+			trace.println(phase + " took " + nanos / 1000 + "us");
+	}
+
+	public void tokens(int count) {
+		tokens += count;
+	}
+
+	public void matched(TokenSource source) {
+		matched++;
+		if (trace != null)
+			trace.println("Matched token " + source.token(0));
+	}
+
+	public void rejected(String expected, TokenSource source) {
+		entry(rejections, expected)[0]++;
+		if (trace != null)
+			trace.println("Rejected " + source.token(0) + " (" + expected + " would have matched)");
+	}
+
+	public void node(String kind, int line) {
+		nodes++;
+		if (trace != null)
+			trace.println(line + "> Matched " + kind);
+	}
+
+	public void merge(Metrics other) {
+		for (Map.Entry<String, long[]> e : other.phases.entrySet()) {
+			long[] entry = entry(phases, e.getKey());
+			entry[0] += e.getValue()[0];
+			entry[1] += e.getValue()[1];
+		}
+		for (Map.Entry<String, long[]> e : other.rejections.entrySet())
+			entry(rejections, e.getKey())[0] += e.getValue()[0];
+		tokens += other.tokens;
+		matched += other.matched;
+		nodes += other.nodes;
+	}
+
+	public long runs(String phase) {
+		long[] entry = phases.get(phase);
+		return entry == null ? 0 : entry[0];
+	}
+
+	public long nanos(String phase) {
+		long[] entry = phases.get(phase);
+		return entry == null ? 0 : entry[1];
+	}
+
+	public long rejections(String expected) {
+		long[] entry = rejections.get(expected);
+		return entry == null ? 0 : entry[0];
+	}
+
+	public long tokens() {
+		return tokens;
+	}
+
+	public long matched() {
+		return matched;
+	}
+
+	public long nodes() {
+		return nodes;
+	}
+
+	public void report(PrintStream out) {
+		for (Map.Entry<String, long[]> e : phases.entrySet())
+			out.printf("%-12s %6d runs %10.3f ms%n", e.getKey(), e.getValue()[0], e.getValue()[1] / 1e6);
+		out.printf("%-12s %6d%n", "tokens", tokens);
+		out.printf("%-12s %6d%n", "matched", matched);
+		out.printf("%-12s %6d%n", "nodes", nodes);
+		for (Map.Entry<String, long[]> e : rejections.entrySet())
+			out.printf("rejected %-14s %6d%n", e.getKey(), e.getValue()[0]);
+	}
+
+	private static long[] entry(Map<String, long[]> map, String key) {
+		long[] entry = map.get(key);
+		if (entry == null)
+			map.put(key, entry = new long[2]);
+		return entry;
+	}
+}
@@ -0,0 +1,17 @@
+package sir.compiler;
+
+/**
+ * Random access view over the characters of a Sir source.
+ * <p>
+ * The lexer only ever reads a source through this interface, so the text does
+ * not have to be copied onto the heap before lexing starts.
+ */
+public interface Source {
+	String path();
+
+	int length();
+
+	char char_at(int at);
+
+	String substring(int start, int end);
+}
@@ -0,0 +1,31 @@
+package sir.compiler;
+
+/**
+ * {@link Source} backed by an in-memory character sequence (editor buffers,
+ * generated code, expressions evaluated at runtime).
+ */
+public class StringSource implements Source {
+	private final String path;
+	private final CharSequence text;
+
+	public StringSource(String path, CharSequence text) {
+		this.path = path;
+		this.text = text;
+	}
+
+	public String path() {
+		return path;
+	}
+
+	public int length() {
+		return text.length();
+	}
+
+	public char char_at(int at) {
+		return text.charAt(at);
+	}
+
+	public String substring(int start, int end) {
+		return text.subSequence(start, end).toString();
+	}
+}
@@ -0,0 +1,157 @@
+package sir.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Interning table giving every distinct identifier a dense int id.
+ * <p>
+ * Keywords are interned first, in the order of {@link #keywords}, so that a
+ * keyword id is also its index in that array and keyword matching is a plain
+ * int comparison. Later stages index their own tables by symbol id instead of
+ * hashing names. A table is shared by the lexer and the parser of a
+ * compilation and is not thread-safe.
+ */
+public class SymbolTable {
+	public static final String[] keywords = new String[]{
+			"routine", "make", "let", "get", "register", "finalize",
+			"var", "undef", "goto", "if", "else", "do", "while", "for", "unless",
+			"return", "enum", "struct", "static", "extern"
+	};
+
+	public static final int ROUTINE = 0, MAKE = 1, LET = 2, GET = 3, REGISTER = 4, FINALIZE = 5,
+			VAR = 6, UNDEF = 7, GOTO = 8, IF = 9, ELSE = 10, DO = 11, WHILE = 12, FOR = 13, UNLESS = 14,
+			RETURN = 15, ENUM = 16, STRUCT = 17, STATIC = 18, EXTERN = 19;
+
+	// Reserved words become dedicated tokens and are never interned
+	public static final int NULL_LITERAL = 20, TRUE_LITERAL = 21, FALSE_LITERAL = 22;
+
+	public static final int NONE = -1;
+
+	private static final String[] reserved_words = new String[]{"null", "true", "false"};
+
+	// Perfect hash of keywords and reserved words on (first char, last char, length)
+	private static final String[] words;
+	private static final int modulus;
+	private static final byte[] slots;
+
+	static {
+		words = Arrays.copyOf(keywords, keywords.length + reserved_words.length);
+		System.arraycopy(reserved_words, 0, words, keywords.length, reserved_words.length);
+
+		int m = words.length;
+		byte[] table;
+		search:
+		for (; ; m++) {
+			table = new byte[m];
+			Arrays.fill(table, (byte) NONE);
+			for (int i = 0; i < words.length; i++) {
+				String word = words[i];
+				int slot = key(word.charAt(0), word.charAt(word.length() - 1), word.length()) % m;
+				if (table[slot] != NONE) continue search;
+				table[slot] = (byte) i;
+			}
+			break;
+		}
+		modulus = m;
+		slots = table;
+	}
+
+	private static int key(char first, char last, int length) {
+		return (first & 0x7F) << 13 | (last & 0x7F) << 6 | (length & 0x3F);
+	}
+
+	/**
+	 * Keyword or reserved word spelled by {@code length} characters from
+	 * {@code start}, or {@link #NONE}.
+	 */
+	public static int word(Source source, int start, int length) {
+		int word = slots[key(source.char_at(start), source.char_at(start + length - 1), length) % modulus];
+		if (word == NONE || words[word].length() != length)
+			return NONE;
+		String spelling = words[word];
+		for (int i = 0; i < length; i++)
+			if (spelling.charAt(i) != source.char_at(start + i))
+				return NONE;
+		return word;
+	}
+
+	public static boolean is_keyword(int id) {
+		return id >= 0 && id < keywords.length;
+	}
+
+	private String[] names;
+	private int[] hashes;
+	private int[] table; // open addressing, holds id + 1
+	private int size;
+
+	public SymbolTable() {
+		this.names = new String[64];
+		this.hashes = new int[64];
+		this.table = new int[128];
+		this.size = 0;
+		for (String keyword : keywords)
+			intern(keyword);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String name(int id) {
+		return names[id];
+	}
+
+	public int intern(String name) {
+		return intern(new StringSource(null, name), 0, name.length());
+	}
+
+	/**
+	 * Id of the symbol spelled by {@code [start, end)} in the source. The
+	 * name is only materialized the first time a symbol is seen.
+	 */
+	public int intern(Source source, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + source.char_at(i);
+
+		int mask = table.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int id = table[slot] - 1;
+			if (id == NONE) {
+				id = add(source.substring(start, end), hash);
+				if (table.length < size * 2) rehash();
+				else table[slot] = id + 1;
+				return id;
+			}
+			if (hashes[id] == hash && spells(names[id], source, start, end))
+				return id;
+		}
+	}
+
+	private static boolean spells(String name, Source source, int start, int end) {
+		if (name.length() != end - start) return false;
+		for (int i = 0; i < name.length(); i++)
+			if (name.charAt(i) != source.char_at(start + i)) return false;
+		return true;
+	}
+
+	private int add(String name, int hash) {
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		names[size] = name;
+		hashes[size] = hash;
+		return size++;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hashes[id] & mask;
+			while (table[slot] != 0) slot = (slot + 1) & mask;
+			table[slot] = id + 1;
+		}
+	}
+}
@@ -2,21 +2,32 @@ package sir.compiler;
 
 
 public class Token {
-	enum Type {
-		KEYWORD, IDENTIFIER, NUMBER, STRING, BOOL, NULL, EOF,
+	public enum Type {
+		KEYWORD, IDENTIFIER, NUMBER, FLOAT, STRING, BOOL, NULL, EOF,
 		L_BRACE, R_BRACE, L_PAREN, R_PAREN, L_BRACKET, R_BRACKET,
-		DOT, COMMA, COLON, SEMICOLON,
+		DOT, COMMA, COLON, QUESTION, SEMICOLON,
 		NEQUALS, EQUALS, GEQ, LEQ, GT, LT, PLUSPLUS, MINUSMINUS,
-		STRICT_ASSIGN, ASSIGN, PLUS, MINUS, TIMES, DIV, MOD,
+		STRICT_ASSIGN, PLUS_ASSIGN, MINUS_ASSIGN, TIMES_ASSIGN, DIV_ASSIGN, MOD_ASSIGN,
+		B_AND_ASSIGN, B_OR_ASSIGN, B_XOR_ASSIGN, B_NOT_ASSIGN, R_SHIFT_ASSIGN, L_SHIFT_ASSIGN,
+		PLUS, MINUS, TIMES, DIV, MOD,
 		NOT, AND, OR, B_AND, B_OR, B_NOT, B_XOR, R_SHIFT, L_SHIFT;
 	}
 
-	private final String sym_val;
+	private final Source source;
+	private final int start, end;
+	private String sym_val;
 	private final Type type;
 	private final int line;
 
 	private Token(int lineno, String value, Type t) {
+		this(lineno, null, 0, 0, t);
 		sym_val = value;
+	}
+
+	private Token(int lineno, Source source, int start, int end, Type t) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
 		type = t;
 		line = lineno;
 	}
@@ -29,84 +40,45 @@ public class Token {
 		return new Token(lineno, "null", Type.EOF);
 	}
 
-	public static Token Keyword(String name, int lineno) {
-		return new Token(lineno, name, Type.KEYWORD);
-	}
-
-	public static Token Identifier(String name, int lineno) {
-		return new Token(lineno, name, Type.IDENTIFIER);
-	}
-
-	public static Token Number(String value, int lineno) {
-		return new Token(lineno, value, Type.NUMBER);
-	}
-
-	public static Token String(String value, int lineno) {
-		return new Token(lineno, value, Type.STRING);
+	/**
+	 * Token spanning {@code [start, end)} in the source. Its value is only
+	 * materialized on the first call to {@link #str_value()}.
+	 */
+	public static Token Lexeme(Type type, Source source, int start, int end, int lineno) {
+		return new Token(lineno, source, start, end, type);
 	}
 
-	public static Token Bool(String value, int lineno) {
-		return new Token(lineno, value, Type.BOOL);
+	public String str_value() {
+		if (sym_val == null)
+			sym_val = type == Type.STRING ? unescape(source, start + 1, end) : source.substring(start, end);
+		return sym_val;
 	}
 
-	public static Token Operator(String op, int lineno) {
-		if ("=".equals(op)) return new Token(lineno, op, Type.STRICT_ASSIGN);
-		if ("+".equals(op)) return new Token(lineno, op, Type.PLUS);
-		if ("-".equals(op)) return new Token(lineno, op, Type.MINUS);
-		if ("*".equals(op)) return new Token(lineno, op, Type.TIMES);
-		if ("/".equals(op)) return new Token(lineno, op, Type.DIV);
-		if ("%".equals(op)) return new Token(lineno, op, Type.MOD);
-		if ("++".equals(op)) return new Token(lineno, op, Type.PLUSPLUS);
-		if ("--".equals(op)) return new Token(lineno, op, Type.MINUSMINUS);
-		if (">>".equals(op)) return new Token(lineno, op, Type.R_SHIFT);
-		if ("<<".equals(op)) return new Token(lineno, op, Type.L_SHIFT);
-
-		if ("==".equals(op)) return new Token(lineno, op, Type.EQUALS);
-		if ("!=".equals(op)) return new Token(lineno, op, Type.NEQUALS);
-		if (">=".equals(op)) return new Token(lineno, op, Type.GEQ);
-		if ("<=".equals(op)) return new Token(lineno, op, Type.LEQ);
-		if (">".equals(op)) return new Token(lineno, op, Type.GT);
-		if ("<".equals(op)) return new Token(lineno, op, Type.LT);
-
-		if ("+=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("-=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("*=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("/=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("%=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("&=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("|=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("^=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if (">>=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-		if ("<<=".equals(op)) return new Token(lineno, op, Type.ASSIGN);
-
-		if ("!".equals(op)) return new Token(lineno, op, Type.NOT);
-		if ("&&".equals(op)) return new Token(lineno, op, Type.AND);
-		if ("||".equals(op)) return new Token(lineno, op, Type.OR);
-
-		if ("~".equals(op)) return new Token(lineno, op, Type.B_NOT);
-		if ("&".equals(op)) return new Token(lineno, op, Type.B_AND);
-		if ("|".equals(op)) return new Token(lineno, op, Type.B_OR);
-		if ("^".equals(op)) return new Token(lineno, op, Type.B_XOR);
-
-		return Null(lineno);
-	}
-
-	public static Token Punctuation(char value, int lineno) {
-		if ('.' == value) return new Token(lineno, "" + value, Type.DOT);
-		if (',' == value) return new Token(lineno, "" + value, Type.COMMA);
-		if ('{' == value) return new Token(lineno, "" + value, Type.L_BRACE);
-		if ('}' == value) return new Token(lineno, "" + value, Type.R_BRACE);
-		if ('[' == value) return new Token(lineno, "" + value, Type.L_BRACKET);
-		if (']' == value) return new Token(lineno, "" + value, Type.R_BRACKET);
-		if ('(' == value) return new Token(lineno, "" + value, Type.L_PAREN);
-		if (')' == value) return new Token(lineno, "" + value, Type.R_PAREN);
-		if (':' == value) return new Token(lineno, "" + value, Type.COLON);
-		if (';' == value) return new Token(lineno, "" + value, Type.SEMICOLON);
-		return Null(lineno);
+	private static String unescape(Source source, int from, int to) {
+		StringBuilder str = new StringBuilder(to - from);
+		for (int i = from; i < to; i++) {
+			char c = source.char_at(i);
+			if (c == '"') break;
+			if (c != '\\' || ++i >= to) {
+				str.append(c);
+				continue;
+			}
+			switch (source.char_at(i)) {
+				case 'n':   str.append('\n');   break;
+				case 't':   str.append('\t');   break;
+				case 'r':   str.append('\r');   break;
+				case '0':   str.append('\0');   break;
+				case 'b':   str.append('\b');   break;
+				case '"':   str.append('"');    break;
+				case '\\':  str.append('\\');   break;
+				default:
+					// Reported by the lexer, the character stands for itself
+					str.append(source.char_at(i));
+			}
+		}
+		return str.toString();
 	}
 
-	public String str_value() { return sym_val; }
-
 	public Type type_of() {
 		return type;
 	}
@@ -117,12 +89,14 @@ public class Token {
 
 	private String repr() {
 		switch (type) {
-			case KEYWORD:   return sym_val;
-			case NUMBER:    return sym_val;
-			case BOOL:      return sym_val;
-			case NULL:      return sym_val;
-			case EOF:       return sym_val;
+			case KEYWORD:   return str_value();
+			case NUMBER:    return str_value();
+			case FLOAT:     return str_value();
+			case BOOL:      return str_value();
+			case NULL:      return str_value();
+			case EOF:       return str_value();
 			case STRING: {
+				String sym_val = str_value();
 				String repr = "";
 				for (int i = 0; i < sym_val.length(); i++)
 					switch (sym_val.charAt(i)) {
@@ -135,7 +109,7 @@ public class Token {
 				return "\"" + repr + "\"";
 			}
 			default:
-				return "'" + sym_val + "'";
+				return "'" + str_value() + "'";
 		}
 	}
 
@@ -0,0 +1,32 @@
+package sir.compiler;
+
+/**
+ * Sequential access to tokens, with a small lookahead.
+ * <p>
+ * A source is positioned on its first token when created. Lookahead is
+ * relative to the current token ({@code 0} is the current token itself) and
+ * should not go further than {@link #LOOKAHEAD} tokens. Past the end of the
+ * input, a source keeps returning EOF.
+ */
+public interface TokenSource {
+	int LOOKAHEAD = 4;
+
+	/**
+	 * Moves to the next token and returns its type.
+	 */
+	Token.Type nextToken();
+
+	Token.Type type_of(int k);
+
+	int symbol_of(int k);
+
+	int line_of(int k);
+
+	long int_value(int k);
+
+	double float_value(int k);
+
+	String str_value(int k);
+
+	Token token(int k);
+}
@@ -0,0 +1,294 @@
+package sir.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Tokens of a source, stored column-wise in parallel primitive arrays.
+ * <p>
+ * A token is only an index into this stream; its type, position and line are
+ * read from the arrays and its value is materialized from the source on
+ * demand. Each token also has an int payload: identifiers and keywords
+ * carry their interned symbol id, and numeric literals the index of their
+ * value, decoded once by the lexer, in a side table of longs (doubles are
+ * stored as raw bits). {@link #token(int)} builds a standalone {@link Token}
+ * view when one is needed for reporting.
+ */
+public class TokenStream {
+	private static final Token.Type[] TYPES = Token.Type.values();
+
+	private final Source source;
+	private final SymbolTable symbols;
+
+	private byte[] types;
+	private int[] starts, lengths, lines, payloads;
+	private int size;
+	private int line_shift;
+
+	private long[] numbers;
+	private int number_count;
+
+	public TokenStream(Source source, SymbolTable symbols) {
+		this(source, symbols, source.length() / 6 + 16);
+	}
+
+	public TokenStream(Source source, SymbolTable symbols, int capacity) {
+		this.source = source;
+		this.symbols = symbols;
+		this.types = new byte[capacity];
+		this.starts = new int[capacity];
+		this.lengths = new int[capacity];
+		this.lines = new int[capacity];
+		this.payloads = new int[capacity];
+		this.size = 0;
+		this.numbers = new long[16];
+		this.number_count = 0;
+	}
+
+	// Booleans keep the id of their keyword
+	private static boolean is_symbol(Token.Type type) {
+		return type == Token.Type.IDENTIFIER || type == Token.Type.KEYWORD || type == Token.Type.BOOL;
+	}
+
+	private static boolean is_number(Token.Type type) {
+		return type == Token.Type.NUMBER || type == Token.Type.FLOAT;
+	}
+
+	void add(Token.Type type, int start, int end, int line, int symbol) {
+		if (size == types.length) grow();
+		types[size] = (byte) type.ordinal();
+		starts[size] = start;
+		lengths[size] = end - start;
+		lines[size] = line;
+		payloads[size] = symbol;
+		size++;
+	}
+
+	/**
+	 * Adds a numeric literal, {@code bits} being either the integer value or
+	 * the raw bits of the floating point value.
+	 */
+	void add_number(Token.Type type, int start, int end, int line, long bits) {
+		if (number_count == numbers.length)
+			numbers = Arrays.copyOf(numbers, number_count * 2);
+		numbers[number_count] = bits;
+		add(type, start, end, line, number_count++);
+	}
+
+	/**
+	 * Appends all the tokens of another stream over the same source, moved by
+	 * {@code line_shift} lines and with symbol ids translated through
+	 * {@code symbol_map}.
+	 */
+	void append(TokenStream other, int line_shift, int[] symbol_map) {
+		while (size + other.size > types.length) grow();
+		if (number_count + other.number_count > numbers.length)
+			numbers = Arrays.copyOf(numbers, Math.max(numbers.length * 2, number_count + other.number_count));
+		System.arraycopy(other.types, 0, types, size, other.size);
+		System.arraycopy(other.starts, 0, starts, size, other.size);
+		System.arraycopy(other.lengths, 0, lengths, size, other.size);
+		System.arraycopy(other.numbers, 0, numbers, number_count, other.number_count);
+		for (int i = 0; i < other.size; i++) {
+			int payload = other.payloads[i];
+			Token.Type type = other.type_of(i);
+			if (is_symbol(type)) payload = symbol_map[payload];
+			else if (is_number(type)) payload += number_count;
+			lines[size + i] = other.line_of(i) + line_shift;
+			payloads[size + i] = payload;
+		}
+		size += other.size;
+		number_count += other.number_count;
+	}
+
+	private void grow() {
+		int capacity = types.length * 2;
+		types = Arrays.copyOf(types, capacity);
+		starts = Arrays.copyOf(starts, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		payloads = Arrays.copyOf(payloads, capacity);
+	}
+
+	public Source source() {
+		return source;
+	}
+
+	public SymbolTable symbols() {
+		return symbols;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Token.Type type_of(int i) {
+		return TYPES[types[i]];
+	}
+
+	public int start_of(int i) {
+		return starts[i];
+	}
+
+	public int length_of(int i) {
+		return lengths[i];
+	}
+
+	public int line_of(int i) {
+		return lines[i] + line_shift;
+	}
+
+	/**
+	 * Moves every token of the stream by {@code delta} lines, used when an
+	 * edit before the stream adds or removes lines.
+	 */
+	public void shift_lines(int delta) {
+		line_shift += delta;
+	}
+
+	/**
+	 * Copies the tokens {@code [from, to)} into a new stream over
+	 * {@code source}, whose first character is at {@code origin} in this
+	 * stream's source. The copy is terminated by an EOF token at
+	 * {@code eof}, on line {@code eof_line}.
+	 */
+	public TokenStream slice(int from, int to, Source source, int origin, int eof, int eof_line) {
+		TokenStream slice = new TokenStream(source, symbols, to - from + 1);
+		for (int i = from; i < to; i++)
+			if (is_number(type_of(i)))
+				slice.add_number(type_of(i), starts[i] - origin, starts[i] + lengths[i] - origin, line_of(i), numbers[payloads[i]]);
+			else
+				slice.add(type_of(i), starts[i] - origin, starts[i] + lengths[i] - origin, line_of(i), payloads[i]);
+		slice.add(Token.Type.EOF, eof - origin, eof - origin, eof_line, SymbolTable.NONE);
+		return slice;
+	}
+
+	/**
+	 * Symbol id of an identifier or keyword, the keyword id of a boolean and
+	 * {@link SymbolTable#NONE} for any other token.
+	 */
+	public int symbol_of(int i) {
+		return is_symbol(type_of(i)) ? payloads[i] : SymbolTable.NONE;
+	}
+
+	/**
+	 * Value of an integer ({@code NUMBER}) literal.
+	 */
+	public long int_value(int i) {
+		return numbers[payloads[i]];
+	}
+
+	/**
+	 * Value of a {@code FLOAT} literal.
+	 */
+	public double float_value(int i) {
+		return Double.longBitsToDouble(numbers[payloads[i]]);
+	}
+
+	public String str_value(int i) {
+		if (is_symbol(type_of(i)))
+			return symbols.name(payloads[i]);
+		return token(i).str_value();
+	}
+
+	public Token token(int i) {
+		switch (type_of(i)) {
+			case EOF:   return Token.EOF(line_of(i));
+			case NULL:  return Token.Null(line_of(i));
+			default:    return Token.Lexeme(type_of(i), source, starts[i], starts[i] + lengths[i], line_of(i));
+		}
+	}
+
+	/**
+	 * Drops the first {@code count} tokens, the following ones being moved to
+	 * the front of the stream.
+	 */
+	void discard(int count) {
+		size -= count;
+		System.arraycopy(types, count, types, 0, size);
+		System.arraycopy(starts, count, starts, 0, size);
+		System.arraycopy(lengths, count, lengths, 0, size);
+		System.arraycopy(lines, count, lines, 0, size);
+		System.arraycopy(payloads, count, payloads, 0, size);
+
+		// Only the literals of the remaining tokens are kept
+		int kept = 0;
+		for (int i = 0; i < size; i++)
+			if (is_number(type_of(i))) {
+				numbers[kept] = numbers[payloads[i]];
+				payloads[i] = kept++;
+			}
+		number_count = kept;
+	}
+
+	/**
+	 * Reads the stream from its first token.
+	 */
+	public TokenSource cursor() {
+		return new Cursor(0, size - 1);
+	}
+
+	/**
+	 * Reads the tokens {@code [from, to)}, token {@code to} reading as EOF
+	 * on its line.
+	 */
+	public TokenSource cursor(int from, int to) {
+		return new Cursor(from, to);
+	}
+
+	private class Cursor implements TokenSource {
+		private int at;
+		private final int end;
+
+		Cursor(int from, int end) {
+			this.at = from;
+			this.end = end;
+		}
+
+		// The range always ends with EOF, which is returned over and over
+		private int index(int k) {
+			return Math.min(at + k, end);
+		}
+
+		public Token.Type nextToken() {
+			at = index(1);
+			return type_of(0);
+		}
+
+		public Token.Type type_of(int k) {
+			int i = index(k);
+			return i == end ? Token.Type.EOF : TokenStream.this.type_of(i);
+		}
+
+		public int symbol_of(int k) {
+			int i = index(k);
+			return i == end ? SymbolTable.NONE : TokenStream.this.symbol_of(i);
+		}
+
+		public int line_of(int k) {
+			return TokenStream.this.line_of(index(k));
+		}
+
+		public long int_value(int k) {
+			return TokenStream.this.int_value(index(k));
+		}
+
+		public double float_value(int k) {
+			return TokenStream.this.float_value(index(k));
+		}
+
+		public String str_value(int k) {
+			return TokenStream.this.str_value(index(k));
+		}
+
+		public Token token(int k) {
+			int i = index(k);
+			return i == end ? Token.EOF(line_of(k)) : TokenStream.this.token(i);
+		}
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < size; i++)
+			str.append(token(i)).append('\n');
+		return str.toString();
+	}
+}
@@ -0,0 +1,696 @@
+package sir.compiler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static sir.compiler.Token.Type.*;
+
+/**
+ * Syntax tree of a compilation unit, stored column-wise in parallel primitive
+ * arrays like a {@link TokenStream}.
+ * <p>
+ * A node is only an index into the arena. Each node has a kind, its first
+ * child, its next sibling, the index of the token it was built from (counted
+ * from the first token of the unit), its line and an int payload:
+ * <ul>
+ * <li>the linkage keyword of globals and routines,</li>
+ * <li>the symbol id of declarators, parameters, names, labels and members,</li>
+ * <li>the {@link Token.Type} ordinal of operators,</li>
+ * <li>the index of numeric literals in a side table of longs (doubles are
+ * stored as raw bits), the index of strings in a side table of strings and
+ * 1 or 0 for booleans.</li>
+ * </ul>
+ * Node 0 is the {@link Kind#UNIT} root, whose children are the top-level
+ * declarations in source order. Children are always added after their
+ * parent, except for the operand on the left of infix and postfix operators.
+ */
+public class Ast {
+	public enum Kind {
+		// Declarations, globals and routines name what they declare in DECLARATOR children
+		UNIT, GLOBAL, ROUTINE, PARAMETER, DECLARATOR,
+		// Statements
+		BLOCK, EMPTY, LABEL, GOTO, COMPUTED_GOTO, VAR, RETURN, IF, WHILE, EVALUATE,
+		// Expressions
+		INTEGER, FLOAT, STRING, BOOL, NULL, NAME, UNARY, BINARY, TERNARY, ASSIGN, CALL, INDEX, MEMBER, POSTFIX,
+	}
+
+	public static final int NONE = -1;
+
+	private static final Kind[] KINDS = Kind.values();
+	private static final Token.Type[] TYPES = Token.Type.values();
+
+	// Source spelling of the operators
+	private static final String[] spelling = new String[TYPES.length];
+
+	static {
+		Token.Type[] types = {
+				NEQUALS, EQUALS, GEQ, LEQ, GT, LT, PLUSPLUS, MINUSMINUS, STRICT_ASSIGN, PLUS_ASSIGN, MINUS_ASSIGN,
+				TIMES_ASSIGN, DIV_ASSIGN, MOD_ASSIGN, B_AND_ASSIGN, B_OR_ASSIGN, B_XOR_ASSIGN, B_NOT_ASSIGN,
+				R_SHIFT_ASSIGN, L_SHIFT_ASSIGN, PLUS, MINUS, TIMES, DIV, MOD, NOT, AND, OR, B_AND, B_OR, B_NOT,
+				B_XOR, R_SHIFT, L_SHIFT
+		};
+		String[] spellings = {
+				"!=", "==", ">=", "<=", ">", "<", "++", "--", "=", "+=", "-=",
+				"*=", "/=", "%=", "&=", "|=", "^=", "~=",
+				">>=", "<<=", "+", "-", "*", "/", "%", "!", "&&", "||", "&", "|", "~",
+				"^", ">>", "<<"
+		};
+		for (int i = 0; i < types.length; i++)
+			spelling[types[i].ordinal()] = spellings[i];
+	}
+
+	private byte[] kinds;
+	private int[] first_children, next_siblings, tokens, lines, payloads;
+	private int size;
+
+	private long[] numbers;
+	private int number_count;
+	private String[] strings;
+	private int string_count;
+
+	public Ast() {
+		this(64);
+	}
+
+	public Ast(int capacity) {
+		this.kinds = new byte[capacity];
+		this.first_children = new int[capacity];
+		this.next_siblings = new int[capacity];
+		this.tokens = new int[capacity];
+		this.lines = new int[capacity];
+		this.payloads = new int[capacity];
+		this.size = 0;
+		this.numbers = new long[16];
+		this.number_count = 0;
+		this.strings = new String[16];
+		this.string_count = 0;
+	}
+
+	/**
+	 * Adds a childless node, returns its index.
+	 */
+	public int add(Kind kind, int token, int line, int payload) {
+		if (size == kinds.length) grow(size + 1);
+		kinds[size] = (byte) kind.ordinal();
+		first_children[size] = NONE;
+		next_siblings[size] = NONE;
+		tokens[size] = token;
+		lines[size] = line;
+		payloads[size] = payload;
+		return size++;
+	}
+
+	public int add_number(Kind kind, int token, int line, long bits) {
+		if (number_count == numbers.length) numbers = Arrays.copyOf(numbers, number_count * 2);
+		numbers[number_count] = bits;
+		return add(kind, token, line, number_count++);
+	}
+
+	public int add_string(int token, int line, String value) {
+		if (string_count == strings.length) strings = Arrays.copyOf(strings, string_count * 2);
+		strings[string_count] = value;
+		return add(Kind.STRING, token, line, string_count++);
+	}
+
+	/**
+	 * Appends {@code child} to the children of {@code parent}, {@code last}
+	 * being its current last child or {@link #NONE}. Returns the new last
+	 * child, so that lists are built without walking them. Appending
+	 * {@link #NONE}, what a rule that failed returns, changes nothing.
+	 */
+	public int append(int parent, int last, int child) {
+		if (child == NONE) return last;
+		if (last == NONE) first_children[parent] = child;
+		else next_siblings[last] = child;
+		return child;
+	}
+
+	/**
+	 * Inserts {@code child} in front of the children of {@code parent}.
+	 */
+	public void prepend(int parent, int child) {
+		next_siblings[child] = first_children[parent];
+		first_children[parent] = child;
+	}
+
+	/**
+	 * Turns {@code node} into a childless node of the given kind, keeping
+	 * its place among its siblings. Passes rewrite the tree in place this
+	 * way, folding an expression into a literal for instance.
+	 */
+	public void replace(int node, Kind kind, int payload) {
+		kinds[node] = (byte) kind.ordinal();
+		first_children[node] = NONE;
+		payloads[node] = payload;
+	}
+
+	public void replace_number(int node, Kind kind, long bits) {
+		if (number_count == numbers.length) numbers = Arrays.copyOf(numbers, number_count * 2);
+		numbers[number_count] = bits;
+		replace(node, kind, number_count++);
+	}
+
+	public void replace_string(int node, String value) {
+		if (string_count == strings.length) strings = Arrays.copyOf(strings, string_count * 2);
+		strings[string_count] = value;
+		replace(node, Kind.STRING, string_count++);
+	}
+
+	/**
+	 * Puts the subtree of {@code with}, one of the descendants of
+	 * {@code node}, in the place of {@code node}.
+	 */
+	public void replace(int node, int with) {
+		kinds[node] = kinds[with];
+		first_children[node] = first_children[with];
+		tokens[node] = tokens[with];
+		lines[node] = lines[with];
+		payloads[node] = payloads[with];
+	}
+
+	/**
+	 * Appends a copy of the declarations of {@code other}, the children of
+	 * its root, to the root of this tree after {@code last}. Returns the new
+	 * last child of the root. Token indexes are copied as they are, both
+	 * trees being built from the same stream.
+	 */
+	public int graft(Ast other, int last) {
+		int shift = size - 1;     // node 1 of other, its first one after the root
+		if (size + other.size - 1 > kinds.length) grow(size + other.size - 1);
+		if (number_count + other.number_count > numbers.length)
+			numbers = Arrays.copyOf(numbers, Math.max(numbers.length * 2, number_count + other.number_count));
+		if (string_count + other.string_count > strings.length)
+			strings = Arrays.copyOf(strings, Math.max(strings.length * 2, string_count + other.string_count));
+
+		for (int n = 1; n < other.size; n++) {
+			int copy = n + shift;
+			kinds[copy] = other.kinds[n];
+			first_children[copy] = other.first_children[n] == NONE ? NONE : other.first_children[n] + shift;
+			next_siblings[copy] = other.next_siblings[n] == NONE ? NONE : other.next_siblings[n] + shift;
+			tokens[copy] = other.tokens[n];
+			lines[copy] = other.lines[n];
+			switch (KINDS[other.kinds[n]]) {
+				case INTEGER:
+				case FLOAT:     payloads[copy] = other.payloads[n] + number_count; break;
+				case STRING:    payloads[copy] = other.payloads[n] + string_count; break;
+				default:        payloads[copy] = other.payloads[n];
+			}
+		}
+		System.arraycopy(other.numbers, 0, numbers, number_count, other.number_count);
+		System.arraycopy(other.strings, 0, strings, string_count, other.string_count);
+		size += other.size - 1;
+		number_count += other.number_count;
+		string_count += other.string_count;
+
+		for (int child = other.first_children[0]; child != NONE; child = other.next_siblings[child])
+			last = append(0, last, child + shift);
+		return last;
+	}
+
+	private void grow(int min) {
+		int capacity = Math.max(kinds.length * 2, min);
+		kinds = Arrays.copyOf(kinds, capacity);
+		first_children = Arrays.copyOf(first_children, capacity);
+		next_siblings = Arrays.copyOf(next_siblings, capacity);
+		tokens = Arrays.copyOf(tokens, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		payloads = Arrays.copyOf(payloads, capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Kind kind_of(int node) {
+		return KINDS[kinds[node]];
+	}
+
+	public int first_child(int node) {
+		return first_children[node];
+	}
+
+	public int next_sibling(int node) {
+		return next_siblings[node];
+	}
+
+	/**
+	 * Child {@code i} of the node, {@link #NONE} past the last one.
+	 */
+	public int child(int node, int i) {
+		int child = first_children[node];
+		while (i-- > 0 && child != NONE)
+			child = next_siblings[child];
+		return child;
+	}
+
+	public int child_count(int node) {
+		int count = 0;
+		for (int child = first_children[node]; child != NONE; child = next_siblings[child])
+			count++;
+		return count;
+	}
+
+	public int token_of(int node) {
+		return tokens[node];
+	}
+
+	public int line_of(int node) {
+		return lines[node];
+	}
+
+	public int payload_of(int node) {
+		return payloads[node];
+	}
+
+	public int symbol_of(int node) {
+		return payloads[node];
+	}
+
+	/**
+	 * Operator of unary, binary, assignment and postfix nodes.
+	 */
+	public Token.Type op_of(int node) {
+		return TYPES[payloads[node]];
+	}
+
+	public long int_value(int node) {
+		return numbers[payloads[node]];
+	}
+
+	public double float_value(int node) {
+		return Double.longBitsToDouble(numbers[payloads[node]]);
+	}
+
+	public boolean bool_value(int node) {
+		return payloads[node] != 0;
+	}
+
+	public String str_value(int node) {
+		return strings[payloads[node]];
+	}
+
+	/**
+	 * Linkage of a global or routine, {@link SymbolTable#STATIC},
+	 * {@link SymbolTable#EXTERN} or {@link SymbolTable#NONE}.
+	 */
+	public int linkage_of(int node) {
+		return payloads[node];
+	}
+
+	/**
+	 * Writes the tree column by column, to be read back by
+	 * {@link #read(DataInput)}. Symbol ids are written as they are, the
+	 * reader has to restore the symbol table they refer to.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.write(kinds, 0, size);
+		for (int[] column : new int[][]{first_children, next_siblings, tokens, lines, payloads})
+			for (int n = 0; n < size; n++)
+				out.writeInt(column[n]);
+		out.writeInt(number_count);
+		for (int i = 0; i < number_count; i++)
+			out.writeLong(numbers[i]);
+		out.writeInt(string_count);
+		for (int i = 0; i < string_count; i++) {
+			out.writeInt(strings[i].length());
+			out.writeChars(strings[i]);
+		}
+	}
+
+	/**
+	 * Tree written by {@link #write(DataOutput)}, reading at most
+	 * {@code available} bytes: counts needing more are refused before
+	 * anything is allocated for them.
+	 */
+	public static Ast read(DataInput in, int available) throws IOException {
+		int size = in.readInt();
+		available = take(available, 4 + 21L * size);
+		Ast ast = new Ast(Math.max(size, 1));
+		in.readFully(ast.kinds, 0, size);
+		for (int[] column : new int[][]{ast.first_children, ast.next_siblings, ast.tokens, ast.lines, ast.payloads})
+			for (int n = 0; n < size; n++)
+				column[n] = in.readInt();
+		ast.size = size;
+
+		ast.number_count = in.readInt();
+		available = take(available, 4 + 8L * ast.number_count);
+		ast.numbers = new long[Math.max(ast.number_count, 16)];
+		for (int i = 0; i < ast.number_count; i++)
+			ast.numbers[i] = in.readLong();
+		ast.string_count = in.readInt();
+		available = take(available, 4 + 4L * ast.string_count);
+		ast.strings = new String[Math.max(ast.string_count, 16)];
+		for (int i = 0; i < ast.string_count; i++) {
+			int length = in.readInt();
+			available = take(available, 2L * length);
+			char[] chars = new char[length];
+			for (int c = 0; c < chars.length; c++)
+				chars[c] = in.readChar();
+			ast.strings[i] = new String(chars);
+		}
+		return ast;
+	}
+
+	// Bytes left once {@code needed} are read, needing more than available
+	// or a negative count meaning the input is corrupt
+	private static int take(int available, long needed) throws IOException {
+		if (needed < 0 || needed > available) throw new IOException("Corrupt tree");
+		return (int) (available - needed);
+	}
+
+	/**
+	 * Source-like form of a subtree, expressions being fully parenthesized
+	 * and names looked up in {@code symbols}.
+	 */
+	public String print(int node, SymbolTable symbols) {
+		StringBuilder out = new StringBuilder();
+		new Printer(this, symbols, out).visit(node);
+		return out.toString();
+	}
+
+	/**
+	 * Walks a tree by dispatching on node kinds. Every method visits the
+	 * children by default, so that a visitor only overrides the kinds it
+	 * cares about.
+	 */
+	public static abstract class Visitor<R> {
+		protected final Ast ast;
+
+		protected Visitor(Ast ast) {
+			this.ast = ast;
+		}
+
+		public R visit(int node) {
+			switch (ast.kind_of(node)) {
+				case UNIT:          return unit(node);
+				case GLOBAL:        return global(node);
+				case ROUTINE:       return routine(node);
+				case PARAMETER:     return parameter(node);
+				case DECLARATOR:    return declarator(node);
+				case BLOCK:         return block(node);
+				case EMPTY:         return empty(node);
+				case LABEL:         return label(node);
+				case GOTO:          return jump(node);
+				case COMPUTED_GOTO: return computed_jump(node);
+				case VAR:           return var(node);
+				case RETURN:        return ret(node);
+				case IF:            return conditional(node);
+				case WHILE:         return loop(node);
+				case EVALUATE:      return evaluate(node);
+				case NAME:          return name(node);
+				case UNARY:         return unary(node);
+				case BINARY:        return binary(node);
+				case TERNARY:       return ternary(node);
+				case ASSIGN:        return assign(node);
+				case CALL:          return call(node);
+				case INDEX:         return index(node);
+				case MEMBER:        return member(node);
+				case POSTFIX:       return postfix(node);
+				default:            return literal(node);
+			}
+		}
+
+		protected R children(int node) {
+			R result = null;
+			for (int child = ast.first_child(node); child != NONE; child = ast.next_sibling(child))
+				result = visit(child);
+			return result;
+		}
+
+		protected R unit(int node)          { return children(node); }
+		protected R global(int node)        { return children(node); }
+		protected R routine(int node)       { return children(node); }
+		protected R parameter(int node)     { return children(node); }
+		protected R declarator(int node)    { return children(node); }
+		protected R block(int node)         { return children(node); }
+		protected R empty(int node)         { return children(node); }
+		protected R label(int node)         { return children(node); }
+		protected R jump(int node)          { return children(node); }
+		protected R computed_jump(int node) { return children(node); }
+		protected R var(int node)           { return children(node); }
+		protected R ret(int node)           { return children(node); }
+		protected R conditional(int node)   { return children(node); }
+		protected R loop(int node)          { return children(node); }
+		protected R evaluate(int node)      { return children(node); }
+		protected R literal(int node)       { return children(node); }
+		protected R name(int node)          { return children(node); }
+		protected R unary(int node)         { return children(node); }
+		protected R binary(int node)        { return children(node); }
+		protected R ternary(int node)       { return children(node); }
+		protected R assign(int node)        { return children(node); }
+		protected R call(int node)          { return children(node); }
+		protected R index(int node)         { return children(node); }
+		protected R member(int node)        { return children(node); }
+		protected R postfix(int node)       { return children(node); }
+	}
+
+	private static class Printer extends Visitor<Void> {
+		private final SymbolTable symbols;
+		private final StringBuilder out;
+		private int depth;
+
+		Printer(Ast ast, SymbolTable symbols, StringBuilder out) {
+			super(ast);
+			this.symbols = symbols;
+			this.out = out;
+		}
+
+		private void line() {
+			out.append('\n');
+			for (int i = 0; i < depth; i++)
+				out.append('\t');
+		}
+
+		// Children separated by a comma, from the given one
+		private void list(int child) {
+			for (; child != NONE; child = ast.next_sibling(child)) {
+				visit(child);
+				if (ast.next_sibling(child) != NONE) out.append(", ");
+			}
+		}
+
+		private void linkage(int node) {
+			if (ast.linkage_of(node) != SymbolTable.NONE)
+				out.append(SymbolTable.keywords[ast.linkage_of(node)]).append(' ');
+		}
+
+		protected Void unit(int node) {
+			for (int child = ast.first_child(node); child != NONE; child = ast.next_sibling(child)) {
+				visit(child);
+				out.append('\n');
+			}
+			return null;
+		}
+
+		protected Void global(int node) {
+			linkage(node);
+			out.append("var ");
+			list(ast.first_child(node));
+			out.append(';');
+			return null;
+		}
+
+		protected Void routine(int node) {
+			linkage(node);
+			out.append("routine ");
+			int child = ast.first_child(node);
+			visit(child);
+			out.append('(');
+			int body = NONE;
+			boolean first = true;
+			for (child = ast.next_sibling(child); child != NONE; child = ast.next_sibling(child)) {
+				if (ast.kind_of(child) != Kind.PARAMETER) {
+					body = child;
+					break;
+				}
+				if (!first) out.append(", ");
+				visit(child);
+				first = false;
+			}
+			out.append(')');
+			if (body == NONE) out.append(';');
+			else {
+				out.append(' ');
+				visit(body);
+			}
+			return null;
+		}
+
+		protected Void parameter(int node) {
+			out.append(symbols.name(ast.symbol_of(node)));
+			return null;
+		}
+
+		protected Void declarator(int node) {
+			out.append(symbols.name(ast.symbol_of(node)));
+			if (ast.first_child(node) != NONE) {
+				out.append(" = ");
+				visit(ast.first_child(node));
+			}
+			return null;
+		}
+
+		protected Void block(int node) {
+			out.append('{');
+			depth++;
+			for (int child = ast.first_child(node); child != NONE; child = ast.next_sibling(child)) {
+				line();
+				visit(child);
+			}
+			depth--;
+			line();
+			out.append('}');
+			return null;
+		}
+
+		protected Void empty(int node) {
+			out.append(';');
+			return null;
+		}
+
+		protected Void label(int node) {
+			out.append(symbols.name(ast.symbol_of(node))).append(':');
+			return null;
+		}
+
+		protected Void jump(int node) {
+			out.append("goto ").append(symbols.name(ast.symbol_of(node))).append(';');
+			return null;
+		}
+
+		protected Void computed_jump(int node) {
+			out.append("goto (");
+			visit(ast.first_child(node));
+			out.append(");");
+			return null;
+		}
+
+		protected Void var(int node) {
+			out.append("var ");
+			list(ast.first_child(node));
+			out.append(';');
+			return null;
+		}
+
+		protected Void ret(int node) {
+			out.append("return");
+			if (ast.first_child(node) != NONE) {
+				out.append(' ');
+				visit(ast.first_child(node));
+			}
+			out.append(';');
+			return null;
+		}
+
+		protected Void conditional(int node) {
+			int condition = ast.first_child(node), then = ast.next_sibling(condition);
+			out.append("if (");
+			visit(condition);
+			out.append(") ");
+			visit(then);
+			if (ast.next_sibling(then) != NONE) {
+				out.append(" else ");
+				visit(ast.next_sibling(then));
+			}
+			return null;
+		}
+
+		protected Void loop(int node) {
+			int condition = ast.first_child(node);
+			out.append("while (");
+			visit(condition);
+			out.append(") ");
+			visit(ast.next_sibling(condition));
+			return null;
+		}
+
+		protected Void evaluate(int node) {
+			visit(ast.first_child(node));
+			out.append(';');
+			return null;
+		}
+
+		protected Void literal(int node) {
+			switch (ast.kind_of(node)) {
+				case INTEGER:   out.append(ast.int_value(node));                    break;
+				case FLOAT:     out.append(ast.float_value(node));                  break;
+				case STRING:    out.append('"').append(ast.str_value(node)).append('"'); break;
+				case BOOL:      out.append(ast.bool_value(node));                   break;
+				default:        out.append("null");
+			}
+			return null;
+		}
+
+		protected Void name(int node) {
+			out.append(symbols.name(ast.symbol_of(node)));
+			return null;
+		}
+
+		protected Void unary(int node) {
+			out.append('(').append(spelling[ast.payload_of(node)]);
+			visit(ast.first_child(node));
+			out.append(')');
+			return null;
+		}
+
+		protected Void binary(int node) {
+			int left = ast.first_child(node);
+			out.append('(');
+			visit(left);
+			out.append(' ').append(spelling[ast.payload_of(node)]).append(' ');
+			visit(ast.next_sibling(left));
+			out.append(')');
+			return null;
+		}
+
+		protected Void assign(int node) {
+			return binary(node);
+		}
+
+		protected Void ternary(int node) {
+			int condition = ast.first_child(node), then = ast.next_sibling(condition);
+			out.append('(');
+			visit(condition);
+			out.append(" ? ");
+			visit(then);
+			out.append(" : ");
+			visit(ast.next_sibling(then));
+			out.append(')');
+			return null;
+		}
+
+		protected Void call(int node) {
+			int callee = ast.first_child(node);
+			visit(callee);
+			out.append('(');
+			list(ast.next_sibling(callee));
+			out.append(')');
+			return null;
+		}
+
+		protected Void index(int node) {
+			int target = ast.first_child(node);
+			visit(target);
+			out.append('[');
+			visit(ast.next_sibling(target));
+			out.append(']');
+			return null;
+		}
+
+		protected Void member(int node) {
+			visit(ast.first_child(node));
+			out.append('.').append(symbols.name(ast.symbol_of(node)));
+			return null;
+		}
+
+		protected Void postfix(int node) {
+			out.append('(');
+			visit(ast.first_child(node));
+			out.append(spelling[ast.payload_of(node)]).append(')');
+			return null;
+		}
+	}
+}
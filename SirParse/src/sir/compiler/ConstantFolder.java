@@ -0,0 +1,110 @@
+package sir.compiler;
+
+import static sir.compiler.Token.Type.*;
+
+/**
+ * Folds the constant expressions of a tree into literals, in place.
+ * <p>
+ * Operators whose operands are literals are evaluated with the semantics of
+ * {@link Value}, and operators that would fail at runtime are left for the
+ * runtime to report. Besides, '&&' and '||' are cut short and '?:' reduced to
+ * one branch when their condition is constant. Identities such as
+ * {@code x - 0} are kept, as they fail at runtime when {@code x} is no
+ * number. Initializers of global variables must be constant, those that
+ * are not are reported.
+ * <p>
+ * The tree must be free of syntax errors. Visiting a node returns its value
+ * if it is constant after folding, null otherwise.
+ */
+public class ConstantFolder extends Ast.Visitor<Value> {
+	private final SymbolTable symbols;
+	private final Diagnostics diagnostics;
+
+	private boolean global;
+	private int folded;
+
+	public ConstantFolder(Ast ast, SymbolTable symbols, Diagnostics diagnostics) {
+		super(ast);
+		this.symbols = symbols;
+		this.diagnostics = diagnostics;
+	}
+
+	/**
+	 * Count of nodes folded or removed so far.
+	 */
+	public int folded() {
+		return folded;
+	}
+
+	protected Value children(int node) {
+		super.children(node);
+		return null;
+	}
+
+	protected Value global(int node) {
+		global = ast.linkage_of(node) != SymbolTable.EXTERN;
+		children(node);
+		global = false;
+		return null;
+	}
+
+	protected Value declarator(int node) {
+		int initializer = ast.first_child(node);
+		if (initializer != Ast.NONE && visit(initializer) == null && global)
+			diagnostics.report(ast.line_of(node), "Initializer of global variable '%s' is not a constant expression",
+					symbols.name(ast.symbol_of(node)));
+		return null;
+	}
+
+	protected Value literal(int node) {
+		return Value.Literal(ast, node);
+	}
+
+	protected Value name(int node) {
+		return null;
+	}
+
+	protected Value unary(int node) {
+		Value operand = visit(ast.first_child(node));
+		return operand == null ? null : fold(node, Value.unary(ast.op_of(node), operand));
+	}
+
+	protected Value binary(int node) {
+		Token.Type op = ast.op_of(node);
+		int left = ast.first_child(node), right = ast.next_sibling(left);
+		Value a = visit(left);
+		if (a != null && (op == AND && !a.truthy() || op == OR && a.truthy()))
+			return fold(node, Value.BOOL(a.truthy()));
+		Value b = visit(right);
+		return a != null && b != null ? fold(node, Value.binary(op, a, b)) : null;
+	}
+
+	protected Value ternary(int node) {
+		int condition = ast.first_child(node), then = ast.next_sibling(condition), otherwise = ast.next_sibling(then);
+		Value test = visit(condition);
+		Value a = visit(then), b = visit(otherwise);
+		if (test == null) return null;
+		return test.truthy() ? forward(node, then, a) : forward(node, otherwise, b);
+	}
+
+	// Replaces the node by one of its operands, whose value is given
+	private Value forward(int node, int operand, Value value) {
+		ast.replace(node, operand);
+		folded++;
+		return value;
+	}
+
+	// Replaces the node by the literal of its value, if it has one
+	private Value fold(int node, Value value) {
+		if (value == null) return null;
+		switch (value.type_of()) {
+			case INTEGER:   ast.replace_number(node, Ast.Kind.INTEGER, value.int_value()); break;
+			case FLOAT:     ast.replace_number(node, Ast.Kind.FLOAT, Double.doubleToRawLongBits(value.float_value())); break;
+			case STRING:    ast.replace_string(node, value.str_value()); break;
+			case BOOL:      ast.replace(node, Ast.Kind.BOOL, value.bool_value() ? 1 : 0); break;
+			default:        ast.replace(node, Ast.Kind.NULL, SymbolTable.NONE);
+		}
+		folded++;
+		return value;
+	}
+}
@@ -0,0 +1,70 @@
+package sir.compiler;
+
+import java.util.Arrays;
+
+import static sir.compiler.SymbolTable.*;
+import static sir.compiler.Token.Type.*;
+
+/**
+ * Finds top-level declaration boundaries in a token sequence without parsing
+ * it, by brace matching after routine headers and looking for ';' after
+ * global variables.
+ * <p>
+ * Tokens are fed one at a time; a declaration starts on the token following a
+ * ';' or a '}' closing a routine body at top level, and on any top-level
+ * 'static', 'extern', 'var' or 'routine' keyword not already part of a
+ * declaration header, so that a missing ';' does not swallow the rest of the
+ * file.
+ */
+public class DeclarationScanner {
+	private int depth;
+	private boolean ended;
+	private boolean qualified;
+
+	public DeclarationScanner() {
+		this.depth = 0;
+		this.ended = true;
+		this.qualified = false;
+	}
+
+	/**
+	 * Feeds the next token, returns true if it starts a new top-level
+	 * declaration.
+	 */
+	public boolean feed(Token.Type type, int symbol) {
+		boolean starts = depth == 0 && (ended || (type == KEYWORD && !qualified && (symbol == STATIC
+				|| symbol == EXTERN || symbol == VAR || symbol == ROUTINE)));
+
+		ended = false;
+		qualified = depth == 0 && type == KEYWORD && (symbol == STATIC || symbol == EXTERN || symbol == VAR || symbol == ROUTINE);
+		switch (type) {
+			case L_BRACE:
+				depth++;
+				break;
+			case R_BRACE:
+				if (depth > 0 && --depth == 0) ended = true;
+				break;
+			case SEMICOLON:
+				if (depth == 0) ended = true;
+				break;
+		}
+		return starts;
+	}
+
+	/**
+	 * Index of the first token of every top-level declaration of the stream,
+	 * the EOF token excluded.
+	 */
+	public static int[] boundaries(TokenStream tokens) {
+		DeclarationScanner scanner = new DeclarationScanner();
+		int[] boundaries = new int[16];
+		int count = 0;
+		for (int i = 0; i < tokens.size() - 1; i++)
+			if (scanner.feed(tokens.type_of(i), tokens.symbol_of(i))) {
+				if (count == boundaries.length)
+					boundaries = Arrays.copyOf(boundaries, count * 2);
+				boundaries[count++] = i;
+			}
+		return Arrays.copyOf(boundaries, count);
+	}
+}
@@ -0,0 +1,227 @@
+package sir.compiler;
+
+import java.util.ArrayList;
+
+/**
+ * Incrementally maintained lexing and parsing state of a source being edited.
+ * <p>
+ * The text is split into units, one per top-level declaration, each holding
+ * its own tokens and diagnostics. An edit only re-lexes from the unit it
+ * touches until lexing resynchronizes with an unchanged unit boundary, and only
+ * the units in between are parsed again. The units after the edit are moved
+ * lazily: a single pending shift applies to every unit from a given index, and
+ * is only settled over the units between two successive edit points.
+ */
+public class Document {
+	private final String path;
+	private final EditBuffer text;
+	private final SymbolTable symbols;
+	private final ArrayList<Unit> units;
+
+	// Shift not yet applied to the units from index pending_from
+	private int pending_from, pending_offset, pending_lines;
+
+	/**
+	 * A top-level declaration with the whitespace and comments following it.
+	 * It is its own {@link Source} so that its tokens stay valid when the
+	 * unit moves.
+	 */
+	private class Unit implements Source {
+		int start, line;
+		TokenStream tokens;
+		Diagnostics diagnostics;
+		int parsed_line;   // line of the unit when its diagnostics were reported
+
+		Unit(int start, int line) {
+			this.start = start;
+			this.line = line;
+		}
+
+		public String path() {
+			return path;
+		}
+
+		public int length() {
+			return text.length() - start;
+		}
+
+		public char char_at(int at) {
+			return text.char_at(start + at);
+		}
+
+		public String substring(int start, int end) {
+			return text.substring(this.start + start, this.start + end);
+		}
+
+		void parse() {
+			parsed_line = line;
+			new Parser(tokens.cursor(), diagnostics, null).check();
+		}
+	}
+
+	public Document(String path, CharSequence text) {
+		this.path = path;
+		this.text = new EditBuffer(path, text);
+		this.symbols = new SymbolTable();
+		this.units = new ArrayList<>();
+		units.add(new Unit(0, 1));
+		pending_from = 1;
+		relex(0, 0, 0);
+	}
+
+	public Source text() {
+		return text;
+	}
+
+	public SymbolTable symbols() {
+		return symbols;
+	}
+
+	/**
+	 * Replaces {@code removed} characters at {@code offset} by
+	 * {@code inserted}, then brings tokens and diagnostics up to date.
+	 */
+	public void edit(int offset, int removed, CharSequence inserted) {
+		text.replace(offset, removed, inserted);
+		// The unit holding the character before the edit may glue to the
+		// inserted text, and whether its first token still starts a
+		// declaration depends on the tokens before it: start from the unit
+		// before, whose boundary the edit leaves as it is.
+		relex(Math.max(unit_at(Math.max(offset - 1, 0)) - 1, 0), offset + removed, offset + inserted.length());
+	}
+
+	/**
+	 * Lexical and syntax errors of every declaration, in source order.
+	 */
+	public Diagnostics diagnostics() {
+		settle(units.size());
+		Diagnostics diagnostics = new Diagnostics();
+		for (Unit unit : units)
+			diagnostics.merge(unit.diagnostics, unit.line - unit.parsed_line);
+		diagnostics.sort();
+		return diagnostics;
+	}
+
+	public int declarations() {
+		return units.size();
+	}
+
+	/**
+	 * Tokens of the {@code n}th declaration, offsets being relative to the
+	 * start of the declaration.
+	 */
+	public TokenStream tokens(int n) {
+		settle(units.size());
+		return units.get(n).tokens;
+	}
+
+	private int start(int u) {
+		return units.get(u).start + (u >= pending_from ? pending_offset : 0);
+	}
+
+	private int line(int u) {
+		return units.get(u).line + (u >= pending_from ? pending_lines : 0);
+	}
+
+	/**
+	 * Moves the pending shift so that it starts at unit {@code from},
+	 * applying or withdrawing it over the units in between.
+	 */
+	private void settle(int from) {
+		int sign = from > pending_from ? 1 : -1;
+		for (int u = Math.min(from, pending_from); u < Math.max(from, pending_from); u++) {
+			Unit unit = units.get(u);
+			unit.start += sign * pending_offset;
+			unit.line += sign * pending_lines;
+			unit.tokens.shift_lines(sign * pending_lines);
+		}
+		pending_from = from;
+	}
+
+	private int unit_at(int offset) {
+		int low = 0, high = units.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (start(mid) <= offset) low = mid;
+			else high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Re-lexes from unit {@code first}, the edited range ending at
+	 * {@code old_end} before the edit and at {@code new_end} after it.
+	 */
+	private void relex(int first, int old_end, int new_end) {
+		int delta = new_end - old_end;
+		Lexer lexer = new Lexer(text, symbols, start(first), line(first), null);
+		TokenStream tokens = lexer.production();
+		DeclarationScanner scanner = new DeclarationScanner();
+
+		ArrayList<Unit> relexed = new ArrayList<>();
+		ArrayList<Integer> heads = new ArrayList<>();
+		relexed.add(new Unit(start(first), line(first)));
+		heads.add(0);
+
+		int next = first + 1;           // first old unit that may be reused
+		int resync = units.size();      // first old unit actually reused
+		int line_delta = 0;
+
+		while (lexer.lex_token()) {
+			int i = tokens.size() - 1;
+			if (!scanner.feed(tokens.type_of(i), tokens.symbol_of(i)) || i == 0)
+				continue;
+
+			// Past the edit, a boundary the scanner finds where an old unit
+			// starts ends the relexing: the state of the scanner after the
+			// first token of a declaration only depends on that token, so the
+			// old units after it are those a fresh scan would find.
+			int start = tokens.start_of(i);
+			if (start >= new_end) {
+				while (next < units.size() && start(next) + delta < start)
+					next++;
+				if (next < units.size() && start(next) >= old_end && start(next) + delta == start) {
+					resync = next;
+					line_delta = tokens.line_of(i) - line(next);
+					break;
+				}
+			}
+			relexed.add(new Unit(start, tokens.line_of(i)));
+			heads.add(i);
+		}
+
+		Diagnostics lexical = lexer.diagnostics();
+		for (int u = 0, d = 0; u < relexed.size(); u++) {
+			Unit unit = relexed.get(u);
+			int head = heads.get(u), tail, eof, eof_line;
+			if (u + 1 < relexed.size()) {
+				tail = heads.get(u + 1);
+				eof = relexed.get(u + 1).start;
+				eof_line = relexed.get(u + 1).line;
+			} else if (resync < units.size()) {
+				tail = tokens.size() - 1;
+				eof = start(resync) + delta;
+				eof_line = line(resync) + line_delta;
+			} else {
+				tail = tokens.size();
+				eof = text.length();
+				eof_line = lexer.line();
+			}
+			// Lexical errors go to the unit holding their offset, as several
+			// units may share a line. Those of the reused unit are already
+			// in it.
+			unit.diagnostics = new Diagnostics();
+			for (; d < lexical.size() && lexical.get(d).offset_of() < eof; d++)
+				unit.diagnostics.report(lexical.get(d));
+			unit.tokens = tokens.slice(head, tail, unit, unit.start, eof, eof_line);
+			unit.parse();
+		}
+
+		settle(resync);
+		pending_offset += delta;
+		pending_lines += line_delta;
+		units.subList(first, resync).clear();
+		units.addAll(first, relexed);
+		pending_from = first + relexed.size();
+	}
+}
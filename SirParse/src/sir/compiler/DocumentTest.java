@@ -0,0 +1,72 @@
+package sir.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Edits documents at random and checks that every edit leaves the same
+ * declarations, tokens and diagnostics as a fresh document of the text.
+ */
+public class DocumentTest {
+	private static final String[] PIECES = {
+			"var a = 1;", "var b = 2, c;", "static ", "extern ", "routine f(x) { return x + 1; }",
+			"routine g() { if (a) { l: goto l; } }", "/", "@", "rf", " ", "\n", ";", "{", "}",
+			"\"s", "\"a\\q\"", "/* c */", "/*", "1.2.3", "99999999999999999999", "// c\n"
+	};
+
+	public static void main(String[] args) {
+		// Deleting the space makes 'static' an identifier following '/'
+		String text = "var a = 1;\n/ static rf;\nvar b = 2;\n";
+		Document document = new Document("test", text);
+		document.edit(text.indexOf(" rf"), 1, "");
+		check(document, text.replace(" rf", "rf"), "deleting before a declaration");
+
+		Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 1);
+		int trials = 3000, failed = 0;
+		for (int trial = 0; trial < trials; trial++) {
+			StringBuilder source = new StringBuilder();
+			for (int i = random.nextInt(10); i > 0; i--)
+				source.append(PIECES[random.nextInt(PIECES.length)]);
+			document = new Document("test", source);
+			for (int edit = 0; edit < 8; edit++) {
+				int offset = random.nextInt(source.length() + 1);
+				int removed = random.nextInt(Math.min(6, source.length() - offset) + 1);
+				String inserted = random.nextBoolean() ? PIECES[random.nextInt(PIECES.length)] : "";
+				source.replace(offset, offset + removed, inserted);
+				document.edit(offset, removed, inserted);
+				if (!check(document, source.toString(), "trial " + trial + ", edit " + edit)) {
+					failed++;
+					break;
+				}
+			}
+		}
+		System.out.println((trials - failed) + " of " + trials + " edit sequences match a fresh document");
+	}
+
+	private static boolean check(Document document, String text, String what) {
+		String incremental = describe(document), fresh = describe(new Document("test", text));
+		if (incremental.equals(fresh)) return true;
+		System.out.println(what + " on \"" + text + "\":\n  edited: " + incremental + "\n  fresh:  " + fresh);
+		return false;
+	}
+
+	// Tokens of every declaration and the diagnostics, the latter in an
+	// order that does not depend on how units were split
+	private static String describe(Document document) {
+		StringBuilder out = new StringBuilder();
+		for (int n = 0; n < document.declarations(); n++) {
+			TokenStream tokens = document.tokens(n);
+			out.append('[');
+			for (int i = 0; i < tokens.size(); i++)
+				out.append(tokens.type_of(i)).append(tokens.line_of(i)).append(' ');
+			out.append(']');
+		}
+		ArrayList<String> diagnostics = new ArrayList<>();
+		Diagnostics all = document.diagnostics();
+		for (int i = 0; i < all.size(); i++)
+			diagnostics.add(all.get(i).toString());
+		Collections.sort(diagnostics);
+		return out.append(' ').append(diagnostics).toString();
+	}
+}
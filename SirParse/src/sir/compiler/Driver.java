@@ -0,0 +1,452 @@
+package sir.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static sir.compiler.SymbolTable.*;
+
+/**
+ * Compiles every {@code .sir} file of a source tree.
+ * <p>
+ * Each file is lexed, parsed, its constants folded and its names resolved as
+ * its own task on a pool. The result, the tree of the file with its symbols
+ * and diagnostics, is stored in an on-disk cache keyed by the SHA-256 of the
+ * compiler version and of the file content, so that a build only parses the
+ * files no earlier build has seen. A driver also remembers its last build,
+ * the files whose content did not change are not even looked up in the cache.
+ * <p>
+ * Files are then linked: every {@code extern} name must be defined, neither
+ * {@code static} nor {@code extern}, by exactly one file. Linking is
+ * incremental as well, only the files that changed and the files declaring
+ * or using a name whose definitions changed are linked again.
+ */
+public class Driver {
+	// Part of the cache key, to be changed along with what the artifacts hold
+	public static final String VERSION = "sir 0.1, ast 4";
+
+	private static final String EXTENSION = ".sir";
+	private static final String ARTIFACT = ".sirc";
+
+	/**
+	 * Compilation of a single file.
+	 */
+	public static class Unit {
+		private final String path;
+		private final byte[] hash;
+		private SymbolTable symbols;
+		private Ast ast;
+		private Diagnostics diagnostics;    // errors found compiling the file alone
+		private Diagnostics links;          // link errors
+		private Resolver resolver;          // null if the file has syntax errors
+		private int[] definitions, externs; // DECLARATOR nodes of the top-level declarations
+		private boolean cached;
+
+		private Unit(String path, byte[] hash) {
+			this.path = path;
+			this.hash = hash;
+			this.links = new Diagnostics();
+		}
+
+		/**
+		 * Path of the file relative to the root, '/' separated.
+		 */
+		public String path() {
+			return path;
+		}
+
+		public SymbolTable symbols() {
+			return symbols;
+		}
+
+		public Ast ast() {
+			return ast;
+		}
+
+		public Diagnostics diagnostics() {
+			return diagnostics;
+		}
+
+		public Diagnostics link_diagnostics() {
+			return links;
+		}
+
+		/**
+		 * Names and slots of the tree, null if the file has syntax errors.
+		 */
+		public Resolver resolver() {
+			return resolver;
+		}
+
+		/**
+		 * True if the unit was read from the cache instead of parsed.
+		 */
+		public boolean cached() {
+			return cached;
+		}
+
+		private String name(int declarator) {
+			return symbols.name(ast.symbol_of(declarator));
+		}
+
+		private void summarize() {
+			int[] definitions = new int[8], externs = new int[8];
+			int defined = 0, declared = 0;
+			for (int declaration = ast.first_child(0); declaration != Ast.NONE; declaration = ast.next_sibling(declaration)) {
+				int linkage = ast.linkage_of(declaration);
+				if (linkage == STATIC) continue;
+				for (int child = ast.first_child(declaration); child != Ast.NONE; child = ast.next_sibling(child)) {
+					if (ast.kind_of(child) != Ast.Kind.DECLARATOR) continue;
+					if (linkage == EXTERN) {
+						if (declared == externs.length) externs = Arrays.copyOf(externs, declared * 2);
+						externs[declared++] = child;
+					} else {
+						if (defined == definitions.length) definitions = Arrays.copyOf(definitions, defined * 2);
+						definitions[defined++] = child;
+					}
+				}
+			}
+			this.definitions = Arrays.copyOf(definitions, defined);
+			this.externs = Arrays.copyOf(externs, declared);
+		}
+	}
+
+	private final Path root;
+	private final Path cache;
+	private final ForkJoinPool pool;
+
+	private final TreeMap<String, Unit> units;
+	private final HashMap<String, List<Unit>> definers;
+	private final HashMap<String, List<Unit>> users;
+
+	// Counts of the last build
+	private int parsed, loaded, linked;
+
+	/**
+	 * Driver of the files under {@code root}, caching artifacts in the
+	 * {@code cache} directory, or nowhere if it is null.
+	 */
+	public Driver(Path root, Path cache, ForkJoinPool pool) {
+		this.root = root;
+		this.cache = cache;
+		this.pool = pool;
+		this.units = new TreeMap<>();
+		this.definers = new HashMap<>();
+		this.users = new HashMap<>();
+	}
+
+	/**
+	 * Brings every unit up to date with the files of the tree, returns true
+	 * if no unit has errors.
+	 */
+	public boolean build() throws IOException {
+		if (cache != null)
+			Files.createDirectories(cache);
+		parsed = loaded = linked = 0;
+
+		List<ForkJoinTask<Unit>> tasks = new ArrayList<>();
+		for (Path file : sources()) {
+			final String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+			final Unit previous = units.get(path);
+			tasks.add(pool.submit(() -> compile(file, path, previous)));
+		}
+
+		List<Unit> changed = new ArrayList<>(), stale = new ArrayList<>();
+		TreeMap<String, Unit> built = new TreeMap<>();
+		for (ForkJoinTask<Unit> task : tasks) {
+			Unit unit = join(task);
+			Unit previous = units.get(unit.path);
+			built.put(unit.path, unit);
+			if (unit == previous) continue;
+			changed.add(unit);
+			if (previous != null) stale.add(previous);
+			if (unit.cached) loaded++;
+			else parsed++;
+		}
+		for (Unit unit : units.values())
+			if (!built.containsKey(unit.path)) stale.add(unit);
+		units.clear();
+		units.putAll(built);
+
+		link(changed, stale);
+		return errors() == 0;
+	}
+
+	public Collection<Unit> units() {
+		return Collections.unmodifiableCollection(units.values());
+	}
+
+	public Unit unit(String path) {
+		return units.get(path);
+	}
+
+	public int errors() {
+		int errors = 0;
+		for (Unit unit : units.values())
+			errors += unit.diagnostics.size() + unit.links.size();
+		return errors;
+	}
+
+	/**
+	 * Prints the diagnostics of every unit, in path order.
+	 */
+	public void render(PrintStream out) {
+		for (Unit unit : units.values()) {
+			unit.diagnostics.render(unit.path, out);
+			unit.links.render(unit.path, out);
+		}
+	}
+
+	public int parsed() {
+		return parsed;
+	}
+
+	public int loaded() {
+		return loaded;
+	}
+
+	public int linked() {
+		return linked;
+	}
+
+	private List<Path> sources() throws IOException {
+		try (Stream<Path> files = Files.walk(root)) {
+			return files.filter(file -> file.toString().endsWith(EXTENSION) && Files.isRegularFile(file))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static Unit join(ForkJoinTask<Unit> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Build interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// Previous unit if the file did not change, else the cached or parsed one
+	private Unit compile(Path file, String path, Unit previous) {
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file);
+		} catch (IOException e) {
+			Unit unit = new Unit(path, null);
+			parse(unit, new byte[0]);
+			unit.diagnostics.report(0, "Cannot read file: %s", e);
+			unit.summarize();
+			return unit;
+		}
+
+		Unit unit = new Unit(path, hash(bytes));
+		if (previous != null && Arrays.equals(previous.hash, unit.hash))
+			return previous;
+		if (!load(unit)) {
+			parse(unit, bytes);
+			store(unit);
+		}
+		unit.summarize();
+		return unit;
+	}
+
+	private static void parse(Unit unit, byte[] bytes) {
+		Lexer lexer = new Lexer(new StringSource(unit.path, new String(bytes, StandardCharsets.UTF_8)));
+		Parser parser = new Parser(lexer, lexer.diagnostics(), null);
+		unit.symbols = lexer.production().symbols();
+		unit.ast = parser.ast();
+		unit.diagnostics = parser.diagnostics();
+		if (parser.check()) {
+			new ConstantFolder(unit.ast, unit.symbols, unit.diagnostics).visit(0);
+			unit.resolver = new Resolver(unit.ast, unit.symbols, unit.diagnostics);
+			unit.resolver.visit(0);
+		}
+	}
+
+	private static byte[] hash(byte[] bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			return digest.digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Path artifact(Unit unit) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : unit.hash)
+			name.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return cache.resolve(name.append(ARTIFACT).toString());
+	}
+
+	/*
+	 * An artifact holds the version, then the length and CRC-32 of the rest:
+	 * the symbols past the keywords in id order, the tree, whether it parsed
+	 * without errors and the diagnostics rendered. A tree without syntax
+	 * errors is resolved again on loading, its errors being among the
+	 * diagnostics already. Any failure to read or write one only costs a
+	 * parse: an artifact whose length or checksum is off, or whose content
+	 * does not make a tree, is not loaded.
+	 */
+
+	private boolean load(Unit unit) {
+		if (cache == null) return false;
+		Path artifact = artifact(unit);
+		if (!Files.isRegularFile(artifact)) return false;
+		try {
+			byte[] content = Files.readAllBytes(artifact);
+			DataInputStream header = new DataInputStream(new ByteArrayInputStream(content));
+			if (!header.readUTF().equals(VERSION)) return false;
+			int length = header.readInt();
+			long checksum = header.readLong();
+			int at = content.length - header.available();
+			if (length != content.length - at) return false;
+			CRC32 crc = new CRC32();
+			crc.update(content, at, length);
+			if (crc.getValue() != checksum) return false;
+
+			ByteArrayInputStream bytes = new ByteArrayInputStream(content, at, length);
+			DataInputStream in = new DataInputStream(bytes);
+			SymbolTable symbols = new SymbolTable();
+			int count = in.readInt();
+			if (count < 0 || count > bytes.available() / 2) return false;
+			for (; count > 0; count--)
+				symbols.intern(in.readUTF());
+			Ast ast = Ast.read(in, bytes.available());
+			boolean checked = in.readBoolean();
+			Diagnostics diagnostics = new Diagnostics();
+			count = in.readInt();
+			if (count < 0 || count > bytes.available() / 6) return false;
+			for (; count > 0; count--)
+				diagnostics.report(in.readInt(), "%s", in.readUTF());
+			if (bytes.available() != 0) return false;
+
+			unit.symbols = symbols;
+			unit.ast = ast;
+			unit.diagnostics = diagnostics;
+			if (checked) {
+				unit.resolver = new Resolver(ast, symbols, new Diagnostics());
+				unit.resolver.visit(0);
+			}
+			unit.cached = true;
+			return true;
+		} catch (IOException | RuntimeException e) {
+			// Malformed trees can make the resolver fail as well
+			return false;
+		}
+	}
+
+	private void store(Unit unit) {
+		if (cache == null) return;
+		Path temporary = null;
+		try {
+			temporary = Files.createTempFile(cache, "artifact", ".tmp");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeInt(unit.symbols.size() - keywords.length);
+				for (int id = keywords.length; id < unit.symbols.size(); id++)
+					out.writeUTF(unit.symbols.name(id));
+				unit.ast.write(out);
+				out.writeBoolean(unit.resolver != null);
+				out.writeInt(unit.diagnostics.size());
+				for (int i = 0; i < unit.diagnostics.size(); i++) {
+					out.writeInt(unit.diagnostics.get(i).line_of());
+					out.writeUTF(unit.diagnostics.get(i).message());
+				}
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				out.writeUTF(VERSION);
+				out.writeInt(bytes.size());
+				out.writeLong(crc.getValue());
+				bytes.writeTo(out);
+			}
+			Files.move(temporary, artifact(unit), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			try {
+				if (temporary != null) Files.deleteIfExists(temporary);
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Links the changed units again, along with the units defining or using
+	 * a name defined by a changed or stale unit.
+	 */
+	private void link(List<Unit> changed, List<Unit> stale) {
+		HashSet<String> touched = new HashSet<>();
+		for (Unit unit : stale) {
+			for (int node : unit.definitions) {
+				definers.get(unit.name(node)).remove(unit);
+				touched.add(unit.name(node));
+			}
+			for (int node : unit.externs)
+				users.get(unit.name(node)).remove(unit);
+		}
+		for (Unit unit : changed) {
+			for (int node : unit.definitions) {
+				definers.computeIfAbsent(unit.name(node), name -> new ArrayList<>()).add(unit);
+				touched.add(unit.name(node));
+			}
+			for (int node : unit.externs)
+				users.computeIfAbsent(unit.name(node), name -> new ArrayList<>()).add(unit);
+		}
+
+		LinkedHashSet<Unit> relink = new LinkedHashSet<>(changed);
+		for (String name : touched) {
+			relink.addAll(definers.getOrDefault(name, Collections.emptyList()));
+			relink.addAll(users.getOrDefault(name, Collections.emptyList()));
+		}
+		for (Unit unit : relink)
+			link(unit);
+		linked = relink.size();
+	}
+
+	private void link(Unit unit) {
+		unit.links = new Diagnostics();
+		for (int node : unit.externs) {
+			String name = unit.name(node);
+			if (definers.getOrDefault(name, Collections.emptyList()).isEmpty())
+				unit.links.report(unit.ast.line_of(node), "Unresolved extern '%s'", name);
+		}
+		for (int node : unit.definitions) {
+			String name = unit.name(node);
+			for (Unit other : definers.get(name))
+				if (other != unit)
+					unit.links.report(unit.ast.line_of(node), "'%s' is also defined in %s", name, other.path);
+		}
+	}
+
+	/**
+	 * Builds the tree given as first argument, caching artifacts in the
+	 * directory given as second argument, {@code .sircache} under the tree
+	 * by default.
+	 */
+	public static void main(String[] args) throws IOException {
+		Path root = Paths.get(args.length > 0 ? args[0] : ".");
+		Path cache = args.length > 1 ? Paths.get(args[1]) : root.resolve(".sircache");
+		Driver driver = new Driver(root, cache, ForkJoinPool.commonPool());
+		boolean ok = driver.build();
+		driver.render(System.err);
+		System.out.println(driver.units().size() + " files, " + driver.parsed() + " parsed, "
+				+ driver.loaded() + " loaded from cache, " + driver.linked() + " linked");
+		if (!ok) System.exit(1);
+	}
+}
@@ -0,0 +1,430 @@
+package sir.compiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static sir.compiler.Token.Type.*;
+
+/**
+ * {@link Evaluable} compiling every expression once.
+ * <p>
+ * An expression is parsed, its constants folded, and compiled to a short
+ * register code run over a {@link ValueStack}, so that evaluating it again
+ * neither lexes nor parses nor allocates, strings and stores apart. Compiled
+ * expressions are kept in a bounded LRU cache keyed by their source text,
+ * split in independently locked segments so that threads evaluating
+ * different expressions do not contend. Callers holding on to the
+ * {@link Compiled} handle of an expression skip the cache lookup as well.
+ * <p>
+ * Expressions read and assign the variables of the cache, which are looked
+ * up by slot rather than by name. Calls, indexes and members are not
+ * supported. Variables live in chunks that are never copied, so that an
+ * assignment is not lost when another thread adds variables, but they are
+ * not synchronized: concurrent assignments to one variable race as plain
+ * fields would.
+ */
+public class ExpressionCache implements Evaluable {
+	// Instructions, each followed by its operands
+	private static final int CONST = 0;     // r k:    r = constants[k]
+	private static final int LOAD = 1;      // r g:    r = variable g
+	private static final int STORE = 2;     // r g:    variable g = r
+	private static final int UNARY = 3;     // op r a
+	private static final int BINARY = 4;    // op r a b
+	private static final int TRUTH = 5;     // r:      r = r as a boolean
+	private static final int JUMP = 6;      // target
+	private static final int JUMP_IF = 7;   // r target
+	private static final int JUMP_UNLESS = 8;
+
+	private static final Token.Type[] TYPES = Token.Type.values();
+
+	// Variables per chunk, a power of two
+	private static final int CHUNK = 16;
+
+	/**
+	 * An expression compiled by a cache, to be evaluated by the same cache.
+	 */
+	public static final class Compiled {
+		private final String source;
+		private final int[] code;
+		private final Value[] constants;
+		private final int registers;
+
+		private Compiled(String source, int[] code, Value[] constants, int registers) {
+			this.source = source;
+			this.code = code;
+			this.constants = constants;
+			this.registers = registers;
+		}
+
+		public String source() {
+			return source;
+		}
+	}
+
+	private static final class Segment extends LinkedHashMap<String, Compiled> {
+		private final int capacity;
+		private final LongAdder evictions;
+
+		Segment(int capacity, LongAdder evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) {
+			if (size() <= capacity) return false;
+			evictions.increment();
+			return true;
+		}
+	}
+
+	private final Segment[] segments;
+	private final LongAdder hits, misses, evictions;
+
+	private final HashMap<String, Integer> slots;
+	private volatile Value[][] variables;
+
+	private final ThreadLocal<ValueStack> stacks = ThreadLocal.withInitial(() -> new ValueStack(16));
+
+	/**
+	 * Cache of about {@code capacity} expressions.
+	 */
+	public ExpressionCache(int capacity) {
+		int count = Integer.highestOneBit(Math.max(1, Math.min(16, capacity / 16)));
+		this.segments = new Segment[count];
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment((capacity + count - 1) / count, evictions);
+		this.slots = new HashMap<>();
+		this.variables = new Value[][] { new Value[CHUNK] };
+	}
+
+	/**
+	 * Evaluates an expression, compiling it unless it is cached.
+	 *
+	 * @throws IllegalArgumentException if the expression does not compile
+	 * @throws ArithmeticException      if an operator does not apply to its operands
+	 */
+	public Value evaluate(String expr) {
+		return evaluate(compile(expr));
+	}
+
+	public Value evaluate(Compiled expression) {
+		ValueStack stack = stacks.get();
+		stack.ensure(expression.registers);
+		int mark = stack.strings_mark();
+		try {
+			return run(expression, stack);
+		} finally {
+			stack.release_strings(mark);
+		}
+	}
+
+	/**
+	 * Compiled form of an expression, taken from the cache if it is there.
+	 *
+	 * @throws IllegalArgumentException if the expression does not compile
+	 */
+	public Compiled compile(String expr) {
+		int hash = expr.hashCode();
+		Segment segment = segments[(hash ^ hash >>> 16) & segments.length - 1];
+		Compiled compiled;
+		synchronized (segment) {
+			compiled = segment.get(expr);
+		}
+		if (compiled != null) {
+			hits.increment();
+			return compiled;
+		}
+		misses.increment();
+		compiled = new Compiler(expr).compile();
+		synchronized (segment) {
+			Compiled raced = segment.putIfAbsent(expr, compiled);
+			return raced != null ? raced : compiled;
+		}
+	}
+
+	public void define(String name, Value value) {
+		int slot = slot(name);
+		chunk_for(slot)[slot & CHUNK - 1] = value;
+	}
+
+	/**
+	 * Value of a variable, null if it was never assigned.
+	 */
+	public Value get(String name) {
+		Integer slot;
+		synchronized (slots) {
+			slot = slots.get(name);
+		}
+		return slot == null ? null : variable(slot);
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments)
+			synchronized (segment) {
+				size += segment.size();
+			}
+		return size;
+	}
+
+	private int slot(String name) {
+		synchronized (slots) {
+			Integer slot = slots.get(name);
+			if (slot == null)
+				slots.put(name, slot = slots.size());
+			return slot;
+		}
+	}
+
+	private Value variable(int slot) {
+		Value[][] variables = this.variables;
+		int chunk = slot / CHUNK;
+		return chunk < variables.length ? variables[chunk][slot & CHUNK - 1] : null;
+	}
+
+	// Chunk holding the slot, added if need be. Only the table of chunks is
+	// copied, a store into a chunk is seen by every later table
+	private Value[] chunk_for(int slot) {
+		Value[][] variables = this.variables;
+		int chunk = slot / CHUNK;
+		if (chunk < variables.length) return variables[chunk];
+		synchronized (slots) {
+			variables = this.variables;
+			if (chunk >= variables.length) {
+				int length = variables.length;
+				variables = Arrays.copyOf(variables, Math.max(chunk + 1, length * 2));
+				for (int i = length; i < variables.length; i++)
+					variables[i] = new Value[CHUNK];
+				this.variables = variables;
+			}
+			return variables[chunk];
+		}
+	}
+
+	private Value run(Compiled expression, ValueStack stack) {
+		int[] code = expression.code;
+		Value[] constants = expression.constants;
+		int pc = 0;
+		while (pc < code.length) {
+			switch (code[pc]) {
+				case CONST:
+					stack.set(code[pc + 1], constants[code[pc + 2]]);
+					pc += 3;
+					break;
+				case LOAD: {
+					Value value = variable(code[pc + 2]);
+					if (value == null) stack.set_null(code[pc + 1]);
+					else stack.set(code[pc + 1], value);
+					pc += 3;
+					break;
+				}
+				case STORE:
+					chunk_for(code[pc + 2])[code[pc + 2] & CHUNK - 1] = stack.get(code[pc + 1]);
+					pc += 3;
+					break;
+				case UNARY:
+					if (!stack.unary(TYPES[code[pc + 1]], code[pc + 2], code[pc + 3]))
+						throw failure(expression, TYPES[code[pc + 1]], stack, code[pc + 3], -1);
+					pc += 4;
+					break;
+				case BINARY:
+					if (!stack.binary(TYPES[code[pc + 1]], code[pc + 2], code[pc + 3], code[pc + 4]))
+						throw failure(expression, TYPES[code[pc + 1]], stack, code[pc + 3], code[pc + 4]);
+					pc += 5;
+					break;
+				case TRUTH:
+					stack.set_bool(code[pc + 1], stack.truthy(code[pc + 1]));
+					pc += 2;
+					break;
+				case JUMP:
+					pc = code[pc + 1];
+					break;
+				case JUMP_IF:
+					pc = stack.truthy(code[pc + 1]) ? code[pc + 2] : pc + 3;
+					break;
+				case JUMP_UNLESS:
+					pc = stack.truthy(code[pc + 1]) ? pc + 3 : code[pc + 2];
+					break;
+			}
+		}
+		return stack.get(0);
+	}
+
+	private static ArithmeticException failure(Compiled expression, Token.Type op, ValueStack stack, int a, int b) {
+		String operands = b < 0 ? describe(stack, a) : describe(stack, a) + " and " + describe(stack, b);
+		return new ArithmeticException("Operator " + op + " does not apply to " + operands + " in " + expression.source);
+	}
+
+	private static String describe(ValueStack stack, int slot) {
+		return stack.type_of(slot) + " " + stack.str_value(slot);
+	}
+
+	// Compiles one expression, the value of a node going to its register
+	private class Compiler {
+		private final String source;
+		private final SymbolTable symbols;
+		private final Parser parser;
+		private final Ast ast;
+
+		private int[] code = new int[32];
+		private int size;
+		private Value[] constants = new Value[8];
+		private int constant_count;
+		private int registers;
+
+		Compiler(String source) {
+			this.source = source;
+			Lexer lexer = new Lexer(new StringSource("<expression>", source));
+			this.symbols = lexer.production().symbols();
+			this.parser = new Parser(lexer, lexer.diagnostics(), null);
+			this.ast = parser.ast();
+		}
+
+		Compiled compile() {
+			int root = parser.parse_expression();
+			if (root == Ast.NONE)
+				throw new IllegalArgumentException(parser.diagnostics().get(0).message() + " in " + source);
+			new ConstantFolder(ast, symbols, parser.diagnostics()).visit(root);
+			expression(root, 0);
+			return new Compiled(source, Arrays.copyOf(code, size), Arrays.copyOf(constants, constant_count), registers);
+		}
+
+		private void expression(int node, int r) {
+			registers = Math.max(registers, r + 1);
+			switch (ast.kind_of(node)) {
+				case NAME:
+					emit(LOAD, r, slot(symbols.name(ast.symbol_of(node))));
+					break;
+				case UNARY:
+					expression(ast.first_child(node), r);
+					emit(UNARY, ast.op_of(node).ordinal(), r, r);
+					break;
+				case BINARY:
+					binary(node, r);
+					break;
+				case TERNARY: {
+					int condition = ast.first_child(node), then = ast.next_sibling(condition);
+					expression(condition, r);
+					int otherwise = jump(JUMP_UNLESS, r);
+					expression(then, r);
+					int end = jump(JUMP, -1);
+					code[otherwise] = size;
+					expression(ast.next_sibling(then), r);
+					code[end] = size;
+					break;
+				}
+				case ASSIGN:
+					assign(node, r);
+					break;
+				case POSTFIX: {
+					int slot = variable(ast.first_child(node));
+					emit(LOAD, r, slot);
+					emit(CONST, r + 1, constant(Value.Integer(1)));
+					emit(BINARY, (ast.op_of(node) == PLUSPLUS ? PLUS : MINUS).ordinal(), r + 1, r, r + 1);
+					emit(STORE, r + 1, slot);
+					registers = Math.max(registers, r + 2);
+					break;
+				}
+				case CALL:
+				case INDEX:
+				case MEMBER:
+					throw new IllegalArgumentException("Calls, indexes and members are not supported in " + source);
+				default:
+					emit(CONST, r, constant(Value.Literal(ast, node)));
+			}
+		}
+
+		private void binary(int node, int r) {
+			Token.Type op = ast.op_of(node);
+			int left = ast.first_child(node), right = ast.next_sibling(left);
+			expression(left, r);
+			if (op == AND || op == OR) {
+				int end = jump(op == AND ? JUMP_UNLESS : JUMP_IF, r);
+				expression(right, r);
+				code[end] = size;
+				emit(TRUTH, r);
+			} else {
+				expression(right, r + 1);
+				emit(BINARY, op.ordinal(), r, r, r + 1);
+			}
+		}
+
+		private void assign(int node, int r) {
+			Token.Type op = ast.op_of(node);
+			int target = ast.first_child(node), value = ast.next_sibling(target);
+			int slot = variable(target);
+			if (op == STRICT_ASSIGN) {
+				expression(value, r);
+			} else if (op == B_NOT_ASSIGN) {
+				expression(value, r);
+				emit(UNARY, B_NOT.ordinal(), r, r);
+			} else {
+				emit(LOAD, r, slot);
+				expression(value, r + 1);
+				emit(BINARY, compound(op).ordinal(), r, r, r + 1);
+			}
+			emit(STORE, r, slot);
+		}
+
+		private Token.Type compound(Token.Type op) {
+			switch (op) {
+				case PLUS_ASSIGN:       return PLUS;
+				case MINUS_ASSIGN:      return MINUS;
+				case TIMES_ASSIGN:      return TIMES;
+				case DIV_ASSIGN:        return DIV;
+				case MOD_ASSIGN:        return MOD;
+				case B_AND_ASSIGN:      return B_AND;
+				case B_OR_ASSIGN:       return B_OR;
+				case B_XOR_ASSIGN:      return B_XOR;
+				case R_SHIFT_ASSIGN:    return R_SHIFT;
+				case L_SHIFT_ASSIGN:    return L_SHIFT;
+				default:
+					throw new IllegalArgumentException("Operator " + op + " is not supported in " + source);
+			}
+		}
+
+		private int variable(int node) {
+			if (ast.kind_of(node) != Ast.Kind.NAME)
+				throw new IllegalArgumentException("Only variables can be assigned in " + source);
+			return slot(symbols.name(ast.symbol_of(node)));
+		}
+
+		private int constant(Value value) {
+			if (constant_count == constants.length) constants = Arrays.copyOf(constants, constant_count * 2);
+			constants[constant_count] = value;
+			return constant_count++;
+		}
+
+		// Emits a jump, returns the index of its target to patch
+		private int jump(int instruction, int r) {
+			if (instruction == JUMP) emit(JUMP, -1);
+			else emit(instruction, r, -1);
+			return size - 1;
+		}
+
+		private void emit(int... words) {
+			if (size + words.length > code.length) code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+			System.arraycopy(words, 0, code, size, words.length);
+			size += words.length;
+		}
+	}
+}
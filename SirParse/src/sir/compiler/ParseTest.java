@@ -3,9 +3,11 @@ package sir.compiler;
 public class ParseTest {
 
 	public static void main(String[] args) {
-		Lexer lexer = new Lexer("SirLex/samples/main.sir", false);
-		lexer.lex();
-		Parser parser = new Parser(lexer.production(), "SirLex/samples/main.sir", true);
+		Metrics metrics = new Metrics(System.out);
+		Lexer lexer = new Lexer("SirLex/samples/main.sir", metrics);
+		Parser parser = new Parser(lexer, metrics);
 		parser.parse();
+		System.out.print(parser.ast().print(0, lexer.production().symbols()));
+		metrics.report(System.out);
 	}
 }
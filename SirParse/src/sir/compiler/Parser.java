@@ -1,252 +1,693 @@
 package sir.compiler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import static sir.compiler.SymbolTable.*;
 import static sir.compiler.Token.Type.*;
 
 public class Parser {
-	private String currentStmt;
+	// Binding powers of the infix operators, 0 for tokens that are none
+	private static final int ASSIGNMENT = 1, TERNARY = 2;
+	private static final int[] precedence = new int[Token.Type.values().length];
 
-	private ArrayList<Token> tokens;
-	private Token token;
-	private int at;
+	static {
+		infix(ASSIGNMENT, STRICT_ASSIGN, PLUS_ASSIGN, MINUS_ASSIGN, TIMES_ASSIGN, DIV_ASSIGN, MOD_ASSIGN,
+				B_AND_ASSIGN, B_OR_ASSIGN, B_XOR_ASSIGN, B_NOT_ASSIGN, R_SHIFT_ASSIGN, L_SHIFT_ASSIGN);
+		infix(TERNARY, QUESTION);
+		infix(3, OR);
+		infix(4, AND);
+		infix(5, B_OR);
+		infix(6, B_XOR);
+		infix(7, B_AND);
+		infix(8, EQUALS, NEQUALS);
+		infix(9, LT, LEQ, GT, GEQ);
+		infix(10, R_SHIFT, L_SHIFT);
+		infix(11, PLUS, MINUS);
+		infix(12, TIMES, DIV, MOD);
+	}
+
+	private static void infix(int power, Token.Type... types) {
+		for (Token.Type type : types)
+			precedence[type.ordinal()] = power;
+	}
+
+	private TokenSource tokens;
+	private final TokenStream stream;   // null when pulling tokens
+	private Ast ast;
+	private Diagnostics diagnostics;
+
+	// Set from an error until the tokens are resynchronized, errors met in
+	// the meantime are consequences of the first one and are not reported
+	private boolean recovering;
+
+	// Index of the current token, counted from the first one
+	private int position;
+
+	// Null when disabled
+	private final Metrics metrics;
+
+	public Parser(TokenStream tokens) {
+		this(tokens, null);
+	}
+
+	public Parser(TokenStream tokens, Metrics metrics) {
+		this(tokens.cursor(), tokens, 0, new Diagnostics(), metrics, tokens.size());
+	}
+
+	// Parser of the tokens [from, to) of a stream, token to reading as EOF
+	private Parser(TokenStream tokens, int from, int to, Metrics metrics) {
+		this(tokens.cursor(from, to), tokens, from, new Diagnostics(), metrics, to - from + 1);
+	}
+
+	/**
+	 * Parser pulling its tokens on demand, a {@link Lexer} can be given
+	 * directly so that lexing and parsing run in a single pass. The parse
+	 * phase then includes the lexing time.
+	 */
+	public Parser(TokenSource tokens, Metrics metrics) {
+		this(tokens, new Diagnostics(), metrics);
+	}
 
-	private int lineno;
-	private boolean verbose;
-	private String report_header;
+	/**
+	 * Parser reporting to the given diagnostics, those of the {@link Lexer}
+	 * for instance.
+	 */
+	public Parser(TokenSource tokens, Diagnostics diagnostics, Metrics metrics) {
+		this(tokens, null, 0, diagnostics, metrics, 64);
+	}
 
-	public Parser(ArrayList<Token> tokens, String file, boolean verbose) {
-		this.verbose = verbose;
-		this.currentStmt = "";
+	private Parser(TokenSource tokens, TokenStream stream, int position, Diagnostics diagnostics, Metrics metrics, int capacity) {
 		this.tokens = tokens;
-		this.report_header = file + ":";
-		this.lineno = 0;
-		this.at = 0;
+		this.stream = stream;
+		this.diagnostics = diagnostics;
+		this.metrics = metrics;
+		this.ast = new Ast(capacity);
+		this.recovering = false;
+		this.position = position;
+		ast.add(Ast.Kind.UNIT, position, tokens.line_of(0), NONE);
+	}
+
+	/**
+	 * Tree built so far, its root being node 0.
+	 */
+	public Ast ast() {
+		return ast;
+	}
+
+	public Diagnostics diagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * Parses all the tokens, printing the syntax errors to the standard
+	 * error stream. Returns true if there was none.
+	 */
+	public boolean parse() {
+		int errors = diagnostics.size();
+		boolean ok = check();
+		for (int i = errors; i < diagnostics.size(); i++)
+			System.err.println(diagnostics.get(i));
+		return ok;
+	}
+
+	/**
+	 * Parses all the tokens, returns true if no syntax error was reported.
+	 * <p>
+	 * The declarations are added to the root of the {@link #ast()} as they
+	 * are parsed. After an error, tokens are skipped up to the next ';', '}'
+	 * or top-level keyword and parsing resumes from there, so that every
+	 * error of the source is reported in one pass. The tree is only fit for
+	 * later phases when there is no error.
+	 */
+	public boolean check() {
+		long start = metrics != null ? metrics.start() : 0;
+		int errors = diagnostics.size();
+		declarations();
+		if (metrics != null)
+			metrics.phase("parse", start);
+		return diagnostics.size() == errors;
 	}
 
-	private Token next() {
-		if (at >= tokens.size())
-			return Token.EOF(lineno);
-		return tokens.get(at++);
+	/**
+	 * Same as {@link #check()}, parsing batches of declarations of about
+	 * {@code batch_size} tokens in parallel on the pool.
+	 * <p>
+	 * The declaration boundaries are found beforehand by a
+	 * {@link DeclarationScanner}. Each batch is parsed on its own, as if
+	 * its first token followed the end of the file, then the trees and
+	 * diagnostics are merged in source order. Without errors the tree is the
+	 * one {@link #check()} builds, after an error the resynchronization may
+	 * differ at batch boundaries. Only a parser over a {@link TokenStream}
+	 * that has not parsed anything yet runs in parallel, any other, or a
+	 * pool of a single thread, falls back to {@link #check()}.
+	 */
+	public boolean check_parallel(ForkJoinPool pool, int batch_size) {
+		if (stream == null || position != 0 || pool.getParallelism() < 2)
+			return check();
+		int[] bounds = batches(DeclarationScanner.boundaries(stream), batch_size);
+		if (bounds.length <= 2)
+			return check();
+		long start = metrics != null ? metrics.start() : 0;
+		int errors = diagnostics.size();
+
+		List<ForkJoinTask<Parser>> batches = new ArrayList<>();
+		for (int k = 0; k + 1 < bounds.length; k++) {
+			final Parser batch = new Parser(stream, bounds[k], bounds[k + 1], metrics != null ? new Metrics() : null);
+			batches.add(pool.submit(() -> {
+				batch.declarations();
+				return batch;
+			}));
+		}
+
+		int last = Ast.NONE;
+		for (ForkJoinTask<Parser> task : batches) {
+			Parser batch = task.join();
+			last = ast.graft(batch.ast, last);
+			diagnostics.merge(batch.diagnostics, 0);
+			if (metrics != null)
+				metrics.merge(batch.metrics);
+		}
+		position = stream.size() - 1;
+		tokens = stream.cursor(position, position);
+		if (metrics != null)
+			metrics.phase("parse", start);
+		return diagnostics.size() == errors;
+	}
+
+	// Batch boundaries, the first being token 0 and the last the EOF token
+	private int[] batches(int[] declarations, int batch_size) {
+		int[] bounds = new int[declarations.length + 2];
+		int count = 0;
+		bounds[count++] = 0;
+		for (int declaration : declarations)
+			if (declaration - bounds[count - 1] >= Math.max(batch_size, 1))
+				bounds[count++] = declaration;
+		bounds[count++] = stream.size() - 1;
+		return Arrays.copyOf(bounds, count);
 	}
 
-	public void parse() {
-		token = next();
-		try {
-			while (top_level_check())
-				;
-		} catch (SyntaxError e) {
-			e.printStackTrace();
-			System.exit(1);
+	// Adds the declarations up to EOF to the root
+	private void declarations() {
+		int last = Ast.NONE;
+		while (tokens.type_of(0) != EOF) {
+			int declaration = top_level_check();
+			if (declaration != Ast.NONE)
+				last = ast.append(0, last, declaration);
+			else
+				expected("top level declaration");
+			if (recovering)
+				synchronize(true);
 		}
-		match(EOF);
 	}
 
-	private boolean top_level_check() throws SyntaxError {
-		if (!matchKeyword("static")) {
-			if (!matchKeyword("extern")) {
-				if (global_var("classic")) return true;
-				if (routine_declaration("classic")) return true;
+	/**
+	 * Parses the whole input as a single expression, returns its node or
+	 * {@link Ast#NONE} if an error was reported.
+	 */
+	public int parse_expression() {
+		int errors = diagnostics.size();
+		int expression = operand(ASSIGNMENT);
+		if (!match(EOF))
+			expected("end of expression");
+		return diagnostics.size() == errors ? expression : Ast.NONE;
+	}
+
+	private void error(String format, Object... args) {
+		if (recovering) return;
+		recovering = true;
+		diagnostics.report(tokens.line_of(0), format, args);
+	}
+
+	private void expected(String what) {
+		error("Expected %s instead of %s", what, tokens.token(0));
+	}
+
+	/**
+	 * Skips tokens up to a point parsing can resume from: after a ';' or
+	 * before a '}' closing the current block, or before a top-level keyword.
+	 * At top level a stray '}' is skipped as well.
+	 */
+	private void synchronize(boolean top_level) {
+		int depth = 0;
+		while (true) {
+			Token.Type type = tokens.type_of(0);
+			if (type == EOF) break;
+			if (depth == 0 && type == KEYWORD) {
+				int keyword = tokens.symbol_of(0);
+				if (keyword == ROUTINE || keyword == STATIC || keyword == EXTERN || keyword == VAR) break;
 			}
-			if (global_var("extern")) return true;
-			if (routine_declaration("extern")) return true;
+			if (type == R_BRACE && depth == 0 && !top_level) break;
+			advance();
+			if (type == L_BRACE) depth++;
+			else if (type == R_BRACE && depth > 0) depth--;
+			if (depth == 0 && (type == SEMICOLON || type == R_BRACE)) break;
 		}
-		if (global_var("static")) return true;
-		if (routine_declaration("static")) return true;
-		return false;
+		recovering = false;
 	}
 
-	private boolean global_var(String mode) throws SyntaxError {
-		switch (mode) {
-			case "classic":
-				if (!matchKeyword("var")) return false;
-				if (!var_declaration_list())
-					throw new SyntaxError("Expected var declaration list");
-				if (!semicolon())
-					throw new SyntaxError("Expected ';' to terminate statement");
-				break;
-			case "static":
-				if (!matchKeyword("var")) return false;
-				if (!var_declaration_list())
-					throw new SyntaxError("Expected var declaration list");
-				if (!semicolon())
-					throw new SyntaxError("Expected ';' to terminate statement");
-				break;
-			case "extern":
-				if (!matchKeyword("var")) return false;
-				if (!id_list())
-					throw new SyntaxError("Expected id list");
-				if (!semicolon())
-					throw new SyntaxError("Expected ';' to terminate statement");
-				break;
-			default:
-				return false;
+	private int top_level_check() {
+		int linkage = NONE;
+		if (matchKeyword(STATIC)) linkage = STATIC;
+		else if (matchKeyword(EXTERN)) linkage = EXTERN;
+
+		int declaration = global_var(linkage);
+		if (declaration == Ast.NONE)
+			declaration = routine_declaration(linkage);
+		if (declaration == Ast.NONE && linkage != NONE)
+			error("Expected 'var' or 'routine' after '%s' instead of %s", keywords[linkage], tokens.token(0));
+		return declaration;
+	}
+
+	private int global_var(int linkage) {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(VAR)) return Ast.NONE;
+		int global = ast.add(Ast.Kind.GLOBAL, token, line, linkage);
+		if (linkage == EXTERN) {
+			if (id_list(global, Ast.NONE, Ast.Kind.DECLARATOR) == Ast.NONE)
+				expected("identifier list");
+		} else
+			var_declaration_list(global);
+		if (!semicolon())
+			expected("';' to terminate statement");
+		if (metrics != null)
+			metrics.node(linkage_name(linkage) + " global variable declaration", line);
+		return global;
+	}
+
+	private int routine_declaration(int linkage) {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(ROUTINE)) return Ast.NONE;
+		int routine = ast.add(Ast.Kind.ROUTINE, token, line, linkage);
+		int last = identifier(Ast.Kind.DECLARATOR);
+		if (last == Ast.NONE) {
+			expected("routine name identifier to match routine header");
+			return routine;
+		}
+		ast.append(routine, Ast.NONE, last);
+		last = routine_arg_list(routine, last);
+		if (last == Ast.NONE) {
+			expected("argument list (or empty '()') to match routine header");
+			return routine;
+		}
+
+		if (linkage == EXTERN) {
+			if (!semicolon())
+				expected("semicolon ';' to end extern routine declaration");
+		} else {
+			int body = block();
+			if (body == Ast.NONE)
+				error("Expected statement block to match %s routine declaration instead of %s", linkage_name(linkage), tokens.token(0));
+			ast.append(routine, last, body);
 		}
-		if (verbose)
-			System.out.println(report_header() + "Matched " + mode + " global variable declaration");
-		return true;
+		if (metrics != null)
+			metrics.node(linkage_name(linkage) + " routine declaration", line);
+		return routine;
 	}
 
+	private static String linkage_name(int linkage) {
+		return linkage == NONE ? "classic" : keywords[linkage];
+	}
 
-	private String report_header() {
-		return report_header + lineno + "> ";
+	// Appends the parameters after the routine name, returns the last child
+	private int routine_arg_list(int routine, int last) {
+		if (!match(L_PAREN)) return Ast.NONE;
+		if (match(R_PAREN)) return last;
+		last = id_list(routine, last, Ast.Kind.PARAMETER);
+		if (last == Ast.NONE) {
+			expected("ID-LIST or empty parentheses pair");
+			return Ast.NONE;
+		}
+		return match(R_PAREN) ? last : Ast.NONE;
 	}
 
-	private boolean routine_declaration(String mode) throws SyntaxError {
-		switch (mode) {
-			case "classic":
-				if (!routine_header()) return false;
-				if (!block())
-					throw new SyntaxError("Expected statement block to match routine declaration on line " + token.line_of() + " instead of token " + token);
-				break;
-			case "static":
-				if (!routine_header()) return false;
-				if (!block())
-					throw new SyntaxError("Expected statement block to match static routine declaration on line " + token.line_of() + " instead of token " + token);
-				break;
-			case "extern":
-				if (!routine_header()) return false;
-				if (!semicolon())
-					throw new SyntaxError("Expected semicolon ';' to end extern routine declaration on line" + token.line_of() + " instead of token " + token);
+	private int block() {
+		int token = position, line = tokens.line_of(0);
+		if (!match(L_BRACE)) return Ast.NONE;
+		int block = ast.add(Ast.Kind.BLOCK, token, line, NONE);
+		int last = Ast.NONE;
+		while (tokens.type_of(0) != R_BRACE && tokens.type_of(0) != EOF && !at_declaration()) {
+			int statement = statement();
+			if (statement != Ast.NONE)
+				last = ast.append(block, last, statement);
+			else
+				expected("statement");
+			if (recovering)
+				synchronize(false);
+		}
+		if (!match(R_BRACE))
+			expected("closing curly brace '}' to match end of block");
+		return block;
+	}
+
+	// A declaration keyword that cannot start a statement, its block most likely misses its '}'
+	private boolean at_declaration() {
+		if (tokens.type_of(0) != KEYWORD) return false;
+		int keyword = tokens.symbol_of(0);
+		return keyword == ROUTINE || keyword == STATIC || keyword == EXTERN;
+	}
+
+	private int statement() {
+		int token = position, line = tokens.line_of(0);
+		switch (tokens.type_of(0)) {
+			case SEMICOLON:
+				advance();
+				return ast.add(Ast.Kind.EMPTY, token, line, NONE);
+			case L_BRACE:
+				return block();
+			case IDENTIFIER:
+				if (tokens.type_of(1) == COLON)
+					return label_declaration();
 				break;
-			default:
-				return false;
+			case KEYWORD:
+				switch (tokens.symbol_of(0)) {
+					case GOTO:      return goto_statement();
+					case VAR:       return var_statement();
+					case RETURN:    return return_statement();
+					case IF:        return if_statement();
+					case WHILE:     return while_statement();
+				}
+				return Ast.NONE;
 		}
-		if (verbose)
-			System.out.println(report_header() + "Matched " + mode + " routine declaration");
-		return true;
+
+		int expression = expression();
+		if (expression == Ast.NONE) return Ast.NONE;
+		terminate("expression statement");
+		int statement = ast.add(Ast.Kind.EVALUATE, token, line, NONE);
+		ast.append(statement, Ast.NONE, expression);
+		return statement;
+	}
+
+	private void terminate(String statement) {
+		if (!semicolon())
+			error("Expected ';' to terminate %s instead of %s", statement, tokens.token(0));
+	}
+
+	private int label_declaration() {
+		int token = position, line = tokens.line_of(0), symbol = tokens.symbol_of(0);
+		if (tokens.type_of(0) != IDENTIFIER || tokens.type_of(1) != COLON) return Ast.NONE;
+		if (!(match(IDENTIFIER) && match(COLON))) return Ast.NONE;
+		return ast.add(Ast.Kind.LABEL, token, line, symbol);
+	}
+
+	private int goto_statement() {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(GOTO)) return Ast.NONE;
+		int statement;
+		if (match(L_PAREN)) {
+			statement = ast.add(Ast.Kind.COMPUTED_GOTO, token, line, NONE);
+			ast.append(statement, Ast.NONE, operand(ASSIGNMENT));
+			if (!match(R_PAREN))
+				expected("closing parenthesis ')' to match computed goto");
+		} else {
+			int symbol = tokens.symbol_of(0);
+			if (!match(IDENTIFIER)) {
+				expected("label name after 'goto'");
+				return Ast.NONE;
+			}
+			statement = ast.add(Ast.Kind.GOTO, token, line, symbol);
+		}
+		terminate("goto statement");
+		return statement;
 	}
 
-	private boolean routine_header() throws SyntaxError {
-		if (!matchKeyword("routine")) return false;
-		if (!identifier())
-			throw new SyntaxError("Expected routine name identifier to match routine header on line " + token.line_of() + " instead of token " + token);
-		if (!routine_arg_list())
-			throw new SyntaxError("Expected argument list (or empty '()') to match routine header on line " + token.line_of() + " instead of token " + token);
-		return true;
+	private int var_statement() {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(VAR)) return Ast.NONE;
+		int statement = ast.add(Ast.Kind.VAR, token, line, NONE);
+		var_declaration_list(statement);
+		terminate("var statement");
+		return statement;
 	}
 
-	private boolean assign() throws SyntaxError {
-		if (!identifier()) return false;
-		if (!match(STRICT_ASSIGN)) throw new SyntaxError("Expected '=' token");
-		if (!expression()) throw new SyntaxError("Expected expression");
-		return true;
+	private int return_statement() {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(RETURN)) return Ast.NONE;
+		int statement = ast.add(Ast.Kind.RETURN, token, line, NONE);
+		ast.append(statement, Ast.NONE, expression());
+		terminate("return statement");
+		return statement;
 	}
 
-	private boolean assign_list() throws SyntaxError {
-		if (!assign()) return false;
-		while (match(COMMA))
-			if (!assign())
-				throw new SyntaxError("Expected identifier in ID-LIST after matched token ',' on line " + token.line_of());
-		return true;
+	private int if_statement() {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(IF)) return Ast.NONE;
+		int statement = ast.add(Ast.Kind.IF, token, line, NONE);
+		int last = ast.append(statement, Ast.NONE, condition("if"));
+		last = ast.append(statement, last, body("if"));
+		if (matchKeyword(ELSE))
+			ast.append(statement, last, body("else"));
+		return statement;
 	}
 
-	private boolean routine_arg_list() throws SyntaxError {
-		if (!match(L_PAREN)) return false;
-		if (!match(R_PAREN)) {
-			if (!id_list())
-				throw new SyntaxError("Expected ID-LIST or empty parentheses pair on line " + token.line_of());
-			return match(R_PAREN);
+	private int while_statement() {
+		int token = position, line = tokens.line_of(0);
+		if (!matchKeyword(WHILE)) return Ast.NONE;
+		int statement = ast.add(Ast.Kind.WHILE, token, line, NONE);
+		int last = ast.append(statement, Ast.NONE, condition("while"));
+		ast.append(statement, last, body("while"));
+		return statement;
+	}
+
+	private int condition(String statement) {
+		if (!match(L_PAREN)) {
+			error("Expected opening parenthesis '(' after '%s' instead of %s", statement, tokens.token(0));
+			return Ast.NONE;
 		}
-		return true;
+		int condition = operand(ASSIGNMENT);
+		if (!match(R_PAREN))
+			error("Expected closing parenthesis ')' to match %s condition instead of %s", statement, tokens.token(0));
+		return condition;
 	}
 
-	private boolean block() throws SyntaxError {
-		if (!match(L_BRACE)) return false;
-		statement_list();
-		if (!match(R_BRACE))
-			throw new SyntaxError("Expected closing curly brace '}' to match end of block declaration on line " + token.line_of());
-		return true;
+	private int body(String statement) {
+		if (recovering) return Ast.NONE;
+		int body = statement();
+		if (body == Ast.NONE)
+			error("Expected statement to match '%s' instead of %s", statement, tokens.token(0));
+		return body;
 	}
 
-	private boolean statement_list() {
-		while (statement())
-			;
-		return true;
+	private int expression() {
+		return expression(ASSIGNMENT);
 	}
 
-	private boolean statement() {
-		if (!semicolon()) {
-			if (!label_declaration()) {
-				return false;
+	/**
+	 * Expression made of operators binding at least as tight as {@code min},
+	 * or {@link Ast#NONE} if the current token cannot start one.
+	 */
+	private int expression(int min) {
+		int left = unary();
+		if (left == Ast.NONE) return Ast.NONE;
+		while (!recovering) {
+			Token.Type op = tokens.type_of(0);
+			int power = precedence[op.ordinal()];
+			if (power == 0 || power < min) return left;
+			int token = position, line = tokens.line_of(0);
+			advance();
+			int node;
+			if (power == ASSIGNMENT) {
+				Ast.Kind kind = ast.kind_of(left);
+				if (kind != Ast.Kind.NAME && kind != Ast.Kind.INDEX && kind != Ast.Kind.MEMBER)
+					diagnostics.report(line, "Expected variable, index or member to the left of an assignment");
+				node = ast.add(Ast.Kind.ASSIGN, token, line, op.ordinal());
+				ast.append(node, ast.append(node, Ast.NONE, left), operand(ASSIGNMENT));
+			} else if (power == TERNARY) {
+				node = ast.add(Ast.Kind.TERNARY, token, line, NONE);
+				int last = ast.append(node, ast.append(node, Ast.NONE, left), operand(ASSIGNMENT));
+				if (!match(COLON))
+					expected("':' to match ternary expression");
+				ast.append(node, last, operand(TERNARY));
+			} else {
+				node = ast.add(Ast.Kind.BINARY, token, line, op.ordinal());
+				ast.append(node, ast.append(node, Ast.NONE, left), operand(power + 1));
 			}
-			return true;
+			left = node;
 		}
-		return true;
+		return left;
+	}
+
+	private int operand(int min) {
+		if (recovering) return Ast.NONE;
+		int operand = expression(min);
+		if (operand == Ast.NONE)
+			expected("expression");
+		return operand;
 	}
 
-	private boolean label_declaration() {
-		if (!match(IDENTIFIER)) return false;
-		if (!match(COLON)) return false;
-		return true;
+	private int unary() {
+		Token.Type op = tokens.type_of(0);
+		if (op != PLUS && op != MINUS && op != NOT && op != B_NOT)
+			return postfix();
+		int token = position, line = tokens.line_of(0);
+		advance();
+		int node = ast.add(Ast.Kind.UNARY, token, line, op.ordinal());
+		int operand = unary();
+		if (operand == Ast.NONE)
+			error("Expected operand of unary %s instead of %s", op, tokens.token(0));
+		ast.append(node, Ast.NONE, operand);
+		return node;
 	}
 
-	private boolean expression() throws SyntaxError {
-		return match(NULL) || match(NUMBER) || match(STRING) || match(IDENTIFIER) || match(BOOL);
+	private int postfix() {
+		int expression = primary();
+		if (expression == Ast.NONE) return Ast.NONE;
+		while (!recovering) {
+			Token.Type op = tokens.type_of(0);
+			if (op != L_BRACKET && op != L_PAREN && op != DOT && op != PLUSPLUS && op != MINUSMINUS)
+				return expression;
+			int token = position, line = tokens.line_of(0);
+			int node, last;
+			switch (op) {
+				case L_BRACKET:
+					advance();
+					node = ast.add(Ast.Kind.INDEX, token, line, NONE);
+					ast.append(node, ast.append(node, Ast.NONE, expression), operand(ASSIGNMENT));
+					if (!match(R_BRACKET))
+						expected("closing bracket ']' to match index");
+					break;
+				case L_PAREN:
+					advance();
+					node = ast.add(Ast.Kind.CALL, token, line, NONE);
+					last = ast.append(node, Ast.NONE, expression);
+					if (!match(R_PAREN)) {
+						do last = ast.append(node, last, operand(ASSIGNMENT));
+						while (!recovering && match(COMMA));
+						if (!match(R_PAREN))
+							expected("closing parenthesis ')' to match call arguments");
+					}
+					break;
+				case DOT:
+					advance();
+					if (tokens.type_of(0) != IDENTIFIER) {
+						expected("member name after '.'");
+						return expression;
+					}
+					node = ast.add(Ast.Kind.MEMBER, token, line, tokens.symbol_of(0));
+					ast.append(node, Ast.NONE, expression);
+					advance();
+					break;
+				default:
+					advance();
+					node = ast.add(Ast.Kind.POSTFIX, token, line, op.ordinal());
+					ast.append(node, Ast.NONE, expression);
+			}
+			expression = node;
+		}
+		return expression;
 	}
 
-	private boolean id_list() throws SyntaxError {
-		if (!identifier()) return false;
-		while (match(COMMA))
-			if (!identifier())
-				throw new SyntaxError("Expected identifier in ID-LIST after matched token ',' on line " + token.line_of());
-		return true;
+	private int primary() {
+		Token.Type type = tokens.type_of(0);
+		if (type == L_PAREN) {
+			advance();
+			int expression = operand(ASSIGNMENT);
+			if (!match(R_PAREN))
+				expected("closing parenthesis ')'");
+			return expression;
+		}
+
+		int token = position, line = tokens.line_of(0);
+		int expression;
+		switch (type) {
+			case IDENTIFIER:
+				expression = ast.add(Ast.Kind.NAME, token, line, tokens.symbol_of(0));
+				break;
+			case NUMBER:
+				expression = ast.add_number(Ast.Kind.INTEGER, token, line, tokens.int_value(0));
+				break;
+			case FLOAT:
+				expression = ast.add_number(Ast.Kind.FLOAT, token, line, Double.doubleToRawLongBits(tokens.float_value(0)));
+				break;
+			case STRING:
+				expression = ast.add_string(token, line, tokens.str_value(0));
+				break;
+			case BOOL:
+				expression = ast.add(Ast.Kind.BOOL, token, line, tokens.symbol_of(0) == TRUE_LITERAL ? 1 : 0);
+				break;
+			case NULL:
+				expression = ast.add(Ast.Kind.NULL, token, line, NONE);
+				break;
+			default:
+				return Ast.NONE;
+		}
+		advance();
+		return expression;
 	}
 
-	private boolean var_declaration_list() throws SyntaxError {
-		if (!var_declaration()) return false;
-		while (match(COMMA))
-			if (!var_declaration())
-				throw new SyntaxError("Expected variable declaration in DECL-LIST after matched token ',' on line " + token.line_of());
-		return true;
+	// Appends a node of the given kind per identifier, returns the last one
+	private int id_list(int parent, int last, Ast.Kind kind) {
+		int name = identifier(kind);
+		if (name == Ast.NONE) return Ast.NONE;
+		last = ast.append(parent, last, name);
+		while (match(COMMA)) {
+			name = identifier(kind);
+			if (name == Ast.NONE) {
+				expected("identifier in ID-LIST after ','");
+				break;
+			}
+			last = ast.append(parent, last, name);
+		}
+		return last;
 	}
 
-	private boolean var_declaration() throws SyntaxError {
-		if (!id_list())
-			throw new SyntaxError("Expected one or more identifier(s) to match 'let' statement in global scope on line " + token.line_of());
-		if (!match(STRICT_ASSIGN))
-			return true;
-		if (!expression())
-			throw new SyntaxError("Expected constant expression after token '=' to match 'let' statement in global scope on line " + token.line_of());
-		return true;
+	// Appends declarators, their initializer being their child
+	private void var_declaration_list(int parent) {
+		int last = Ast.NONE;
+		do {
+			int declarator = identifier(Ast.Kind.DECLARATOR);
+			if (declarator == Ast.NONE) {
+				expected("variable name to match 'var' declaration");
+				return;
+			}
+			if (match(STRICT_ASSIGN)) {
+				int value = expression();
+				if (value == Ast.NONE)
+					expected("expression after '=' to match 'var' declaration");
+				ast.append(declarator, Ast.NONE, value);
+			}
+			last = ast.append(parent, last, declarator);
+		} while (!recovering && match(COMMA));
 	}
 
-	private boolean identifier() {
-		return match(IDENTIFIER);
+	private int identifier(Ast.Kind kind) {
+		if (tokens.type_of(0) != IDENTIFIER) {
+			if (metrics != null) metrics.rejected(IDENTIFIER.name(), tokens);
+			return Ast.NONE;
+		}
+		int node = ast.add(kind, position, tokens.line_of(0), tokens.symbol_of(0));
+		advance();
+		return node;
 	}
 
 	private boolean semicolon() {
 		return match(SEMICOLON);
 	}
 
-	private boolean assign_op() {
-		return match(STRICT_ASSIGN) || match(ASSIGN);
-	}
-
-	private boolean unary_op() {
-		return match(PLUS) || match(MINUS) || match(NOT) || match(B_NOT);
+	private void advance() {
+		if (metrics != null) metrics.matched(tokens);
+		tokens.nextToken();
+		position++;
 	}
 
 	private boolean match(Token.Type type) {
-		if (token.type_of().equals(type)) {
-			if (verbose) System.out.println("Matched token " + token);
-			currentStmt += token.str_value() + " ";
-			token = next();
+		if (tokens.type_of(0) == type) {
+			advance();
 			return true;
-		} else if (verbose)
-			System.out.println("Rejected " + token + " (" + type + " would have matched)");
+		} else if (metrics != null)
+			metrics.rejected(type.name(), tokens);
 		return false;
 	}
 
-	private boolean matchKeyword(String value) {
-		if (token.type_of().equals(KEYWORD) && token.str_value().equals(value)) {
-			if (verbose) System.out.println("Matched keyword '" + value + "'");
-			currentStmt += token.str_value() + " ";
-			token = next();
-			lineno = token.line_of();
+	private boolean matchKeyword(int keyword) {
+		if (tokens.type_of(0) == KEYWORD && tokens.symbol_of(0) == keyword) {
+			advance();
 			return true;
-		} else if (verbose)
-			System.out.println("Rejected " + token + " (" + value + " could have matched)");
+		} else if (metrics != null)
+			metrics.rejected(keywords[keyword], tokens);
 		return false;
 	}
 }
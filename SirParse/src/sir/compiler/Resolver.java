@@ -0,0 +1,309 @@
+package sir.compiler;
+
+import java.util.Arrays;
+
+import static sir.compiler.SymbolTable.EXTERN;
+import static sir.compiler.SymbolTable.STATIC;
+
+/**
+ * Binds every name of a tree to its declaration and gives every variable a
+ * slot, so that a variable is found at runtime by indexing an array.
+ * <p>
+ * Globals and routines are visible from the whole unit and numbered in two
+ * spaces of their own. Arguments and locals of a routine share its frame,
+ * arguments first, and locals of a block reuse the slots of the blocks
+ * closed before it. Labels are visible from their whole routine, and a name
+ * no argument or local is bound to names the label of the routine before
+ * the global, labels being the values of computed gotos.
+ * <p>
+ * Scopes are not maps: every symbol has the declaration it is bound to in an
+ * array indexed by symbol id, and closing a scope undoes the bindings it
+ * made. Undefined names, duplicate declarations in a scope and conflicting
+ * linkages of a global are reported. An {@code extern} declaration may be
+ * repeated, and a global declared {@code extern} may be defined in the unit
+ * if it is not {@code static}, all its declarations sharing a slot.
+ * <p>
+ * The tree must be free of syntax errors.
+ */
+public class Resolver extends Ast.Visitor<Void> {
+	/**
+	 * Where the slot of a resolved node lives.
+	 */
+	public enum Storage {
+		GLOBAL, ROUTINE, ARGUMENT, LOCAL, LABEL
+	}
+
+	private static final Storage[] STORAGES = Storage.values();
+	private static final byte UNRESOLVED = -1;
+
+	private final SymbolTable symbols;
+	private final Diagnostics diagnostics;
+
+	// Per node, of declarators, parameters, names, labels and gotos
+	private byte[] storages;
+	private int[] slots;
+
+	// Per routine, in routine slot order
+	private int[] frames, label_counts;
+	private int globals, routines;
+
+	// Per symbol, the declaration it is bound to, the depth of its scope and
+	// the linkage of the global it names
+	private int[] bindings, depths, linkages;
+	private int[] labels;
+	private int[] routine_labels;
+	private int label_count;
+
+	// Bindings shadowed by the open scopes, as (symbol, binding, depth) triples
+	private int[] undo;
+	private int undo_size;
+
+	private int depth;
+	private int locals, frame;
+
+	public Resolver(Ast ast, SymbolTable symbols, Diagnostics diagnostics) {
+		super(ast);
+		this.symbols = symbols;
+		this.diagnostics = diagnostics;
+		this.storages = new byte[ast.size()];
+		this.slots = new int[ast.size()];
+		this.bindings = new int[symbols.size()];
+		this.depths = new int[symbols.size()];
+		this.linkages = new int[symbols.size()];
+		this.labels = new int[symbols.size()];
+		this.routine_labels = new int[8];
+		this.undo = new int[48];
+		Arrays.fill(storages, UNRESOLVED);
+		Arrays.fill(slots, Ast.NONE);
+		Arrays.fill(bindings, Ast.NONE);
+		Arrays.fill(labels, Ast.NONE);
+	}
+
+	/**
+	 * Storage of the slot of a declarator, parameter, name, label or goto,
+	 * null if it has none or was not resolved.
+	 */
+	public Storage storage_of(int node) {
+		byte storage = storages[node];
+		return storage == UNRESOLVED ? null : STORAGES[storage];
+	}
+
+	/**
+	 * Slot of a declarator, parameter, name, label or goto, its routine slot
+	 * for a routine, {@link Ast#NONE} if it has none.
+	 */
+	public int slot_of(int node) {
+		return slots[node];
+	}
+
+	public int globals() {
+		return globals;
+	}
+
+	public int routines() {
+		return routines;
+	}
+
+	/**
+	 * Count of frame slots of a routine, given by its routine slot.
+	 */
+	public int frame_size(int routine) {
+		return frames[routine];
+	}
+
+	public int label_count(int routine) {
+		return label_counts[routine];
+	}
+
+	protected Void unit(int node) {
+		for (int declaration = ast.first_child(node); declaration != Ast.NONE; declaration = ast.next_sibling(declaration))
+			if (ast.kind_of(declaration) == Ast.Kind.GLOBAL) {
+				for (int child = ast.first_child(declaration); child != Ast.NONE; child = ast.next_sibling(child))
+					declare_global(child, ast.linkage_of(declaration), Storage.GLOBAL);
+			} else if (ast.kind_of(declaration) == Ast.Kind.ROUTINE) {
+				slots[declaration] = declare_global(ast.first_child(declaration), ast.linkage_of(declaration), Storage.ROUTINE);
+			}
+		frames = new int[routines];
+		label_counts = new int[routines];
+		return children(node);
+	}
+
+	protected Void global(int node) {
+		for (int child = ast.first_child(node); child != Ast.NONE; child = ast.next_sibling(child))
+			children(child);
+		return null;
+	}
+
+	protected Void routine(int node) {
+		int routine = slots[node];
+		int mark = open();
+		locals = frame = 0;
+		int body = Ast.NONE;
+		for (int child = ast.next_sibling(ast.first_child(node)); child != Ast.NONE; child = ast.next_sibling(child))
+			if (ast.kind_of(child) == Ast.Kind.PARAMETER) declare(child, Storage.ARGUMENT, locals++);
+			else body = child;
+		frame = locals;
+
+		label_count = 0;
+		if (body != Ast.NONE) {
+			collect_labels(body);
+			children(body);
+		}
+		for (int i = 0; i < label_count; i++)
+			labels[routine_labels[i]] = Ast.NONE;
+
+		if (routine != Ast.NONE && body != Ast.NONE) {
+			frames[routine] = frame;
+			label_counts[routine] = label_count;
+		}
+		close(mark);
+		return null;
+	}
+
+	protected Void block(int node) {
+		int saved = locals, mark = open();
+		children(node);
+		close(mark);
+		locals = saved;
+		return null;
+	}
+
+	protected Void declarator(int node) {
+		children(node);
+		declare(node, Storage.LOCAL, locals++);
+		frame = Math.max(frame, locals);
+		return null;
+	}
+
+	protected Void label(int node) {
+		resolve(node, labels[ast.symbol_of(node)]);
+		return null;
+	}
+
+	protected Void jump(int node) {
+		int label = labels[ast.symbol_of(node)];
+		if (label == Ast.NONE)
+			diagnostics.report(ast.line_of(node), "Undefined label '%s'", symbols.name(ast.symbol_of(node)));
+		else
+			resolve(node, label);
+		return null;
+	}
+
+	protected Void name(int node) {
+		int symbol = ast.symbol_of(node);
+		int declaration = bindings[symbol];
+		if (labels[symbol] != Ast.NONE && (declaration == Ast.NONE || depths[symbol] == 0))
+			declaration = labels[symbol];
+		if (declaration == Ast.NONE)
+			diagnostics.report(ast.line_of(node), "Undefined name '%s'", symbols.name(symbol));
+		else
+			resolve(node, declaration);
+		return null;
+	}
+
+	protected Void member(int node) {
+		// The member name belongs to the value, only the object is resolved
+		return visit(ast.first_child(node));
+	}
+
+	private void resolve(int node, int declaration) {
+		storages[node] = storages[declaration];
+		slots[node] = slots[declaration];
+	}
+
+	// Opens a scope, returns the mark to close it with
+	private int open() {
+		depth++;
+		return undo_size;
+	}
+
+	// Restores the bindings shadowed since the scope was opened
+	private void close(int mark) {
+		while (undo_size > mark) {
+			undo_size -= 3;
+			int symbol = undo[undo_size];
+			bindings[symbol] = undo[undo_size + 1];
+			depths[symbol] = undo[undo_size + 2];
+		}
+		depth--;
+	}
+
+	private void push(int symbol) {
+		if (undo_size + 3 > undo.length) undo = Arrays.copyOf(undo, undo.length * 2);
+		undo[undo_size++] = symbol;
+		undo[undo_size++] = bindings[symbol];
+		undo[undo_size++] = depths[symbol];
+	}
+
+	// Binds a declarator or parameter in the innermost scope
+	private void declare(int node, Storage storage, int slot) {
+		int symbol = ast.symbol_of(node);
+		if (bindings[symbol] != Ast.NONE && depths[symbol] == depth)
+			diagnostics.report(ast.line_of(node), "Duplicate declaration of '%s', first declared at line %d",
+					symbols.name(symbol), ast.line_of(bindings[symbol]));
+		push(symbol);
+		bindings[symbol] = node;
+		depths[symbol] = depth;
+		storages[node] = (byte) storage.ordinal();
+		slots[node] = slot;
+	}
+
+	// Binds a global variable or routine, returns its slot
+	private int declare_global(int node, int linkage, Storage storage) {
+		int symbol = ast.symbol_of(node);
+		int previous = bindings[symbol];
+		int slot;
+		if (previous == Ast.NONE) {
+			slot = storage == Storage.GLOBAL ? globals++ : routines++;
+		} else {
+			// Externs share the slot of the first declaration, a definition taking over the binding
+			int previous_linkage = linkages[symbol];
+			if (STORAGES[storages[previous]] != storage || linkage != EXTERN && previous_linkage != EXTERN) {
+				diagnostics.report(ast.line_of(node), "Duplicate declaration of '%s', first declared at line %d",
+						symbols.name(symbol), ast.line_of(previous));
+				return Ast.NONE;
+			}
+			if (linkage == STATIC || previous_linkage == STATIC)
+				diagnostics.report(ast.line_of(node), "Linkage of '%s' conflicts with its declaration at line %d",
+						symbols.name(symbol), ast.line_of(previous));
+			slot = slots[previous];
+			if (linkage == EXTERN) {
+				resolve(node, previous);
+				return slot;
+			}
+		}
+		bindings[symbol] = node;
+		depths[symbol] = 0;
+		linkages[symbol] = linkage;
+		storages[node] = (byte) storage.ordinal();
+		slots[node] = slot;
+		return slot;
+	}
+
+	// Binds the labels of a routine body, nested statements included
+	private void collect_labels(int node) {
+		for (int child = ast.first_child(node); child != Ast.NONE; child = ast.next_sibling(child)) {
+			switch (ast.kind_of(child)) {
+				case LABEL: {
+					int symbol = ast.symbol_of(child);
+					if (labels[symbol] != Ast.NONE) {
+						diagnostics.report(ast.line_of(child), "Duplicate label '%s', first declared at line %d",
+								symbols.name(symbol), ast.line_of(labels[symbol]));
+						break;
+					}
+					labels[symbol] = child;
+					storages[child] = (byte) Storage.LABEL.ordinal();
+					if (label_count == routine_labels.length)
+						routine_labels = Arrays.copyOf(routine_labels, label_count * 2);
+					routine_labels[label_count] = symbol;
+					slots[child] = label_count++;
+					break;
+				}
+				case BLOCK:
+				case IF:
+				case WHILE:
+					collect_labels(child);
+			}
+		}
+	}
+}
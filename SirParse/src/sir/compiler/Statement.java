@@ -1,6 +0,0 @@
-package sir.compiler;
-
-public class Statement {
-
-
-}
@@ -1,7 +0,0 @@
-package sir.compiler;
-
-public class SyntaxError extends Exception {
-	public SyntaxError(String message) {
-		super(message);
-	}
-}
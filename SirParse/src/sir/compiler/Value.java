@@ -2,60 +2,258 @@ package sir.compiler;
 
 import static sir.compiler.Value.Type.*;
 
+/**
+ * A Sir value, boxed.
+ * <p>
+ * A value is a type tag and a 64-bit payload: the integer itself, the raw
+ * bits of a float, 1 or 0 for a boolean. A string is the only value
+ * referring to an object. Small integers, booleans and null are shared, so
+ * producing them allocates nothing. Code running many operations keeps its
+ * values unboxed in a {@link ValueStack} instead, whose fast paths allocate
+ * nothing at all.
+ */
 public class Value {
-	enum Type {
+	public enum Type {
 		INTEGER, FLOAT, STRING, BOOL, NULL,
 	}
 
-	private String sym;
-	private Type type;
+	static final Type[] TYPES = Type.values();
 
-	private Value() {
-		this.sym = null;
-		this.type = NULL;
+	private static final int SMALL = 1024;
+	private static final Value[] small = new Value[2 * SMALL];
+	private static final Value TRUE = new Value(BOOL, 1, null), FALSE = new Value(BOOL, 0, null);
+	private static final Value NULL_VALUE = new Value(NULL, 0, null);
+
+	static {
+		for (int i = 0; i < small.length; i++)
+			small[i] = new Value(INTEGER, i - SMALL, null);
 	}
 
-	private Value(String sym) {
-		this.sym = sym;
+	private final Type type;
+	private final long bits;
+	private final String string;
+
+	private Value(Type type, long bits, String string) {
+		this.type = type;
+		this.bits = bits;
+		this.string = string;
 	}
 
+	/**
+	 * Decodes a number once, prefer {@link #Literal(Ast, int)} on parsed
+	 * literals as their value is already decoded.
+	 */
 	public static Value Number(String sym) {
-		Value num = new Value(sym);
-		if (sym.contains(".")) num.type = FLOAT;
-		else num.type = INTEGER;
-		return num;
+		if (sym.contains(".")) return Float(Double.parseDouble(sym));
+		return Integer(Long.parseLong(sym));
+	}
+
+	public static Value Integer(long value) {
+		if (value >= -SMALL && value < SMALL) return small[(int) value + SMALL];
+		return new Value(INTEGER, value, null);
+	}
+
+	public static Value Float(double value) {
+		return new Value(FLOAT, Double.doubleToRawLongBits(value), null);
 	}
 
 	public static Value String(String sym) {
-		Value value = new Value(sym);
-		value.type = STRING;
-		return value;
+		return new Value(STRING, 0, sym);
 	}
 
 	public static Value BOOL(String sym) {
-		Value value = new Value(sym);
-		value.type = BOOL;
-		return value;
+		return BOOL("true".equals(sym));
+	}
+
+	public static Value BOOL(boolean value) {
+		return value ? TRUE : FALSE;
 	}
 
 	public static Value Null() {
-		return new Value();
+		return NULL_VALUE;
+	}
+
+	/**
+	 * Value of a type and payload as stored unboxed, strings excepted.
+	 */
+	public static Value Tagged(Type type, long bits) {
+		switch (type) {
+			case INTEGER:   return Integer(bits);
+			case BOOL:      return BOOL(bits != 0);
+			case NULL:      return Null();
+			default:        return new Value(type, bits, null);
+		}
+	}
+
+	/**
+	 * Value of a literal node.
+	 */
+	public static Value Literal(Ast ast, int node) {
+		switch (ast.kind_of(node)) {
+			case INTEGER:   return Integer(ast.int_value(node));
+			case FLOAT:     return Float(ast.float_value(node));
+			case STRING:    return String(ast.str_value(node));
+			case BOOL:      return BOOL(ast.bool_value(node));
+			default:        return Null();
+		}
+	}
+
+	/**
+	 * Result of a unary operator, or null if the operator does not apply to
+	 * the operand, the error being left to the runtime.
+	 */
+	public static Value unary(Token.Type op, Value operand) {
+		switch (op) {
+			case PLUS:
+				return operand.is_number() ? operand : null;
+			case MINUS:
+				if (operand.type == INTEGER) return Integer(-operand.bits);
+				if (operand.type == FLOAT) return Float(-operand.float_value());
+				return null;
+			case NOT:
+				return BOOL(!operand.truthy());
+			case B_NOT:
+				return operand.type == INTEGER ? Integer(~operand.bits) : null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Result of a binary operator, or null if the operator does not apply to
+	 * the operands, the error being left to the runtime. Integers mixed with
+	 * floats are promoted to floats, '+' concatenates as soon as one operand
+	 * is a string, and integer division by zero is an error.
+	 */
+	public static Value binary(Token.Type op, Value left, Value right) {
+		switch (op) {
+			case AND:       return BOOL(left.truthy() && right.truthy());
+			case OR:        return BOOL(left.truthy() || right.truthy());
+			case EQUALS:    return BOOL(equal(left, right));
+			case NEQUALS:   return BOOL(!equal(left, right));
+		}
+
+		if (op == Token.Type.PLUS && (left.type == STRING || right.type == STRING))
+			return String(left.text() + right.text());
+
+		if (left.type == STRING && right.type == STRING) {
+			int order = left.string.compareTo(right.string);
+			switch (op) {
+				case LT:    return BOOL(order < 0);
+				case LEQ:   return BOOL(order <= 0);
+				case GT:    return BOOL(order > 0);
+				case GEQ:   return BOOL(order >= 0);
+				default:    return null;
+			}
+		}
+
+		if (left.type == INTEGER && right.type == INTEGER) {
+			long a = left.bits, b = right.bits;
+			switch (op) {
+				case PLUS:      return Integer(a + b);
+				case MINUS:     return Integer(a - b);
+				case TIMES:     return Integer(a * b);
+				case DIV:       return b == 0 ? null : Integer(a / b);
+				case MOD:       return b == 0 ? null : Integer(a % b);
+				case B_AND:     return Integer(a & b);
+				case B_OR:      return Integer(a | b);
+				case B_XOR:     return Integer(a ^ b);
+				case L_SHIFT:   return Integer(a << b);
+				case R_SHIFT:   return Integer(a >> b);
+				case LT:        return BOOL(a < b);
+				case LEQ:       return BOOL(a <= b);
+				case GT:        return BOOL(a > b);
+				case GEQ:       return BOOL(a >= b);
+				default:        return null;
+			}
+		}
+
+		if (left.is_number() && right.is_number()) {
+			double a = left.float_value(), b = right.float_value();
+			switch (op) {
+				case PLUS:      return Float(a + b);
+				case MINUS:     return Float(a - b);
+				case TIMES:     return Float(a * b);
+				case DIV:       return Float(a / b);
+				case MOD:       return Float(a % b);
+				case LT:        return BOOL(a < b);
+				case LEQ:       return BOOL(a <= b);
+				case GT:        return BOOL(a > b);
+				case GEQ:       return BOOL(a >= b);
+				default:        return null;
+			}
+		}
+
+		if (left.type == BOOL && right.type == BOOL)
+			switch (op) {
+				case B_AND:     return BOOL((left.bits & right.bits) != 0);
+				case B_OR:      return BOOL((left.bits | right.bits) != 0);
+				case B_XOR:     return BOOL((left.bits ^ right.bits) != 0);
+			}
+		return null;
+	}
+
+	private static boolean equal(Value left, Value right) {
+		if (left.is_number() && right.is_number())
+			return left.type == INTEGER && right.type == INTEGER ? left.bits == right.bits
+					: left.float_value() == right.float_value();
+		if (left.type != right.type) return false;
+		switch (left.type) {
+			case STRING:    return left.string.equals(right.string);
+			case NULL:      return true;
+			default:        return left.bits == right.bits;
+		}
+	}
+
+	private boolean is_number() {
+		return type == INTEGER || type == FLOAT;
+	}
+
+	// Text of the value once concatenated to a string
+	private String text() {
+		return type == NULL ? "null" : str_value();
+	}
+
+	/**
+	 * Truth of the value as a condition, false for false, null, zero and the
+	 * empty string.
+	 */
+	public boolean truthy() {
+		switch (type) {
+			case FLOAT:     return Double.longBitsToDouble(bits) != 0;
+			case STRING:    return !string.isEmpty();
+			case NULL:      return false;
+			default:        return bits != 0;
+		}
 	}
 
 	public boolean bool_value() {
-		return Boolean.valueOf(sym);
+		return bits != 0;
 	}
 
 	public long int_value() {
-		return Long.valueOf(sym);
+		return type == FLOAT ? (long) Double.longBitsToDouble(bits) : bits;
 	}
 
 	public double float_value() {
-		return Double.valueOf(sym);
+		return type == FLOAT ? Double.longBitsToDouble(bits) : bits;
 	}
 
 	public String str_value() {
-		return sym;
+		switch (type) {
+			case INTEGER:   return String.valueOf(bits);
+			case FLOAT:     return String.valueOf(Double.longBitsToDouble(bits));
+			case BOOL:      return String.valueOf(bits != 0);
+			case STRING:    return string;
+			default:        return null;
+		}
+	}
+
+	/**
+	 * Payload of the value, meaningless for strings.
+	 */
+	public long bits() {
+		return bits;
 	}
 
 	public Value.Type type_of() {
@@ -0,0 +1,270 @@
+package sir.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Values stored unboxed, column-wise like a {@link TokenStream}: every slot
+ * is a {@link Value.Type} tag and a 64-bit payload. Strings are kept in a
+ * table of the stack, a string slot holding the index of its string.
+ * <p>
+ * Operations read their operands from slots and write their result to a
+ * slot. Integer and float operands take fast paths allocating nothing, any
+ * other operand is boxed and goes through {@link Value#binary}, which
+ * defines the semantics. Strings made by operations stay in the table until
+ * they are released, see {@link #strings_mark()}.
+ */
+public class ValueStack {
+	// Tags, the ordinals of Value.Type
+	public static final byte INTEGER = 0, FLOAT = 1, STRING = 2, BOOL = 3, NULL = 4;
+
+	private byte[] tags;
+	private long[] bits;
+	private String[] strings;
+	private int string_count;
+
+	public ValueStack(int capacity) {
+		this.tags = new byte[capacity];
+		this.bits = new long[capacity];
+		this.strings = new String[16];
+		this.string_count = 0;
+		Arrays.fill(tags, NULL);
+	}
+
+	public int capacity() {
+		return tags.length;
+	}
+
+	/**
+	 * Makes room for {@code capacity} slots, the new ones holding null.
+	 */
+	public void ensure(int capacity) {
+		if (capacity <= tags.length) return;
+		int old = tags.length;
+		capacity = Math.max(capacity, old * 2);
+		tags = Arrays.copyOf(tags, capacity);
+		bits = Arrays.copyOf(bits, capacity);
+		Arrays.fill(tags, old, capacity, NULL);
+	}
+
+	public byte tag(int slot) {
+		return tags[slot];
+	}
+
+	public Value.Type type_of(int slot) {
+		return Value.TYPES[tags[slot]];
+	}
+
+	public long bits(int slot) {
+		return bits[slot];
+	}
+
+	public long int_value(int slot) {
+		return tags[slot] == FLOAT ? (long) Double.longBitsToDouble(bits[slot]) : bits[slot];
+	}
+
+	public double float_value(int slot) {
+		return tags[slot] == FLOAT ? Double.longBitsToDouble(bits[slot]) : bits[slot];
+	}
+
+	public String str_value(int slot) {
+		return tags[slot] == STRING ? strings[(int) bits[slot]] : get(slot).str_value();
+	}
+
+	public void set_int(int slot, long value) {
+		tags[slot] = INTEGER;
+		bits[slot] = value;
+	}
+
+	public void set_float(int slot, double value) {
+		tags[slot] = FLOAT;
+		bits[slot] = Double.doubleToRawLongBits(value);
+	}
+
+	public void set_bool(int slot, boolean value) {
+		tags[slot] = BOOL;
+		bits[slot] = value ? 1 : 0;
+	}
+
+	public void set_null(int slot) {
+		tags[slot] = NULL;
+		bits[slot] = 0;
+	}
+
+	public void set_string(int slot, String value) {
+		set_string_at(slot, add_string(value));
+	}
+
+	/**
+	 * Stores the string at {@code index} in the table, as returned by
+	 * {@link #add_string(String)}, so that constants are only added once.
+	 */
+	public void set_string_at(int slot, int index) {
+		tags[slot] = STRING;
+		bits[slot] = index;
+	}
+
+	/**
+	 * Stores a tag and payload as is, a string payload being an index in
+	 * the table.
+	 */
+	public void set_tagged(int slot, byte tag, long payload) {
+		tags[slot] = tag;
+		bits[slot] = payload;
+	}
+
+	public void set(int slot, Value value) {
+		if (value.type_of() == Value.Type.STRING) set_string(slot, value.str_value());
+		else set_tagged(slot, (byte) value.type_of().ordinal(), value.bits());
+	}
+
+	public void copy(int to, int from) {
+		tags[to] = tags[from];
+		bits[to] = bits[from];
+	}
+
+	public Value get(int slot) {
+		if (tags[slot] == STRING) return Value.String(strings[(int) bits[slot]]);
+		return Value.Tagged(Value.TYPES[tags[slot]], bits[slot]);
+	}
+
+	public int add_string(String value) {
+		if (string_count == strings.length) strings = Arrays.copyOf(strings, string_count * 2);
+		strings[string_count] = value;
+		return string_count++;
+	}
+
+	/**
+	 * Sets the string at {@code index}, an entry added as null so that its
+	 * string is only made once needed.
+	 */
+	public void define_string(int index, String value) {
+		strings[index] = value;
+	}
+
+	/**
+	 * Size of the string table, to be given back to
+	 * {@link #release_strings(int)} once the strings added since are no
+	 * longer referenced by any slot.
+	 */
+	public int strings_mark() {
+		return string_count;
+	}
+
+	public void release_strings(int mark) {
+		Arrays.fill(strings, mark, string_count, null);
+		string_count = mark;
+	}
+
+	/**
+	 * Drops the strings past index {@code pinned} that no slot below
+	 * {@code slots} refers to, renumbering the others, for owners who cannot
+	 * tell when strings die. Returns the size of the table left.
+	 */
+	public int compact_strings(int pinned, int slots) {
+		String[] kept = new String[strings.length];
+		int[] moved = new int[string_count - pinned];
+		System.arraycopy(strings, 0, kept, 0, pinned);
+		Arrays.fill(moved, -1);
+		int count = pinned;
+		for (int slot = 0; slot < slots; slot++) {
+			// Slots past the last compaction may hold stale indices, dead ones
+			if (tags[slot] != STRING || bits[slot] < pinned || bits[slot] >= string_count) continue;
+			int old = (int) bits[slot] - pinned;
+			if (moved[old] < 0) {
+				kept[count] = strings[old + pinned];
+				moved[old] = count++;
+			}
+			bits[slot] = moved[old];
+		}
+		strings = kept;
+		return string_count = count;
+	}
+
+	public boolean truthy(int slot) {
+		switch (tags[slot]) {
+			case FLOAT:     return Double.longBitsToDouble(bits[slot]) != 0;
+			case STRING:    return !strings[(int) bits[slot]].isEmpty();
+			case NULL:      return false;
+			default:        return bits[slot] != 0;
+		}
+	}
+
+	/**
+	 * Applies a unary operator to slot {@code a}, the result going to slot
+	 * {@code to}. Returns false if the operator does not apply.
+	 */
+	public boolean unary(Token.Type op, int to, int a) {
+		byte tag = tags[a];
+		if (tag == INTEGER) {
+			switch (op) {
+				case PLUS:      copy(to, a); return true;
+				case MINUS:     set_int(to, -bits[a]); return true;
+				case B_NOT:     set_int(to, ~bits[a]); return true;
+				case NOT:       set_bool(to, bits[a] == 0); return true;
+			}
+		} else if (tag == FLOAT) {
+			switch (op) {
+				case PLUS:      copy(to, a); return true;
+				case MINUS:     set_float(to, -Double.longBitsToDouble(bits[a])); return true;
+			}
+		}
+		return store(to, Value.unary(op, get(a)));
+	}
+
+	/**
+	 * Applies a binary operator to slots {@code a} and {@code b}, the result
+	 * going to slot {@code to}. Returns false if the operator does not apply.
+	 * Both operands are evaluated, '&&' and '||' are only cut short by
+	 * whoever evaluates them.
+	 */
+	public boolean binary(Token.Type op, int to, int a, int b) {
+		byte left = tags[a], right = tags[b];
+		if (left == INTEGER && right == INTEGER) {
+			long x = bits[a], y = bits[b];
+			switch (op) {
+				case PLUS:      set_int(to, x + y); return true;
+				case MINUS:     set_int(to, x - y); return true;
+				case TIMES:     set_int(to, x * y); return true;
+				case DIV:       if (y == 0) return false; set_int(to, x / y); return true;
+				case MOD:       if (y == 0) return false; set_int(to, x % y); return true;
+				case B_AND:     set_int(to, x & y); return true;
+				case B_OR:      set_int(to, x | y); return true;
+				case B_XOR:     set_int(to, x ^ y); return true;
+				case L_SHIFT:   set_int(to, x << y); return true;
+				case R_SHIFT:   set_int(to, x >> y); return true;
+				case LT:        set_bool(to, x < y); return true;
+				case LEQ:       set_bool(to, x <= y); return true;
+				case GT:        set_bool(to, x > y); return true;
+				case GEQ:       set_bool(to, x >= y); return true;
+				case EQUALS:    set_bool(to, x == y); return true;
+				case NEQUALS:   set_bool(to, x != y); return true;
+			}
+		} else if ((left == INTEGER || left == FLOAT) && (right == INTEGER || right == FLOAT)) {
+			double x = float_value(a), y = float_value(b);
+			switch (op) {
+				case PLUS:      set_float(to, x + y); return true;
+				case MINUS:     set_float(to, x - y); return true;
+				case TIMES:     set_float(to, x * y); return true;
+				case DIV:       set_float(to, x / y); return true;
+				case MOD:       set_float(to, x % y); return true;
+				case LT:        set_bool(to, x < y); return true;
+				case LEQ:       set_bool(to, x <= y); return true;
+				case GT:        set_bool(to, x > y); return true;
+				case GEQ:       set_bool(to, x >= y); return true;
+				case EQUALS:    set_bool(to, x == y); return true;
+				case NEQUALS:   set_bool(to, x != y); return true;
+			}
+		}
+		switch (op) {
+			case AND:   set_bool(to, truthy(a) && truthy(b)); return true;
+			case OR:    set_bool(to, truthy(a) || truthy(b)); return true;
+		}
+		return store(to, Value.binary(op, get(a), get(b)));
+	}
+
+	private boolean store(int slot, Value value) {
+		if (value == null) return false;
+		set(slot, value);
+		return true;
+	}
+}
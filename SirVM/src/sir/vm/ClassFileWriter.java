@@ -0,0 +1,357 @@
+package sir.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes a JVM class file holding a public no-argument constructor and one
+ * public method, whose code is assembled instruction by instruction.
+ * <p>
+ * Classes are of version 49, checked by the type inferring verifier, so
+ * that no stack map frames are needed. Branches are 16-bit: methods whose
+ * code grows past 32 KiB are refused. Branches and switches may go to labels
+ * marked after them, their offsets being fixed up once the code is done.
+ */
+class ClassFileWriter {
+	// Opcodes used by the Jit
+	static final int ICONST_M1 = 2, ICONST_0 = 3, LCONST_0 = 9, LCONST_1 = 10;
+	static final int BIPUSH = 16, SIPUSH = 17, LDC_W = 19, LDC2_W = 20;
+	static final int ILOAD = 21, LLOAD = 22, ALOAD = 25, ALOAD_0 = 42, LSTORE = 55;
+	static final int IADD = 96, LADD = 97, LSUB = 101, LMUL = 105, LDIV = 109, LREM = 113, LNEG = 117;
+	static final int LSHL = 121, LSHR = 123, LAND = 127, LOR = 129, LXOR = 131, L2I = 136, LCMP = 148;
+	static final int IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158;
+	static final int IF_ICMPEQ = 159, IF_ICMPNE = 160, GOTO = 167, TABLESWITCH = 170, LOOKUPSWITCH = 171;
+	static final int IRETURN = 172, RETURN_VOID = 177;
+	static final int INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKEINTERFACE = 185, WIDE = 196;
+
+	private static final int MAX_CODE = 32767;
+
+	// Constant pool, entries interned by a key of their tag and contents
+	private final ByteArrayOutputStream pool_bytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(pool_bytes);
+	private final HashMap<String, Integer> entries = new HashMap<>();
+	private int pool_count = 1;
+
+	private byte[] code = new byte[256];
+	private int length;
+
+	// Label positions, -1 until marked, and the offsets waiting for them:
+	// (label, offset of the branch or switch opcode, offset of the offset,
+	// its size in bytes)
+	private int[] labels = new int[16];
+	private int label_count;
+	private int[] fixups = new int[64];
+	private int fixup_count;
+
+	int label() {
+		if (label_count == labels.length) labels = Arrays.copyOf(labels, 2 * label_count);
+		labels[label_count] = -1;
+		return label_count++;
+	}
+
+	void mark(int label) {
+		labels[label] = length;
+	}
+
+	int position() {
+		return length;
+	}
+
+	void op(int opcode) {
+		u1(opcode);
+	}
+
+	void iconst(int value) {
+		if (value >= -1 && value <= 5) u1(ICONST_0 + value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			u1(BIPUSH);
+			u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			u1(SIPUSH);
+			u2(value);
+		} else {
+			u1(LDC_W);
+			u2(constant("I" + value, 3, value));
+		}
+	}
+
+	void lconst(long value) {
+		if (value == 0 || value == 1) u1(LCONST_0 + (int) value);
+		else {
+			u1(LDC2_W);
+			u2(constant("J" + value, 5, value));
+		}
+	}
+
+	void iload(int local) {
+		local(ILOAD, local);
+	}
+
+	void lload(int local) {
+		local(LLOAD, local);
+	}
+
+	void aload(int local) {
+		local(ALOAD, local);
+	}
+
+	void lstore(int local) {
+		local(LSTORE, local);
+	}
+
+	private void local(int opcode, int local) {
+		if (local > 255) {
+			u1(WIDE);
+			u1(opcode);
+			u2(local);
+		} else {
+			u1(opcode);
+			u1(local);
+		}
+	}
+
+	void jump(int opcode, int label) {
+		int at = length;
+		u1(opcode);
+		offset(label, at, 2);
+	}
+
+	/**
+	 * Jumps to the label of the first key equal to the int on top of the
+	 * operand stack, to {@code otherwise} if none.
+	 */
+	void lookupswitch(int[] keys, int[] targets, int count, int otherwise) {
+		int at = length;
+		u1(LOOKUPSWITCH);
+		while (length % 4 != 0)
+			u1(0);
+		int[] sorted = new int[count];
+		for (int i = 0; i < count; i++)
+			sorted[i] = i;
+		sort(sorted, keys);
+		offset(otherwise, at, 4);
+		u4(count);
+		for (int i : sorted) {
+			u4(keys[i]);
+			offset(targets[i], at, 4);
+		}
+	}
+
+	/**
+	 * Jumps to label {@code targets[i - low]} for the int i on top of the
+	 * operand stack, to {@code otherwise} if out of range.
+	 */
+	void tableswitch(int low, int[] targets, int count, int otherwise) {
+		int at = length;
+		u1(TABLESWITCH);
+		while (length % 4 != 0)
+			u1(0);
+		offset(otherwise, at, 4);
+		u4(low);
+		u4(low + count - 1);
+		for (int i = 0; i < count; i++)
+			offset(targets[i], at, 4);
+	}
+
+	// Offset of a label from the instruction at {@code at}, written once the code is done
+	private void offset(int label, int at, int size) {
+		if (4 * fixup_count + 4 > fixups.length) fixups = Arrays.copyOf(fixups, 2 * fixups.length);
+		fixups[4 * fixup_count] = label;
+		fixups[4 * fixup_count + 1] = at;
+		fixups[4 * fixup_count + 2] = length;
+		fixups[4 * fixup_count + 3] = size;
+		fixup_count++;
+		if (size == 2) u2(0);
+		else u4(0);
+	}
+
+	private static void sort(int[] indexes, int[] keys) {
+		for (int i = 1; i < indexes.length; i++)
+			for (int j = i; j > 0 && keys[indexes[j - 1]] > keys[indexes[j]]; j--) {
+				int swap = indexes[j];
+				indexes[j] = indexes[j - 1];
+				indexes[j - 1] = swap;
+			}
+	}
+
+	void invoke(int opcode, String owner, String name, String descriptor) {
+		boolean is_interface = opcode == INVOKEINTERFACE;
+		int index = member(is_interface ? 11 : 10, owner, name, descriptor);
+		u1(opcode);
+		u2(index);
+		if (is_interface) {
+			u1(arguments_size(descriptor) + 1);
+			u1(0);
+		}
+	}
+
+	/**
+	 * The class file of a final class extending Object and implementing one
+	 * interface, its method having the code assembled so far.
+	 */
+	byte[] to_class(String name, String implemented, String method, String descriptor, int max_stack, int max_locals) {
+		for (int i = 0; i < fixup_count; i++) {
+			int target = labels[fixups[4 * i]], at = fixups[4 * i + 1], field = fixups[4 * i + 2];
+			if (target < 0) throw new IllegalStateException("Jump to an unmarked label");
+			for (int b = fixups[4 * i + 3] - 1; b >= 0; b--)
+				code[field + fixups[4 * i + 3] - 1 - b] = (byte) (target - at >> 8 * b);
+		}
+		if (length > MAX_CODE) throw new IllegalStateException("Method too large");
+
+		int this_class = class_entry(name);
+		int super_class = class_entry("java/lang/Object");
+		int interface_class = class_entry(implemented);
+		int constructor = utf8("<init>"), no_arguments = utf8("()V");
+		int object_constructor = member(10, "java/lang/Object", "<init>", "()V");
+		int method_name = utf8(method), method_descriptor = utf8(descriptor);
+		int code_name = utf8("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(pool_count);
+			out.write(pool_bytes.toByteArray());
+			out.writeShort(0x0001 | 0x0010 | 0x0020);   // public final super
+			out.writeShort(this_class);
+			out.writeShort(super_class);
+			out.writeShort(1);
+			out.writeShort(interface_class);
+			out.writeShort(0);
+			out.writeShort(2);
+
+			out.writeShort(0x0001);
+			out.writeShort(constructor);
+			out.writeShort(no_arguments);
+			out.writeShort(1);
+			out.writeShort(code_name);
+			out.writeInt(12 + 5);
+			out.writeShort(1);
+			out.writeShort(1);
+			out.writeInt(5);
+			out.writeByte(ALOAD_0);
+			out.writeByte(INVOKESPECIAL);
+			out.writeShort(object_constructor);
+			out.writeByte(RETURN_VOID);
+			out.writeShort(0);
+			out.writeShort(0);
+
+			out.writeShort(0x0001);
+			out.writeShort(method_name);
+			out.writeShort(method_descriptor);
+			out.writeShort(1);
+			out.writeShort(code_name);
+			out.writeInt(12 + length);
+			out.writeShort(max_stack);
+			out.writeShort(max_locals);
+			out.writeInt(length);
+			out.write(code, 0, length);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	// Constant pool
+
+	private int utf8(String value) {
+		Integer index = entries.get("U" + value);
+		if (index != null) return index;
+		try {
+			pool.writeByte(1);
+			pool.writeUTF(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		entries.put("U" + value, pool_count);
+		return pool_count++;
+	}
+
+	private int class_entry(String name) {
+		int utf8 = utf8(name);
+		return entry("C" + name, 7, utf8, -1);
+	}
+
+	private int member(int tag, String owner, String name, String descriptor) {
+		int owner_class = class_entry(owner);
+		int name_and_type = entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+		return entry(tag + owner + "." + name + ":" + descriptor, tag, owner_class, name_and_type);
+	}
+
+	// Entry of one or two 2-byte indexes
+	private int entry(String key, int tag, int first, int second) {
+		Integer index = entries.get(key);
+		if (index != null) return index;
+		try {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0) pool.writeShort(second);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		entries.put(key, pool_count);
+		return pool_count++;
+	}
+
+	// Integer (tag 3) or long (tag 5) entry, longs taking two slots
+	private int constant(String key, int tag, long value) {
+		Integer index = entries.get(key);
+		if (index != null) return index;
+		try {
+			pool.writeByte(tag);
+			if (tag == 5) pool.writeLong(value);
+			else pool.writeInt((int) value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		entries.put(key, pool_count);
+		int at = pool_count;
+		pool_count += tag == 5 ? 2 : 1;
+		return at;
+	}
+
+	// Slots taken by the arguments of a method descriptor
+	private static int arguments_size(String descriptor) {
+		int size = 0;
+		for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+			char c = descriptor.charAt(i);
+			if (c == 'J' || c == 'D') size += 2;
+			else {
+				size++;
+				if (c == 'L') i = descriptor.indexOf(';', i);
+				else if (c == '[') {
+					while (descriptor.charAt(i) == '[')
+						i++;
+					if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+				}
+			}
+		}
+		return size;
+	}
+
+	private void u1(int value) {
+		ensure(1);
+		code[length++] = (byte) value;
+	}
+
+	private void u2(int value) {
+		u1(value >> 8);
+		u1(value);
+	}
+
+	private void u4(int value) {
+		u2(value >> 16);
+		u2(value);
+	}
+
+	private void ensure(int bytes) {
+		if (length + bytes > code.length) code = Arrays.copyOf(code, Math.max(2 * code.length, length + bytes));
+	}
+}
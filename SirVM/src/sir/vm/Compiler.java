@@ -0,0 +1,520 @@
+package sir.vm;
+
+import sir.compiler.*;
+
+import java.util.Arrays;
+
+import static sir.compiler.Token.Type.*;
+import static sir.vm.Opcode.*;
+
+/**
+ * Compiles a resolved tree to the register code of a {@link Program}.
+ * <p>
+ * Every routine gets a frame of registers: its arguments and locals first,
+ * at the slots given by the {@link Resolver}, then the temporaries of its
+ * expressions, allocated as a stack. A call evaluates its arguments into the
+ * topmost temporaries, where the frame of the callee starts, so that they
+ * are never copied. Static gotos jump straight to their label, and label
+ * values are the integer index of the label in its routine: computed gotos
+ * jump through a table of the labels of their routine, its entries set to
+ * the code offsets of the labels once the routine is compiled.
+ * <p>
+ * A routine named {@code <start>} is added as the entry of the program: it
+ * initializes the globals and calls {@code main} with its own arguments, if
+ * there is a {@code main}. Indexes and members are not supported yet, nor
+ * calls to anything but a routine of the program; they are reported.
+ * {@code x ~= y} assigns {@code ~y} to {@code x}.
+ */
+public class Compiler {
+	private static final int DISCARD = -1;
+
+	private final Ast ast;
+	private final SymbolTable symbols;
+	private final Resolver resolver;
+	private final Diagnostics diagnostics;
+	private final ProgramWriter out;
+
+	// Per routine slot
+	private int[] arities;
+	private boolean[] defined;
+
+	private int top, registers;
+
+	// Code offsets of the labels of the routine, and the jumps waiting for them
+	private int[] labels;
+	private int[] fixups;
+	private int fixup_count;
+	private int table;          // first label entry of the routine, -1 if none
+
+	public Compiler(Ast ast, SymbolTable symbols, Resolver resolver, Diagnostics diagnostics) {
+		this.ast = ast;
+		this.symbols = symbols;
+		this.resolver = resolver;
+		this.diagnostics = diagnostics;
+		this.out = new ProgramWriter();
+		this.fixups = new int[16];
+	}
+
+	/**
+	 * Compiles the whole tree, returns the program to write or wrap.
+	 */
+	public ProgramWriter compile() {
+		int routines = resolver.routines();
+		arities = new int[routines];
+		defined = new boolean[routines];
+		String[] names = new String[routines];
+		for (int routine = ast.first_child(0); routine != Ast.NONE; routine = ast.next_sibling(routine)) {
+			if (ast.kind_of(routine) != Ast.Kind.ROUTINE || resolver.slot_of(routine) == Ast.NONE) continue;
+			int slot = resolver.slot_of(routine);
+			names[slot] = symbols.name(ast.symbol_of(ast.first_child(routine)));
+			arities[slot] = ast.child_count(routine) - 1 - (body_of(routine) == Ast.NONE ? 0 : 1);
+			defined[slot] |= body_of(routine) != Ast.NONE;
+		}
+		for (int slot = 0; slot < routines; slot++)
+			out.routine(names[slot], arities[slot], resolver.frame_size(slot));
+
+		for (int routine = ast.first_child(0); routine != Ast.NONE; routine = ast.next_sibling(routine))
+			if (ast.kind_of(routine) == Ast.Kind.ROUTINE && resolver.slot_of(routine) != Ast.NONE && body_of(routine) != Ast.NONE)
+				routine(routine);
+		start();
+		out.globals(resolver.globals());
+		return out;
+	}
+
+	private int body_of(int routine) {
+		int last = Ast.NONE;
+		for (int child = ast.first_child(routine); child != Ast.NONE; child = ast.next_sibling(child))
+			last = child;
+		return ast.kind_of(last) == Ast.Kind.BLOCK ? last : Ast.NONE;
+	}
+
+	private void routine(int node) {
+		int slot = resolver.slot_of(node);
+		out.begin_routine(slot);
+		registers = top = resolver.frame_size(slot);
+		labels = new int[resolver.label_count(slot)];
+		Arrays.fill(labels, -1);
+		fixup_count = 0;
+		table = -1;
+
+		out.line(ast.line_of(node));
+		block(body_of(node));
+		out.emit(RETURN_NULL);
+		for (int i = 0; i < fixup_count; i += 2)
+			out.patch(fixups[i], labels[fixups[i + 1]]);
+		if (table >= 0)
+			for (int i = 0; i < labels.length; i++)
+				out.label(table + i, labels[i]);
+
+		out.end_routine();
+		out.frame_size(slot, registers);
+	}
+
+	// Initializes the globals and calls main
+	private void start() {
+		int main = Ast.NONE;
+		for (int routine = ast.first_child(0); routine != Ast.NONE; routine = ast.next_sibling(routine))
+			if (ast.kind_of(routine) == Ast.Kind.ROUTINE && resolver.slot_of(routine) != Ast.NONE
+					&& symbols.name(ast.symbol_of(ast.first_child(routine))).equals("main"))
+				main = resolver.slot_of(routine);
+		int arity = main == Ast.NONE ? 0 : arities[main];
+		int start = out.routine("<start>", arity, arity);
+		out.begin_routine(start);
+		registers = top = arity;
+
+		for (int global = ast.first_child(0); global != Ast.NONE; global = ast.next_sibling(global)) {
+			if (ast.kind_of(global) != Ast.Kind.GLOBAL) continue;
+			for (int declarator = ast.first_child(global); declarator != Ast.NONE; declarator = ast.next_sibling(declarator)) {
+				int initializer = ast.first_child(declarator);
+				if (initializer == Ast.NONE || resolver.slot_of(declarator) == Ast.NONE) continue;
+				out.line(ast.line_of(declarator));
+				int value = temporary();
+				into(initializer, value);
+				out.emit(SET_GLOBAL, resolver.slot_of(declarator), value);
+				top = arity;
+			}
+		}
+		if (main != Ast.NONE && defined[main]) {
+			out.emit(CALL, 0, main, 0);
+			out.emit(RETURN, 0);
+		} else
+			out.emit(RETURN_NULL);
+		out.end_routine();
+		out.frame_size(start, Math.max(registers, 1));
+		out.entry(start);
+	}
+
+	private void block(int node) {
+		for (int statement = ast.first_child(node); statement != Ast.NONE; statement = ast.next_sibling(statement))
+			statement(statement);
+	}
+
+	private void statement(int node) {
+		int saved = top;
+		out.line(ast.line_of(node));
+		switch (ast.kind_of(node)) {
+			case BLOCK:
+				block(node);
+				break;
+			case EMPTY:
+				break;
+			case LABEL:
+				labels[resolver.slot_of(node)] = out.position();
+				break;
+			case GOTO:
+				jump_to_label(JUMP, DISCARD, resolver.slot_of(node));
+				break;
+			case COMPUTED_GOTO: {
+				int value = operand(ast.first_child(node));
+				if (table < 0) table = out.labels(labels.length);
+				out.emit(JUMP_TABLE, value, table, labels.length);
+				out.emit(BAD_LABEL, value);
+				break;
+			}
+			case VAR:
+				for (int declarator = ast.first_child(node); declarator != Ast.NONE; declarator = ast.next_sibling(declarator)) {
+					int initializer = ast.first_child(declarator);
+					if (initializer == Ast.NONE)
+						out.emit(CONST, resolver.slot_of(declarator), out.constant_null());
+					else
+						into(initializer, resolver.slot_of(declarator));
+					top = saved;
+				}
+				break;
+			case RETURN: {
+				int value = ast.first_child(node);
+				if (value == Ast.NONE) out.emit(RETURN_NULL);
+				else out.emit(RETURN, operand(value));
+				break;
+			}
+			case IF: {
+				int condition = ast.first_child(node), then = ast.next_sibling(condition), otherwise = ast.next_sibling(then);
+				int skip = jump(JUMP_UNLESS, operand(condition));
+				top = saved;
+				statement(then);
+				if (otherwise != Ast.NONE) {
+					int end = jump(JUMP, DISCARD);
+					land(skip);
+					statement(otherwise);
+					land(end);
+				} else
+					land(skip);
+				break;
+			}
+			case WHILE: {
+				int condition = ast.first_child(node), start = out.position();
+				int end = jump(JUMP_UNLESS, operand(condition));
+				top = saved;
+				statement(ast.next_sibling(condition));
+				out.emit(JUMP, start);
+				land(end);
+				break;
+			}
+			case EVALUATE:
+				effect(ast.first_child(node));
+				break;
+			default:
+				diagnostics.report(ast.line_of(node), "Cannot compile %s statement", ast.kind_of(node));
+		}
+		top = saved;
+	}
+
+	// Emits a jump whose target is patched later, returns the offset of its target word
+	private int jump(int instruction, int register) {
+		if (instruction == JUMP) out.emit(JUMP, -1);
+		else out.emit(instruction, register, -1);
+		return out.position() - 1;
+	}
+
+	// Makes a jump emitted by jump() land on the next instruction
+	private void land(int target) {
+		out.patch(target, out.position());
+	}
+
+	private void jump_to_label(int instruction, int register, int label) {
+		int target = jump(instruction, register);
+		if (fixup_count + 2 > fixups.length) fixups = Arrays.copyOf(fixups, fixups.length * 2);
+		fixups[fixup_count++] = target;
+		fixups[fixup_count++] = label;
+	}
+
+	private int temporary() {
+		registers = Math.max(registers, top + 1);
+		return top++;
+	}
+
+	// Evaluates an expression for its effects
+	private void effect(int node) {
+		switch (ast.kind_of(node)) {
+			case ASSIGN:    assign(node, DISCARD); break;
+			case POSTFIX:   postfix(node, DISCARD); break;
+			case CALL:      call(node, DISCARD); break;
+			default:        into(node, temporary());
+		}
+	}
+
+	// Register holding the value of an expression: its variable, or a temporary
+	private int operand(int node) {
+		if (ast.kind_of(node) == Ast.Kind.NAME && is_frame(node)) return resolver.slot_of(node);
+		int register = temporary();
+		into(node, register);
+		return register;
+	}
+
+	private boolean is_frame(int node) {
+		Resolver.Storage storage = resolver.storage_of(node);
+		return storage == Resolver.Storage.LOCAL || storage == Resolver.Storage.ARGUMENT;
+	}
+
+	// True if evaluating the expression may assign a variable
+	private boolean has_effects(int node) {
+		Ast.Kind kind = ast.kind_of(node);
+		if (kind == Ast.Kind.ASSIGN || kind == Ast.Kind.POSTFIX || kind == Ast.Kind.CALL) return true;
+		for (int child = ast.first_child(node); child != Ast.NONE; child = ast.next_sibling(child))
+			if (has_effects(child)) return true;
+		return false;
+	}
+
+	// True if the expression writes its register only once it read all its operands
+	private boolean is_direct(int node) {
+		switch (ast.kind_of(node)) {
+			case BINARY:    return ast.op_of(node) != AND && ast.op_of(node) != OR;
+			case UNARY:
+			case NAME:
+			case INTEGER:
+			case FLOAT:
+			case STRING:
+			case BOOL:
+			case NULL:      return true;
+			default:        return false;
+		}
+	}
+
+	/*
+	 * Evaluates an expression into a register, which may be written before
+	 * all the operands are read.
+	 */
+	private void into(int node, int register) {
+		int saved = top;
+		switch (ast.kind_of(node)) {
+			case INTEGER:
+				out.emit(CONST, register, out.constant_int(ast.int_value(node)));
+				break;
+			case FLOAT:
+				out.emit(CONST, register, out.constant_float(ast.float_value(node)));
+				break;
+			case STRING:
+				out.emit(CONST, register, out.constant_string(ast.str_value(node)));
+				break;
+			case BOOL:
+				out.emit(CONST, register, out.constant_bool(ast.bool_value(node)));
+				break;
+			case NULL:
+				out.emit(CONST, register, out.constant_null());
+				break;
+			case NAME:
+				name(node, register);
+				break;
+			case UNARY:
+				out.emit(unary(ast.op_of(node)), register, operand(ast.first_child(node)));
+				break;
+			case BINARY:
+				binary(node, register);
+				break;
+			case TERNARY: {
+				int condition = ast.first_child(node), then = ast.next_sibling(condition);
+				int otherwise = jump(JUMP_UNLESS, operand(condition));
+				into(then, register);
+				int end = jump(JUMP, DISCARD);
+				land(otherwise);
+				into(ast.next_sibling(then), register);
+				land(end);
+				break;
+			}
+			case ASSIGN:
+				assign(node, register);
+				break;
+			case POSTFIX:
+				postfix(node, register);
+				break;
+			case CALL:
+				call(node, register);
+				break;
+			default:
+				diagnostics.report(ast.line_of(node), "%s expressions are not supported yet", ast.kind_of(node));
+				out.emit(CONST, register, out.constant_null());
+		}
+		top = saved;
+	}
+
+	private void name(int node, int register) {
+		int slot = resolver.slot_of(node);
+		switch (resolver.storage_of(node)) {
+			case LOCAL:
+			case ARGUMENT:
+				if (slot != register) out.emit(MOVE, register, slot);
+				break;
+			case GLOBAL:
+				out.emit(GET_GLOBAL, register, slot);
+				break;
+			case LABEL:
+				out.emit(CONST, register, out.constant_int(slot));
+				break;
+			default:
+				diagnostics.report(ast.line_of(node), "Routine '%s' is not a value", symbols.name(ast.symbol_of(node)));
+				out.emit(CONST, register, out.constant_null());
+		}
+	}
+
+	private void binary(int node, int register) {
+		Token.Type op = ast.op_of(node);
+		int left = ast.first_child(node), right = ast.next_sibling(left);
+		if (op == AND || op == OR) {
+			into(left, register);
+			int end = jump(op == AND ? JUMP_UNLESS : JUMP_IF, register);
+			into(right, register);
+			land(end);
+			out.emit(TRUTH, register, register);
+			return;
+		}
+		int a = operand(left);
+		if (has_effects(right) && ast.kind_of(left) == Ast.Kind.NAME && is_frame(left)) {
+			// The variable is read before the right operand assigns it
+			out.emit(MOVE, a = temporary(), resolver.slot_of(left));
+		}
+		out.emit(binary(op), register, a, operand(right));
+	}
+
+	private void assign(int node, int register) {
+		Token.Type op = ast.op_of(node);
+		int target = ast.first_child(node), value = ast.next_sibling(target);
+		if (ast.kind_of(target) != Ast.Kind.NAME) {
+			diagnostics.report(ast.line_of(node), "Only variables can be assigned yet");
+			if (register != DISCARD) out.emit(CONST, register, out.constant_null());
+			return;
+		}
+		Resolver.Storage storage = resolver.storage_of(target);
+		int slot = resolver.slot_of(target);
+		if (storage == Resolver.Storage.LOCAL || storage == Resolver.Storage.ARGUMENT) {
+			if (op == STRICT_ASSIGN) {
+				if (is_direct(value)) into(value, slot);
+				else out.emit(MOVE, slot, operand(value));
+			} else if (op == B_NOT_ASSIGN) {
+				out.emit(Opcode.B_NOT, slot, operand(value));
+			} else {
+				int a = slot;
+				if (has_effects(value)) out.emit(MOVE, a = temporary(), slot);
+				out.emit(binary(compound(op)), slot, a, operand(value));
+			}
+			if (register != DISCARD && register != slot) out.emit(MOVE, register, slot);
+		} else if (storage == Resolver.Storage.GLOBAL) {
+			int result = register != DISCARD ? register : temporary();
+			if (op == STRICT_ASSIGN) {
+				into(value, result);
+			} else if (op == B_NOT_ASSIGN) {
+				out.emit(Opcode.B_NOT, result, operand(value));
+			} else {
+				int a = temporary();
+				out.emit(GET_GLOBAL, a, slot);
+				out.emit(binary(compound(op)), result, a, operand(value));
+			}
+			out.emit(SET_GLOBAL, slot, result);
+		} else {
+			diagnostics.report(ast.line_of(node), "Cannot assign to '%s'", symbols.name(ast.symbol_of(target)));
+			if (register != DISCARD) out.emit(CONST, register, out.constant_null());
+		}
+	}
+
+	private void postfix(int node, int register) {
+		int target = ast.first_child(node);
+		int op = ast.op_of(node) == PLUSPLUS ? ADD : SUB;
+		if (ast.kind_of(target) != Ast.Kind.NAME || resolver.storage_of(target) == Resolver.Storage.LABEL
+				|| resolver.storage_of(target) == Resolver.Storage.ROUTINE) {
+			diagnostics.report(ast.line_of(node), "Only variables can be incremented or decremented");
+			if (register != DISCARD) out.emit(CONST, register, out.constant_null());
+			return;
+		}
+		int one = temporary();
+		out.emit(CONST, one, out.constant_int(1));
+		int slot = resolver.slot_of(target);
+		if (is_frame(target)) {
+			if (register != DISCARD) out.emit(MOVE, register, slot);
+			out.emit(op, slot, slot, one);
+		} else {
+			int value = temporary();
+			out.emit(GET_GLOBAL, value, slot);
+			if (register != DISCARD) out.emit(MOVE, register, value);
+			out.emit(op, value, value, one);
+			out.emit(SET_GLOBAL, slot, value);
+		}
+	}
+
+	private void call(int node, int register) {
+		int callee = ast.first_child(node);
+		if (ast.kind_of(callee) != Ast.Kind.NAME || resolver.storage_of(callee) != Resolver.Storage.ROUTINE) {
+			diagnostics.report(ast.line_of(node), "Only routines can be called");
+			if (register != DISCARD) out.emit(CONST, register, out.constant_null());
+			return;
+		}
+		int routine = resolver.slot_of(callee), count = ast.child_count(node) - 1;
+		String name = symbols.name(ast.symbol_of(callee));
+		if (!defined[routine])
+			diagnostics.report(ast.line_of(node), "Routine '%s' is not defined in this program", name);
+		if (count != arities[routine])
+			diagnostics.report(ast.line_of(node), "Routine '%s' takes %d arguments, not %d", name, arities[routine], count);
+
+		int base = top;
+		for (int argument = ast.next_sibling(callee); argument != Ast.NONE; argument = ast.next_sibling(argument)) {
+			int register_of = temporary();
+			into(argument, register_of);
+			top = register_of + 1;
+		}
+		if (base == top) temporary();
+		out.emit(CALL, register != DISCARD ? register : base, routine, base);
+	}
+
+	private static int unary(Token.Type op) {
+		switch (op) {
+			case PLUS:      return POS;
+			case MINUS:     return NEG;
+			case NOT:       return Opcode.NOT;
+			default:        return Opcode.B_NOT;
+		}
+	}
+
+	private static int binary(Token.Type op) {
+		switch (op) {
+			case PLUS:      return ADD;
+			case MINUS:     return SUB;
+			case TIMES:     return MUL;
+			case DIV:       return Opcode.DIV;
+			case MOD:       return Opcode.MOD;
+			case B_AND:     return Opcode.B_AND;
+			case B_OR:      return Opcode.B_OR;
+			case B_XOR:     return Opcode.B_XOR;
+			case L_SHIFT:   return SHL;
+			case R_SHIFT:   return SHR;
+			case LT:        return Opcode.LT;
+			case LEQ:       return LE;
+			case GT:        return Opcode.GT;
+			case GEQ:       return GE;
+			case EQUALS:    return EQ;
+			default:        return NE;
+		}
+	}
+
+	private static Token.Type compound(Token.Type op) {
+		switch (op) {
+			case PLUS_ASSIGN:       return PLUS;
+			case MINUS_ASSIGN:      return MINUS;
+			case TIMES_ASSIGN:      return TIMES;
+			case DIV_ASSIGN:        return Token.Type.DIV;
+			case MOD_ASSIGN:        return Token.Type.MOD;
+			case B_AND_ASSIGN:      return Token.Type.B_AND;
+			case B_OR_ASSIGN:       return Token.Type.B_OR;
+			case B_XOR_ASSIGN:      return Token.Type.B_XOR;
+			case R_SHIFT_ASSIGN:    return R_SHIFT;
+			default:                return L_SHIFT;
+		}
+	}
+}
@@ -0,0 +1,690 @@
+package sir.vm;
+
+import sir.compiler.ValueStack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static sir.vm.ClassFileWriter.*;
+import static sir.vm.Opcode.*;
+
+/**
+ * Second tier of the {@link VirtualMachine}: routines the interpreter runs
+ * often are translated to JVM classes, for HotSpot to compile in turn.
+ * <p>
+ * The interpreter counts the calls of each routine and the backward jumps
+ * taken in it. Past {@link #HOT}, the routine is translated if the registers
+ * it reads only ever hold integers or booleans, as inferred from its code,
+ * the tags of its arguments and of the globals at that time, and the types
+ * its callees return. Its registers then live in long locals. Compiled code
+ * is entered at the start of its routine or, from the interpreter, at the
+ * target of a backward jump, the tags of the live registers being checked
+ * as they are loaded.
+ * <p>
+ * Whenever a guard fails, be it a global or a returned value of another
+ * type, a division by zero or a computed goto to no label, the live
+ * registers are written back to the frame and the interpreter goes on from
+ * the failing instruction, which also reports errors. A routine failing its
+ * guards too often is left to the interpreter for good.
+ */
+public class Jit {
+	/**
+	 * Returned by compiled code that ran its routine to the end, its value
+	 * being in the first slot of the frame.
+	 */
+	public static final int DONE = -1;
+
+	/**
+	 * Code of a compiled routine, run from {@code pc} over the frame at
+	 * {@code base}. Returns {@link #DONE} or the pc where the interpreter is
+	 * to go on with the frame.
+	 */
+	public interface Routine {
+		int run(Jit jit, ValueStack stack, int base, int depth, int pc);
+	}
+
+	static final int HOT = 1000;                // calls and backward jumps before translating
+	private static final int NESTING = 256;     // compiled activations on the JVM stack
+	private static final int DEOPTS = 100;      // guard failures before giving up
+
+	// Types of registers, NONE before they are written
+	private static final byte NONE = 0, INT = 1, BOOL = 2, ANY = 3;
+
+	// Locals of the run method, registers taking two from REGISTERS on
+	private static final int JIT = 1, STACK = 2, BASE = 3, DEPTH = 4, PC = 5, REGISTERS = 6;
+
+	private static final String STACK_CLASS = "sir/compiler/ValueStack";
+	private static final String RUN = "(Lsir/vm/Jit;L" + STACK_CLASS + ";III)I";
+
+	private final VirtualMachine machine;
+	private final Program program;
+	private final int[] code;
+	private final byte[] constant_tags;
+	private final long[] constant_bits;
+	private final ValueStack stack;
+	private final Loader loader;
+
+	private final int[] starts;
+	private final Routine[] compiled;
+	private final int[] hotness, deopts;
+	private final boolean[] heads;      // entries of compiled code past the start of routines
+	private final byte[] returns;       // types routines return, NONE until inferred
+	private int nesting;
+
+	// Routine being translated
+	private ClassFileWriter out;
+	private int start;
+	private byte[][] types;             // register types before each instruction, null where unreached
+	private BitSet[] live;              // registers live before each instruction
+	private int[] labels;
+	private boolean[] entries;          // instructions compiled code can be entered at
+	private int[] stubs;                // (pc, kind, label) of the deoptimizations to write
+	private int stub_count;
+
+	Jit(VirtualMachine machine, Program program, int[] code, byte[] constant_tags, long[] constant_bits,
+	    ValueStack stack) {
+		this.machine = machine;
+		this.program = program;
+		this.code = code;
+		this.constant_tags = constant_tags;
+		this.constant_bits = constant_bits;
+		this.stack = stack;
+		this.loader = new Loader();
+		int routines = program.routine_count();
+		this.starts = new int[routines];
+		for (int r = 0; r < routines; r++)
+			starts[r] = program.code_start(r);
+		this.compiled = new Routine[routines];
+		this.hotness = new int[routines];
+		this.deopts = new int[routines];
+		this.heads = new boolean[code.length];
+		this.returns = new byte[routines];
+	}
+
+	public boolean is_compiled(int routine) {
+		return compiled[routine] != null;
+	}
+
+	/**
+	 * Runs a routine called by compiled code, its arguments being in the
+	 * frame at {@code base}, where its value is left.
+	 */
+	public void call(int routine, int base, int depth, int pc) {
+		machine.invoke(routine, base, depth, pc);
+	}
+
+	/**
+	 * Counts a call of a routine, or a backward jump to {@code pc}, and runs
+	 * its compiled code from there if there is. Returns {@link #DONE} or the
+	 * pc where the interpreter is to go on.
+	 */
+	int enter(int routine, int base, int depth, int pc) {
+		Routine routine_code = compiled[routine];
+		if (routine_code == null) {
+			if (hotness[routine] > HOT || ++hotness[routine] < HOT) return pc;
+			hotness[routine]++;
+			routine_code = compiled[routine] = compile(routine, base);
+			if (routine_code == null) return pc;
+		}
+		if (pc != starts[routine] && !heads[pc] || nesting == NESTING) return pc;
+		int resume;
+		nesting++;
+		try {
+			resume = routine_code.run(this, stack, base, depth, pc);
+		} finally {
+			nesting--;
+		}
+		if (resume != DONE && ++deopts[routine] == DEOPTS) compiled[routine] = null;
+		return resume;
+	}
+
+	private Routine compile(int routine, int base) {
+		byte[] arguments = new byte[program.arity(routine)];
+		for (int i = 0; i < arguments.length; i++)
+			arguments[i] = type_of(stack.tag(base + i));
+		byte[][] inferred = infer(routine, arguments);
+		if (inferred == null) return null;
+		types = inferred;
+		try {
+			String name = "sir/vm/jitted/R" + routine + "_" + identifier(program.string(program.routine_name(routine)));
+			byte[] bytes = translate(routine, name);
+			Routine translated = (Routine) loader.define(name.replace('/', '.'), bytes)
+					.getDeclaredConstructor().newInstance();
+			for (int pc = 0; pc < entries.length; pc++)
+				if (entries[pc]) heads[start + pc] = true;
+			return translated;
+		} catch (IllegalStateException | LinkageError | ReflectiveOperationException e) {
+			return null;
+		} finally {
+			types = null;
+			live = null;
+			entries = null;
+			out = null;
+		}
+	}
+
+	// Inference
+
+	private static byte type_of(int tag) {
+		return tag == ValueStack.INTEGER ? INT : tag == ValueStack.BOOL ? BOOL : ANY;
+	}
+
+	private static byte join(byte a, byte b) {
+		return a == b || b == NONE ? a : a == NONE ? b : ANY;
+	}
+
+	// Type of the values a routine returns, INT being assumed while it is
+	// inferred so that recursive routines get one
+	private byte return_type(int routine) {
+		if (returns[routine] == NONE) {
+			returns[routine] = INT;
+			byte[] arguments = new byte[program.arity(routine)];
+			Arrays.fill(arguments, INT);
+			if (infer(routine, arguments) == null) returns[routine] = ANY;
+		}
+		return returns[routine];
+	}
+
+	/**
+	 * Types of the registers before each instruction of a routine, null if
+	 * some instruction reads a register that may hold anything else than an
+	 * integer or a boolean. Also works out the type the routine returns.
+	 */
+	private byte[][] infer(int routine, byte[] arguments) {
+		machine.load(routine);
+		int start = program.code_start(routine), end = program.code_end(routine);
+		byte[][] in = new byte[end - start][];
+		in[0] = new byte[program.frame_size(routine)];
+		System.arraycopy(arguments, 0, in[0], 0, arguments.length);
+		int[] work = new int[end - start];
+		int pending = 0;
+		work[pending++] = start;
+		byte result = NONE;
+		while (pending > 0) {
+			int pc = work[--pending];
+			byte[] state = in[pc - start].clone();
+			int op = code[pc], r = size(op) > 1 ? code[pc + 1] : 0;
+			int a = size(op) > 2 ? code[pc + 2] : 0, b = size(op) > 3 ? code[pc + 3] : 0;
+			switch (op) {
+				case NOP:
+				case JUMP:
+					break;
+				case CONST:
+					state[r] = type_of(constant_tags[a]);
+					break;
+				case MOVE:
+					state[r] = state[a];
+					break;
+				case GET_GLOBAL:
+					state[r] = type_of(stack.tag(a));
+					break;
+				case SET_GLOBAL:
+				case JUMP_IF:
+				case JUMP_UNLESS:
+				case BAD_LABEL:
+					if (!is_value(state[op == SET_GLOBAL ? a : r])) return null;
+					break;
+				case JUMP_TABLE:
+					if (state[r] != INT) return null;
+					for (int e = a; e < a + b; e++)
+						pending = merge(in, start, program.label(e), state, work, pending);
+					break;
+				case POS:
+				case NEG:
+				case B_NOT:
+					if (state[a] != INT) return null;
+					state[r] = INT;
+					break;
+				case NOT:
+				case TRUTH:
+					if (!is_value(state[a])) return null;
+					state[r] = BOOL;
+					break;
+				case CALL:
+					for (int i = 0; i < program.arity(a); i++)
+						if (!is_value(state[b + i])) return null;
+					state[r] = return_type(a);
+					break;
+				case RETURN:
+					if (!is_value(state[r])) return null;
+					result = join(result, state[r]);
+					break;
+				case RETURN_NULL:
+					result = ANY;
+					break;
+				default:
+					if (op >= ADD && op <= NE) {
+						if (state[a] != INT || state[b] != INT) return null;
+						state[r] = op >= LT ? BOOL : INT;
+					} else if (op >= JUMP_IF_LT && op < COUNT) {
+						if (state[r] != INT || state[a] != INT) return null;
+					} else return null;
+			}
+			int o = target_operand(op);
+			if (!ends_block(op)) pending = merge(in, start, pc + size(op), state, work, pending);
+			if (o >= 0) pending = merge(in, start, code[pc + 1 + o], state, work, pending);
+		}
+		returns[routine] = result == NONE ? ANY : result;
+		return in;
+	}
+
+	private static boolean is_value(byte type) {
+		return type == INT || type == BOOL;
+	}
+
+	private static int merge(byte[][] in, int start, int pc, byte[] state, int[] work, int pending) {
+		byte[] types = in[pc - start];
+		boolean changed = types == null;
+		if (changed) in[pc - start] = state.clone();
+		else
+			for (int i = 0; i < state.length; i++) {
+				byte joined = join(types[i], state[i]);
+				changed |= joined != types[i];
+				types[i] = joined;
+			}
+		if (changed) work[pending++] = pc;
+		return pending;
+	}
+
+	private void find_live(int routine) {
+		int end = program.code_end(routine), count = 0;
+		int[] pcs = new int[end - start];
+		live = new BitSet[end - start];
+		for (int pc = start; pc < end; pc += size(code[pc])) {
+			pcs[count++] = pc;
+			live[pc - start] = new BitSet();
+		}
+		BitSet in = new BitSet();
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int i = count - 1; i >= 0; i--) {
+				int pc = pcs[i], op = code[pc], o = target_operand(op);
+				in.clear();
+				if (!ends_block(op) && pc + size(op) < end) in.or(live[pc + size(op) - start]);
+				if (o >= 0) in.or(live[code[pc + 1 + o] - start]);
+				if (op == JUMP_TABLE)
+					for (int e = code[pc + 2]; e < code[pc + 2] + code[pc + 3]; e++)
+						in.or(live[program.label(e) - start]);
+				if (writes(op)) in.clear(code[pc + 1]);
+				for (int operand = 0; operand < size(op) - 1; operand++)
+					if (reads(op, operand)) in.set(code[pc + 1 + operand]);
+				if (op == CALL) in.set(code[pc + 3], code[pc + 3] + program.arity(code[pc + 2]));
+				if (!in.equals(live[pc - start])) {
+					live[pc - start].clear();
+					live[pc - start].or(in);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// Translation
+
+	private byte[] translate(int routine, String name) {
+		start = program.code_start(routine);
+		int end = program.code_end(routine), size = program.frame_size(routine);
+		find_live(routine);
+		out = new ClassFileWriter();
+		labels = new int[end - start];
+		for (int pc = start; pc < end; pc += size(code[pc]))
+			labels[pc - start] = out.label();
+		stubs = new int[3 * 8];
+		stub_count = 0;
+
+		// Locals are set on every path for the verifier
+		for (int r = 0; r < size; r++) {
+			out.lconst(0);
+			out.lstore(local(r));
+		}
+		int dispatch = out.label(), refuse = out.label();
+		out.jump(GOTO, dispatch);
+
+		// Entries: the start and the targets of backward jumps
+		int[] keys = new int[end - start], targets = new int[end - start];
+		int entry_count = 0;
+		entries = new boolean[end - start];
+		entries[0] = true;
+		for (int pc = start; pc < end; pc += size(code[pc])) {
+			if (types[pc - start] == null) continue;
+			int o = target_operand(code[pc]);
+			if (o >= 0 && code[pc + 1 + o] <= pc) entries[code[pc + 1 + o] - start] = true;
+			if (code[pc] == JUMP_TABLE)
+				for (int e = code[pc + 2]; e < code[pc + 2] + code[pc + 3]; e++)
+					if (program.label(e) <= pc) entries[program.label(e) - start] = true;
+		}
+		for (int pc = start; pc < end; pc += size(code[pc])) {
+			if (!entries[pc - start] || !enterable(pc)) {
+				entries[pc - start] = false;
+				continue;
+			}
+			int label = out.label();
+			out.mark(label);
+			keys[entry_count] = pc;
+			targets[entry_count++] = label;
+			BitSet registers = live[pc - start];
+			for (int r = registers.nextSetBit(0); r >= 0; r = registers.nextSetBit(r + 1)) {
+				slot(r);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "tag", "(I)B");
+				out.iconst(tag_of(types[pc - start][r]));
+				out.jump(IF_ICMPNE, refuse);
+				slot(r);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "bits", "(I)J");
+				out.lstore(local(r));
+			}
+			out.jump(GOTO, labels[pc - start]);
+		}
+		out.mark(refuse);
+		out.iload(PC);
+		out.op(IRETURN);
+		out.mark(dispatch);
+		out.iload(PC);
+		out.lookupswitch(keys, targets, entry_count, refuse);
+
+		for (int pc = start; pc < end; pc += size(code[pc]))
+			if (types[pc - start] != null) {
+				out.mark(labels[pc - start]);
+				instruction(pc);
+			}
+		for (int i = 0; i < stub_count; i++)
+			stub(stubs[3 * i], stubs[3 * i + 1], stubs[3 * i + 2]);
+
+		return out.to_class(name, "sir/vm/Jit$Routine", "run", RUN, 16, REGISTERS + 2 * size);
+	}
+
+	// Whether all registers live at pc have a known type there
+	private boolean enterable(int pc) {
+		byte[] state = types[pc - start];
+		if (state == null) return false;
+		BitSet registers = live[pc - start];
+		for (int r = registers.nextSetBit(0); r >= 0; r = registers.nextSetBit(r + 1))
+			if (!is_value(state[r])) return false;
+		return true;
+	}
+
+	private void instruction(int pc) {
+		int op = code[pc], r = size(op) > 1 ? code[pc + 1] : 0;
+		int a = size(op) > 2 ? code[pc + 2] : 0, b = size(op) > 3 ? code[pc + 3] : 0;
+		byte[] state = types[pc - start];
+		switch (op) {
+			case NOP:
+				break;
+			case CONST:
+				if (!is_value(type_of(constant_tags[a]))) break;
+				out.lconst(constant_bits[a]);
+				out.lstore(local(r));
+				break;
+			case MOVE:
+				if (!is_value(state[a])) break;
+				out.lload(local(a));
+				out.lstore(local(r));
+				break;
+			case GET_GLOBAL: {
+				byte type = type_of(stack.tag(a));
+				if (!is_value(type)) break;
+				out.aload(STACK);
+				out.iconst(a);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "tag", "(I)B");
+				out.iconst(tag_of(type));
+				out.jump(IF_ICMPNE, deoptimize(pc, 0));
+				out.aload(STACK);
+				out.iconst(a);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "bits", "(I)J");
+				out.lstore(local(r));
+				break;
+			}
+			case SET_GLOBAL:
+				out.aload(STACK);
+				out.iconst(r);
+				out.iconst(tag_of(state[a]));
+				out.lload(local(a));
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "set_tagged", "(IBJ)V");
+				break;
+			case POS:
+				out.lload(local(a));
+				out.lstore(local(r));
+				break;
+			case NEG:
+				out.lload(local(a));
+				out.op(LNEG);
+				out.lstore(local(r));
+				break;
+			case B_NOT:
+				out.lload(local(a));
+				out.lconst(-1);
+				out.op(LXOR);
+				out.lstore(local(r));
+				break;
+			case NOT:
+			case TRUTH:
+				out.lload(local(a));
+				out.lconst(0);
+				out.op(LCMP);
+				bool(op == NOT ? IFNE : IFEQ, r);
+				break;
+			case ADD:
+			case SUB:
+			case MUL:
+			case B_AND:
+			case B_OR:
+			case B_XOR:
+				out.lload(local(a));
+				out.lload(local(b));
+				out.op(op == ADD ? LADD : op == SUB ? LSUB : op == MUL ? LMUL : op == B_AND ? LAND : op == B_OR ? LOR : LXOR);
+				out.lstore(local(r));
+				break;
+			case SHL:
+			case SHR:
+				out.lload(local(a));
+				out.lload(local(b));
+				out.op(L2I);
+				out.op(op == SHL ? LSHL : LSHR);
+				out.lstore(local(r));
+				break;
+			case DIV:
+			case MOD:
+				out.lload(local(b));
+				out.lconst(0);
+				out.op(LCMP);
+				out.jump(IFEQ, deoptimize(pc, 0));
+				out.lload(local(a));
+				out.lload(local(b));
+				out.op(op == DIV ? LDIV : LREM);
+				out.lstore(local(r));
+				break;
+			case LT:
+			case LE:
+			case GT:
+			case GE:
+			case EQ:
+			case NE:
+				out.lload(local(a));
+				out.lload(local(b));
+				out.op(LCMP);
+				bool(branch(op - LT, true), r);
+				break;
+			case JUMP:
+				out.jump(GOTO, labels[r - start]);
+				break;
+			case JUMP_IF:
+			case JUMP_UNLESS:
+				out.lload(local(r));
+				out.lconst(0);
+				out.op(LCMP);
+				out.jump(op == JUMP_IF ? IFNE : IFEQ, labels[a - start]);
+				break;
+			case JUMP_TABLE: {
+				// Goes on to the next instruction, which fails, if no label matches
+				if (b == 0) break;
+				int next = labels[pc + size(op) - start];
+				out.lload(local(r));
+				out.lconst(0);
+				out.op(LCMP);
+				out.jump(IFLT, next);
+				out.lload(local(r));
+				out.lconst(b);
+				out.op(LCMP);
+				out.jump(IFGE, next);
+				int[] targets = new int[b];
+				for (int i = 0; i < b; i++)
+					targets[i] = labels[program.label(a + i) - start];
+				out.lload(local(r));
+				out.op(L2I);
+				out.tableswitch(0, targets, b, next);
+				break;
+			}
+			case BAD_LABEL:
+				out.jump(GOTO, deoptimize(pc, 0));
+				break;
+			case CALL: {
+				for (int i = 0; i < program.arity(a); i++) {
+					slot(b + i);
+					out.iconst(tag_of(state[b + i]));
+					out.lload(local(b + i));
+					out.invoke(INVOKEVIRTUAL, STACK_CLASS, "set_tagged", "(IBJ)V");
+				}
+				out.aload(JIT);
+				out.iconst(a);
+				out.iload(BASE);
+				out.iconst(b);
+				out.op(IADD);
+				out.iload(DEPTH);
+				out.iconst(1);
+				out.op(IADD);
+				out.iconst(pc);
+				out.invoke(INVOKEVIRTUAL, "sir/vm/Jit", "call", "(IIII)V");
+				byte type = types[pc + 4 - start][r];
+				if (!is_value(type)) break;
+				slot(b);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "tag", "(I)B");
+				out.iconst(tag_of(type));
+				out.jump(IF_ICMPNE, deoptimize(pc, 1));
+				slot(b);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "bits", "(I)J");
+				out.lstore(local(r));
+				break;
+			}
+			case RETURN:
+				out.aload(STACK);
+				out.iload(BASE);
+				out.iconst(tag_of(state[r]));
+				out.lload(local(r));
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "set_tagged", "(IBJ)V");
+				out.iconst(DONE);
+				out.op(IRETURN);
+				break;
+			case RETURN_NULL:
+				out.aload(STACK);
+				out.iload(BASE);
+				out.invoke(INVOKEVIRTUAL, STACK_CLASS, "set_null", "(I)V");
+				out.iconst(DONE);
+				out.op(IRETURN);
+				break;
+			default:
+				// Compare-and-branch
+				out.lload(local(r));
+				out.lload(local(a));
+				out.op(LCMP);
+				out.jump(branch((op - JUMP_IF_LT) % 6, op >= JUMP_UNLESS_LT), labels[b - start]);
+		}
+	}
+
+	// JVM branch on the result of lcmp taken if comparison LT + c holds, or
+	// if it does not
+	private static int branch(int c, boolean negated) {
+		final int[] holds = {IFLT, IFLE, IFGT, IFGE, IFEQ, IFNE};
+		final int[] fails = {IFGE, IFGT, IFLE, IFLT, IFNE, IFEQ};
+		return negated ? fails[c] : holds[c];
+	}
+
+	// Stores to register r whether the branch on the operand stack fails
+	private void bool(int branch, int r) {
+		int fails = out.label(), done = out.label();
+		out.jump(branch, fails);
+		out.lconst(1);
+		out.jump(GOTO, done);
+		out.mark(fails);
+		out.lconst(0);
+		out.mark(done);
+		out.lstore(local(r));
+	}
+
+	/**
+	 * Label of code giving the frame back to the interpreter at the
+	 * instruction at pc, or after the call at pc, its value not being of the
+	 * type expected.
+	 */
+	private int deoptimize(int pc, int kind) {
+		for (int i = 0; i < stub_count; i++)
+			if (stubs[3 * i] == pc && stubs[3 * i + 1] == kind) return stubs[3 * i + 2];
+		if (3 * stub_count + 3 > stubs.length) stubs = Arrays.copyOf(stubs, 2 * stubs.length);
+		int label = out.label();
+		stubs[3 * stub_count] = pc;
+		stubs[3 * stub_count + 1] = kind;
+		stubs[3 * stub_count + 2] = label;
+		stub_count++;
+		return label;
+	}
+
+	private void stub(int pc, int kind, int label) {
+		out.mark(label);
+		int kept = -1;
+		if (kind == 1) {
+			kept = code[pc + 1];
+			out.aload(STACK);
+			out.iload(BASE);
+			out.iconst(kept);
+			out.op(IADD);
+			slot_index(code[pc + 3]);
+			out.invoke(INVOKEVIRTUAL, STACK_CLASS, "copy", "(II)V");
+			pc += size(CALL);
+		}
+		byte[] state = types[pc - start];
+		BitSet registers = live[pc - start];
+		for (int r = registers.nextSetBit(0); r >= 0; r = registers.nextSetBit(r + 1)) {
+			if (r == kept || !is_value(state[r])) continue;
+			slot(r);
+			out.iconst(tag_of(state[r]));
+			out.lload(local(r));
+			out.invoke(INVOKEVIRTUAL, STACK_CLASS, "set_tagged", "(IBJ)V");
+		}
+		out.iconst(pc);
+		out.op(IRETURN);
+	}
+
+	// Pushes the value stack and the slot of register r
+	private void slot(int r) {
+		out.aload(STACK);
+		slot_index(r);
+	}
+
+	private void slot_index(int r) {
+		out.iload(BASE);
+		out.iconst(r);
+		out.op(IADD);
+	}
+
+	private static int local(int r) {
+		return REGISTERS + 2 * r;
+	}
+
+	private static int tag_of(byte type) {
+		return type == INT ? ValueStack.INTEGER : ValueStack.BOOL;
+	}
+
+	private static String identifier(String name) {
+		StringBuilder out = new StringBuilder();
+		for (char c : name.toCharArray())
+			out.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		return out.toString();
+	}
+
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(Jit.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
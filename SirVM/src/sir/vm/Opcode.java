@@ -0,0 +1,183 @@
+package sir.vm;
+
+/**
+ * Instructions of the virtual machine, each an opcode word followed by its
+ * operands.
+ * <p>
+ * Operands named r, a and b are registers of the current frame, g a global
+ * slot, k a constant, f a routine, t an absolute code offset and l an entry
+ * of the labels of the program. The value of an operator goes to r, its
+ * operands being read from a and b.
+ */
+public final class Opcode {
+	public static final int NOP = 0;            //
+	public static final int CONST = 1;          // r k
+	public static final int MOVE = 2;           // r a
+	public static final int GET_GLOBAL = 3;     // r g
+	public static final int SET_GLOBAL = 4;     // g a
+
+	// Unary operators
+	public static final int POS = 5;            // r a
+	public static final int NEG = 6;
+	public static final int NOT = 7;
+	public static final int B_NOT = 8;
+	public static final int TRUTH = 9;          // r = a as a boolean
+
+	// Binary operators
+	public static final int ADD = 10;           // r a b
+	public static final int SUB = 11;
+	public static final int MUL = 12;
+	public static final int DIV = 13;
+	public static final int MOD = 14;
+	public static final int B_AND = 15;
+	public static final int B_OR = 16;
+	public static final int B_XOR = 17;
+	public static final int SHL = 18;
+	public static final int SHR = 19;
+	public static final int LT = 20;
+	public static final int LE = 21;
+	public static final int GT = 22;
+	public static final int GE = 23;
+	public static final int EQ = 24;
+	public static final int NE = 25;
+
+	// Control
+	public static final int JUMP = 26;          // t
+	public static final int JUMP_IF = 27;       // a t
+	public static final int JUMP_UNLESS = 28;   // a t
+	public static final int BAD_LABEL = 29;     // a: fails, a is no label of the routine
+	public static final int CALL = 30;          // r f base: arguments from register base on
+	public static final int RETURN = 31;        // a
+	public static final int RETURN_NULL = 32;   //
+
+	// Compare-and-branch superinstructions made by the Optimizer, jumping
+	// if the comparison of a and b holds, or unless it holds
+	public static final int JUMP_IF_LT = 33;    // a b t
+	public static final int JUMP_IF_LE = 34;
+	public static final int JUMP_IF_GT = 35;
+	public static final int JUMP_IF_GE = 36;
+	public static final int JUMP_IF_EQ = 37;
+	public static final int JUMP_IF_NE = 38;
+	public static final int JUMP_UNLESS_LT = 39;
+	public static final int JUMP_UNLESS_LE = 40;
+	public static final int JUMP_UNLESS_GT = 41;
+	public static final int JUMP_UNLESS_GE = 42;
+	public static final int JUMP_UNLESS_EQ = 43;
+	public static final int JUMP_UNLESS_NE = 44;
+
+	// Computed goto: jumps to the code offset of label entry l + a if a is
+	// one of 0 to n - 1, goes on otherwise
+	public static final int JUMP_TABLE = 45;    // a l n
+
+	public static final int COUNT = 46;
+
+	private static final String[] names = {
+			"nop", "const", "move", "get_global", "set_global",
+			"pos", "neg", "not", "b_not", "truth",
+			"add", "sub", "mul", "div", "mod", "b_and", "b_or", "b_xor", "shl", "shr",
+			"lt", "le", "gt", "ge", "eq", "ne",
+			"jump", "jump_if", "jump_unless", "bad_label", "call", "return", "return_null",
+			"jump_if_lt", "jump_if_le", "jump_if_gt", "jump_if_ge", "jump_if_eq", "jump_if_ne",
+			"jump_unless_lt", "jump_unless_le", "jump_unless_gt", "jump_unless_ge", "jump_unless_eq", "jump_unless_ne",
+			"jump_table"
+	};
+
+	private static final int[] sizes = {
+			1, 3, 3, 3, 3,
+			3, 3, 3, 3, 3,
+			4, 4, 4, 4, 4, 4, 4, 4, 4, 4,
+			4, 4, 4, 4, 4, 4,
+			2, 3, 3, 2, 4, 2, 1,
+			4, 4, 4, 4, 4, 4,
+			4, 4, 4, 4, 4, 4,
+			4
+	};
+
+	private Opcode() {
+	}
+
+	public static String name(int opcode) {
+		return names[opcode];
+	}
+
+	/**
+	 * Count of words of an instruction, its opcode included.
+	 */
+	public static int size(int opcode) {
+		return sizes[opcode];
+	}
+
+	/**
+	 * Index of the operand of an instruction that is its jump target, -1 if
+	 * it does not jump or jumps through a table.
+	 */
+	static int target_operand(int opcode) {
+		switch (opcode) {
+			case JUMP:          return 0;
+			case JUMP_IF:
+			case JUMP_UNLESS:   return 1;
+			default:            return opcode >= JUMP_IF_LT && opcode <= JUMP_UNLESS_NE ? 2 : -1;
+		}
+	}
+
+	/**
+	 * Conditional jump taken whenever the given one is not.
+	 */
+	static int inverse(int opcode) {
+		switch (opcode) {
+			case JUMP_IF:       return JUMP_UNLESS;
+			case JUMP_UNLESS:   return JUMP_IF;
+			default:            return opcode < JUMP_UNLESS_LT ? opcode + 6 : opcode - 6;
+		}
+	}
+
+	/**
+	 * Whether an instruction never goes on to the next one.
+	 */
+	static boolean ends_block(int opcode) {
+		return opcode == JUMP || opcode == BAD_LABEL || opcode == RETURN || opcode == RETURN_NULL;
+	}
+
+	/**
+	 * Whether an instruction writes the register of its first operand.
+	 */
+	static boolean writes(int opcode) {
+		return opcode == CONST || opcode == MOVE || opcode == GET_GLOBAL || opcode >= POS && opcode <= NE
+				|| opcode == CALL;
+	}
+
+	/**
+	 * Whether an operand of an instruction is a register it reads, the
+	 * arguments of calls aside.
+	 */
+	static boolean reads(int opcode, int operand) {
+		switch (opcode) {
+			case MOVE:
+			case SET_GLOBAL:    return operand == 1;
+			case JUMP_IF:
+			case JUMP_UNLESS:
+			case BAD_LABEL:
+			case RETURN:
+			case JUMP_TABLE:    return operand == 0;
+			default:
+				if (opcode >= POS && opcode <= TRUTH) return operand == 1;
+				if (opcode >= ADD && opcode <= NE) return operand == 1 || operand == 2;
+				return opcode >= JUMP_IF_LT && opcode <= JUMP_UNLESS_NE && operand < 2;
+		}
+	}
+
+	/**
+	 * Lists the instructions of {@code code} from {@code start} to
+	 * {@code end}, one per line.
+	 */
+	public static String disassemble(int[] code, int start, int end) {
+		StringBuilder out = new StringBuilder();
+		for (int pc = start; pc < end; pc += size(code[pc])) {
+			out.append(String.format("%6d  %-12s", pc, name(code[pc])));
+			for (int i = 1; i < size(code[pc]); i++)
+				out.append(' ').append(code[pc + i]);
+			out.append('\n');
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,484 @@
+package sir.vm;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static sir.vm.Opcode.*;
+
+/**
+ * Peephole optimizer of the code of a {@link ProgramWriter}, once the whole
+ * program is compiled.
+ * <p>
+ * Routines are decoded one at a time to a list of instructions whose jumps
+ * target instruction indexes, so that passes can drop instructions, by
+ * turning them into NOP, without tracking offsets. The passes:
+ * <ul>
+ * <li>jump threading: a jump, or a jump table entry, to a jump goes to the
+ * final target, a jump to the next instruction is dropped, and a conditional
+ * jump over a jump is inverted;</li>
+ * <li>constant hoisting: constants read in loops get registers of their own,
+ * loaded once on entry to the routine, which instructions read directly;</li>
+ * <li>redundant loads: a register is not reloaded with the constant or
+ * global it holds within a basic block;</li>
+ * <li>copy coalescing: an instruction whose value is only moved to another
+ * register writes it there;</li>
+ * <li>superinstructions: a comparison only read by the conditional jump
+ * after it becomes a compare-and-branch, and a jump to a conditional jump a
+ * copy of it, so that loops run one test per iteration rather than a test
+ * and a jump;</li>
+ * <li>dead stores: constants, moves and loads to registers that are not read
+ * afterwards are dropped.</li>
+ * </ul>
+ * The superinstructions are the pairs of opcodes dispatched most often by
+ * the sample programs of the benchmarks once the other passes are done, as
+ * counted by {@link VirtualMachine#profile(boolean)}.
+ */
+public class Optimizer {
+	private final ProgramWriter program;
+
+	// Instructions of the routine being optimized: opcode, 3 operands and
+	// line. Jump targets are instruction indexes, dropped instructions NOP.
+	private int[] ops, operands, lines;
+	private int count;
+	private int arity, frame_size;
+	private int[] entries;          // label entries of the jump tables, as instruction indexes
+	private int first_label, end_label;     // entries of the routine
+
+	private boolean[] leaders;      // starts of basic blocks
+	private boolean[] targets;      // instructions jumped to
+	private BitSet[] live;          // registers live on entry to each instruction
+
+	// Code of the optimized program
+	private int[] code, code_lines;
+	private int length, line_count, line;
+
+	public Optimizer(ProgramWriter program) {
+		this.program = program;
+		this.ops = new int[64];
+		this.operands = new int[3 * 64];
+		this.lines = new int[64];
+	}
+
+	/**
+	 * Optimizes all routines, rewriting the code of the program.
+	 */
+	public void optimize() {
+		int routines = program.routine_count();
+		Integer[] order = new Integer[routines];
+		for (int r = 0; r < routines; r++)
+			order[r] = r;
+		Arrays.sort(order, (x, y) -> Integer.compare(program.code_start(x), program.code_start(y)));
+
+		entries = new int[program.label_count()];
+		code = new int[program.position() + 16];
+		code_lines = new int[64];
+		length = line_count = 0;
+		int[] bounds = new int[2 * routines];
+		for (int r : order) {
+			if (program.code_start(r) == program.code_end(r)) continue;
+			decode(r);
+			thread();
+			hoist();
+			loads();
+			coalesce();
+			dead_stores();
+			fuse();
+			rotate();
+			dead_stores();
+			thread();
+			program.frame_size(r, frame_size);
+			bounds[2 * r] = length;
+			encode();
+			bounds[2 * r + 1] = length;
+		}
+		program.rewrite(code, length, code_lines, line_count, bounds);
+	}
+
+	private void decode(int r) {
+		int start = program.code_start(r), end = program.code_end(r);
+		arity = program.arity(r);
+		frame_size = program.frame_size(r);
+		int[] index = new int[end - start + 1];
+		count = 0;
+		for (int pc = start; pc < end; pc += size(program.word(pc))) {
+			index[pc - start] = count;
+			grow();
+			ops[count] = program.word(pc);
+			for (int o = 0; o < 3; o++)
+				operands[3 * count + o] = o < size(ops[count]) - 1 ? program.word(pc + 1 + o) : 0;
+			lines[count++] = program.line_at(pc);
+		}
+		index[end - start] = count;
+		first_label = end_label = 0;
+		for (int i = 0; i < count; i++) {
+			if (target_operand(ops[i]) >= 0)
+				operands[3 * i + target_operand(ops[i])] = index[operands[3 * i + target_operand(ops[i])] - start];
+			// The computed gotos of a routine all share its one table
+			if (ops[i] == JUMP_TABLE) {
+				first_label = first_entry(i);
+				end_label = end_entry(i);
+			}
+		}
+		for (int e = first_label; e < end_label; e++)
+			entries[e] = index[program.label_offset(e) - start];
+	}
+
+	private void encode() {
+		int[] offsets = new int[count + 1];
+		int pc = length;
+		for (int i = 0; i < count; i++) {
+			offsets[i] = pc;
+			if (ops[i] != NOP) pc += size(ops[i]);
+		}
+		offsets[count] = pc;
+
+		if (pc + 1 > code.length) code = Arrays.copyOf(code, Math.max(2 * code.length, pc + 1));
+		for (int e = first_label; e < end_label; e++)
+			program.label(e, offsets[entries[e]]);
+		line = 0;
+		for (int i = 0; i < count; i++) {
+			if (ops[i] == NOP) continue;
+			if (lines[i] != line) line(lines[i]);
+			code[length++] = ops[i];
+			for (int o = 0; o < size(ops[i]) - 1; o++)
+				code[length++] = o == target_operand(ops[i]) ? offsets[operands[3 * i + o]] : operands[3 * i + o];
+		}
+	}
+
+	private void line(int line) {
+		this.line = line;
+		if (line_count > 0 && code_lines[2 * line_count - 2] == length) {
+			code_lines[2 * line_count - 1] = line;
+			return;
+		}
+		if (2 * line_count + 2 > code_lines.length) code_lines = Arrays.copyOf(code_lines, code_lines.length * 2);
+		code_lines[2 * line_count] = length;
+		code_lines[2 * line_count + 1] = line;
+		line_count++;
+	}
+
+	private void grow() {
+		if (count < ops.length) return;
+		ops = Arrays.copyOf(ops, 2 * count);
+		operands = Arrays.copyOf(operands, 6 * count);
+		lines = Arrays.copyOf(lines, 2 * count);
+	}
+
+	// Inserts an instruction before instruction i, its target and the jumps
+	// to i and past it being renumbered
+	private void add(int i, int op, int a, int b, int c, int line) {
+		grow();
+		System.arraycopy(ops, i, ops, i + 1, count - i);
+		System.arraycopy(operands, 3 * i, operands, 3 * i + 3, 3 * (count - i));
+		System.arraycopy(lines, i, lines, i + 1, count - i);
+		count++;
+		ops[i] = op;
+		operands[3 * i] = a;
+		operands[3 * i + 1] = b;
+		operands[3 * i + 2] = c;
+		lines[i] = line;
+		for (int j = 0; j < count; j++)
+			if (target_operand(ops[j]) >= 0 && operands[3 * j + target_operand(ops[j])] >= i)
+				operands[3 * j + target_operand(ops[j])]++;
+		for (int e = first_label; e < end_label; e++)
+			if (entries[e] >= i) entries[e]++;
+	}
+
+	// Passes
+
+	private void thread() {
+		find_leaders();
+		for (int i = 0; i < count; i++) {
+			int o = target_operand(ops[i]);
+			if (o >= 0) operands[3 * i + o] = final_target(i, operands[3 * i + o]);
+		}
+		for (int e = first_label; e < end_label; e++)
+			entries[e] = final_target(-1, entries[e]);
+		for (int i = 0; i < count; i++) {
+			int o = target_operand(ops[i]);
+			if (o < 0) continue;
+			int after = next(i + 1);
+			if (ops[i] != JUMP && after < count && ops[after] == JUMP && !targeted(i + 1, after)
+					&& operands[3 * i + o] == next(after + 1)) {
+				ops[i] = inverse(ops[i]);
+				operands[3 * i + o] = operands[3 * after];
+				ops[after] = NOP;
+				after = next(after + 1);
+			}
+			// Compare-and-branch instructions may fail, they stay
+			if (operands[3 * i + o] == after && (ops[i] == JUMP || ops[i] == JUMP_IF || ops[i] == JUMP_UNLESS))
+				ops[i] = NOP;
+		}
+	}
+
+	// Where a jump from instruction i to target ends up, through jumps
+	private int final_target(int i, int target) {
+		target = next(target);
+		for (int hops = 0; hops < count && target < count && ops[target] == JUMP && target != i; hops++)
+			target = next(operands[3 * target]);
+		return target;
+	}
+
+	private void hoist() {
+		find_leaders();
+		boolean[] in_loop = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			if (target_operand(ops[i]) >= 0 && operands[3 * i + target_operand(ops[i])] <= i)
+				Arrays.fill(in_loop, operands[3 * i + target_operand(ops[i])], i + 1, true);
+			if (ops[i] == JUMP_TABLE)
+				for (int e = first_entry(i); e < end_entry(i); e++)
+					if (entries[e] <= i) Arrays.fill(in_loop, entries[e], i + 1, true);
+		}
+
+		int[] constants = new int[count];
+		int hoisted = 0;
+		for (int i = 0; i < count; i++)
+			if (ops[i] == CONST && in_loop[i] && propagate(i, -1)
+					&& index_of(constants, hoisted, operands[3 * i + 1]) < 0)
+				constants[hoisted++] = operands[3 * i + 1];
+		if (hoisted == 0) return;
+
+		// Constant registers go right after the arguments, where no callee
+		// frame starts
+		for (int i = 0; i < count; i++)
+			for (int o = 0; o < 3; o++)
+				if (is_register(i, o) && operands[3 * i + o] >= arity)
+					operands[3 * i + o] += hoisted;
+		frame_size += hoisted;
+		for (int i = 0; i < count; i++) {
+			int c = ops[i] == CONST && in_loop[i] ? index_of(constants, hoisted, operands[3 * i + 1]) : -1;
+			if (c >= 0) propagate(i, arity + c);
+		}
+		for (int c = hoisted - 1; c >= 0; c--)
+			add(0, CONST, arity + c, constants[c], 0, lines[0]);
+	}
+
+	// Makes the instructions of the block of CONST i read the register
+	// holding its constant rather than its own. Returns whether some read.
+	private boolean propagate(int i, int register) {
+		int r = operands[3 * i];
+		boolean read = false;
+		for (int j = i + 1; j < count && !leaders[j]; j++) {
+			if (ops[j] == CALL && operands[3 * j + 2] <= r) return read;
+			for (int o = 0; o < 3; o++)
+				if (is_read(j, o) && operands[3 * j + o] == r) {
+					read = true;
+					if (register >= 0) operands[3 * j + o] = register;
+				}
+			if (writes(ops[j]) && operands[3 * j] == r || ends_block(ops[j])) return read;
+		}
+		return read;
+	}
+
+	private void loads() {
+		find_leaders();
+		// Kind of value known to be in each register, and its constant or global
+		int[] kinds = new int[frame_size], values = new int[frame_size];
+		final int UNKNOWN = 0, CONSTANT = 1, GLOBAL = 2;
+		for (int i = 0; i < count; i++) {
+			if (leaders[i]) Arrays.fill(kinds, UNKNOWN);
+			int r = operands[3 * i], a = operands[3 * i + 1];
+			switch (ops[i]) {
+				case CONST:
+				case GET_GLOBAL: {
+					int kind = ops[i] == CONST ? CONSTANT : GLOBAL;
+					if (kinds[r] == kind && values[r] == a) ops[i] = NOP;
+					kinds[r] = kind;
+					values[r] = a;
+					break;
+				}
+				case MOVE:
+					if (r == a || kinds[a] != UNKNOWN && kinds[r] == kinds[a] && values[r] == values[a])
+						ops[i] = NOP;
+					kinds[r] = kinds[a];
+					values[r] = values[a];
+					break;
+				case SET_GLOBAL:
+					for (int s = 0; s < frame_size; s++)
+						if (kinds[s] == GLOBAL && values[s] == r) kinds[s] = UNKNOWN;
+					kinds[a] = GLOBAL;
+					values[a] = r;
+					break;
+				case CALL:
+					// The callee may set any global, its frame overwrites the
+					// registers from the arguments on
+					for (int s = 0; s < frame_size; s++)
+						if (kinds[s] == GLOBAL || s >= operands[3 * i + 2]) kinds[s] = UNKNOWN;
+					kinds[r] = UNKNOWN;
+					break;
+				default:
+					if (writes(ops[i])) kinds[r] = UNKNOWN;
+			}
+		}
+	}
+
+	private void coalesce() {
+		find_leaders();
+		find_live();
+		for (int i = 0; i < count; i++) {
+			if (ops[i] != MOVE) continue;
+			int x = operands[3 * i], t = operands[3 * i + 1];
+			int p = previous(i);
+			if (p < 0 || leads(p + 1, i) || !writes(ops[p]) || operands[3 * p] != t || x == t
+					|| live_after(i, t) || ops[p] == CALL && x >= operands[3 * p + 2])
+				continue;
+			operands[3 * p] = x;
+			ops[i] = NOP;
+		}
+	}
+
+	private void fuse() {
+		find_leaders();
+		find_live();
+		for (int i = 0; i < count; i++) {
+			if (ops[i] < LT || ops[i] > NE) continue;
+			int j = next(i + 1);
+			if (j == count || leads(i + 1, j) || ops[j] != JUMP_IF && ops[j] != JUMP_UNLESS
+					|| operands[3 * j] != operands[3 * i] || live_after(j, operands[3 * i]))
+				continue;
+			ops[i] = (ops[j] == JUMP_IF ? JUMP_IF_LT : JUMP_UNLESS_LT) + ops[i] - LT;
+			operands[3 * i] = operands[3 * i + 1];
+			operands[3 * i + 1] = operands[3 * i + 2];
+			operands[3 * i + 2] = operands[3 * j + 1];
+			ops[j] = NOP;
+		}
+	}
+
+	// A jump to a conditional jump runs the test itself, jumping back past
+	// it or on to its target
+	private void rotate() {
+		for (int i = 0; i < count; i++) {
+			if (ops[i] != JUMP) continue;
+			int h = next(operands[3 * i]);
+			if (h == count || h == i || ops[h] == JUMP || target_operand(ops[h]) < 0) continue;
+			int o = target_operand(ops[h]);
+			ops[i] = inverse(ops[h]);
+			operands[3 * i] = operands[3 * h];
+			operands[3 * i + 1] = operands[3 * h + 1];
+			operands[3 * i + o] = h + 1;
+			lines[i] = lines[h];
+			add(i + 1, JUMP, operands[3 * h + o], 0, 0, lines[h]);
+			i++;
+		}
+	}
+
+	private void dead_stores() {
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			find_leaders();
+			find_live();
+			for (int i = 0; i < count; i++)
+				if ((ops[i] == CONST || ops[i] == MOVE || ops[i] == GET_GLOBAL || ops[i] == TRUTH)
+						&& !live_after(i, operands[3 * i])) {
+					ops[i] = NOP;
+					changed = true;
+				}
+		}
+	}
+
+	// Analyses
+
+	private void find_leaders() {
+		leaders = new boolean[count + 1];
+		targets = new boolean[count + 1];
+		leaders[0] = true;
+		for (int i = 0; i < count; i++) {
+			int o = target_operand(ops[i]);
+			if (o >= 0) leaders[operands[3 * i + o]] = targets[operands[3 * i + o]] = true;
+			if (ops[i] == JUMP_TABLE)
+				for (int e = first_entry(i); e < end_entry(i); e++)
+					leaders[entries[e]] = targets[entries[e]] = true;
+			if (o >= 0 || ops[i] == JUMP_TABLE || ends_block(ops[i])) leaders[i + 1] = true;
+		}
+	}
+
+	private void find_live() {
+		live = new BitSet[count + 1];
+		for (int i = 0; i <= count; i++)
+			live[i] = new BitSet(frame_size);
+		BitSet in = new BitSet(frame_size);
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int i = count - 1; i >= 0; i--) {
+				in.clear();
+				if (!ends_block(ops[i])) in.or(live[i + 1]);
+				if (target_operand(ops[i]) >= 0) in.or(live[operands[3 * i + target_operand(ops[i])]]);
+				if (ops[i] == JUMP_TABLE)
+					for (int e = first_entry(i); e < end_entry(i); e++)
+						in.or(live[entries[e]]);
+				if (writes(ops[i])) in.clear(operands[3 * i]);
+				for (int o = 0; o < 3; o++)
+					if (is_read(i, o)) in.set(operands[3 * i + o]);
+				if (ops[i] == CALL) {
+					int base = operands[3 * i + 2];
+					in.set(base, base + program.arity(operands[3 * i + 1]));
+				}
+				if (!in.equals(live[i])) {
+					live[i].clear();
+					live[i].or(in);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// Whether register r may be read after instruction i
+	private boolean live_after(int i, int r) {
+		if (!ends_block(ops[i]) && live[i + 1].get(r)
+				|| target_operand(ops[i]) >= 0 && live[operands[3 * i + target_operand(ops[i])]].get(r))
+			return true;
+		if (ops[i] == JUMP_TABLE)
+			for (int e = first_entry(i); e < end_entry(i); e++)
+				if (live[entries[e]].get(r)) return true;
+		return false;
+	}
+
+	// Whether a block starts in instructions from through to
+	private boolean leads(int from, int to) {
+		for (int i = from; i <= to; i++)
+			if (leaders[i]) return true;
+		return false;
+	}
+
+	private boolean targeted(int from, int to) {
+		for (int i = from; i <= to; i++)
+			if (targets[i]) return true;
+		return false;
+	}
+
+	private int next(int i) {
+		while (i < count && ops[i] == NOP)
+			i++;
+		return i;
+	}
+
+	private int previous(int i) {
+		do i--; while (i >= 0 && ops[i] == NOP);
+		return i;
+	}
+
+	// Operands
+
+	// Label entries of jump table i, from first_entry(i) to end_entry(i) excluded
+	private int first_entry(int i) {
+		return operands[3 * i + 1];
+	}
+
+	private int end_entry(int i) {
+		return operands[3 * i + 1] + operands[3 * i + 2];
+	}
+
+	private boolean is_read(int i, int o) {
+		return reads(ops[i], o);
+	}
+
+	private boolean is_register(int i, int o) {
+		return is_read(i, o) || o == 0 && writes(ops[i]) || o == 2 && ops[i] == CALL;
+	}
+
+	private static int index_of(int[] values, int count, int value) {
+		for (int i = 0; i < count; i++)
+			if (values[i] == value) return i;
+		return -1;
+	}
+}
@@ -0,0 +1,234 @@
+package sir.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compiled Sir unit read in place from its binary form, as written by a
+ * {@link ProgramWriter}.
+ * <p>
+ * Nothing is deserialized: every accessor reads the bytes of the program,
+ * which usually are a read-only memory mapping of its file, so that opening
+ * a program of any size costs a header check and the pages it touches. The
+ * code is an int view of the mapping.
+ * <p>
+ * A program is little-endian and made of 4-byte aligned sections, each
+ * located by the header:
+ * <pre>
+ * header     magic "SIRM", version, globals, entry routine,
+ *            then offset and count of each section below
+ * strings    count (offset, length) pairs into the UTF-8 bytes that follow,
+ *            for symbol names and string constants
+ * constants  count (tag, reserved, 64-bit payload), a string payload being
+ *            its index in the strings
+ * routines   count (name, arity, frame size, code start, code end)
+ * code       count instruction words
+ * lines      count (code offset, source line) pairs ordered by offset
+ * labels     count code offsets, the jump tables of computed gotos
+ * </pre>
+ */
+public class Program {
+	public static final int MAGIC = 0x4D524953;     // "SIRM" read little-endian
+	public static final int VERSION = 2;
+
+	// Constant tags, the ordinals of Value.Type
+	public static final int INTEGER = 0, FLOAT = 1, STRING = 2, BOOL = 3, NULL = 4;
+
+	static final int HEADER = 64;
+	static final int CONSTANT = 16, ROUTINE = 20, LINE = 8;
+
+	private static final int NAME = 0, ARITY = 4, FRAME = 8, START = 12, END = 16;
+
+	private final ByteBuffer buffer;
+	private final int globals, entry;
+	private final int strings, string_count;
+	private final int constants, constant_count;
+	private final int routines, routine_count;
+	private final int lines, line_count;
+	private final int labels, label_count;
+	private final IntBuffer code;
+
+	private Program(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a Sir program");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported Sir program version " + buffer.getInt(4) + ", expected " + VERSION);
+		this.globals = buffer.getInt(8);
+		this.entry = buffer.getInt(12);
+		this.strings = section(16, 8);
+		this.string_count = buffer.getInt(20);
+		this.constants = section(24, CONSTANT);
+		this.constant_count = buffer.getInt(28);
+		this.routines = section(32, ROUTINE);
+		this.routine_count = buffer.getInt(36);
+		int code = section(40, 4);
+		this.lines = section(48, LINE);
+		this.line_count = buffer.getInt(52);
+		this.labels = section(56, 4);
+		this.label_count = buffer.getInt(60);
+
+		ByteBuffer words = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		words.position(code).limit(code + 4 * buffer.getInt(44));
+		this.code = words.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}
+
+	/**
+	 * Maps a program file read-only.
+	 *
+	 * @throws IOException if the file cannot be read or is not a program of
+	 *                     this version
+	 */
+	public static Program map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(path + ": programs larger than 2GB are not supported");
+			return new Program(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Program held by a buffer, read from its position 0.
+	 */
+	public static Program wrap(ByteBuffer buffer) throws IOException {
+		return new Program(buffer.duplicate());
+	}
+
+	// Offset of the section whose offset and count are at the header slot, checked to fit
+	private int section(int slot, int entry) throws IOException {
+		int offset = buffer.getInt(slot), count = buffer.getInt(slot + 4);
+		if (offset < HEADER || count < 0 || (long) offset + (long) count * entry > buffer.capacity())
+			throw new IOException("Truncated Sir program");
+		return offset;
+	}
+
+	/**
+	 * Count of global variable slots.
+	 */
+	public int globals() {
+		return globals;
+	}
+
+	/**
+	 * Routine run first, -1 if there is none.
+	 */
+	public int entry() {
+		return entry;
+	}
+
+	public int string_count() {
+		return string_count;
+	}
+
+	/**
+	 * String {@code i}, decoded on every call.
+	 */
+	public String string(int i) {
+		int at = strings + 8 * i;
+		byte[] bytes = new byte[buffer.getInt(at + 4)];
+		ByteBuffer source = buffer.duplicate();
+		source.position(buffer.getInt(at));
+		source.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public int constant_count() {
+		return constant_count;
+	}
+
+	public int constant_tag(int i) {
+		return buffer.getInt(constants + CONSTANT * i);
+	}
+
+	/**
+	 * Payload of constant {@code i}: an integer, the raw bits of a float, a
+	 * boolean as 0 or 1, or the index of a string.
+	 */
+	public long constant_bits(int i) {
+		return buffer.getLong(constants + CONSTANT * i + 8);
+	}
+
+	public int routine_count() {
+		return routine_count;
+	}
+
+	/**
+	 * String index of the name of routine {@code r}.
+	 */
+	public int routine_name(int r) {
+		return routine(r, NAME);
+	}
+
+	public int arity(int r) {
+		return routine(r, ARITY);
+	}
+
+	public int frame_size(int r) {
+		return routine(r, FRAME);
+	}
+
+	public int code_start(int r) {
+		return routine(r, START);
+	}
+
+	public int code_end(int r) {
+		return routine(r, END);
+	}
+
+	private int routine(int r, int field) {
+		return buffer.getInt(routines + ROUTINE * r + field);
+	}
+
+	/**
+	 * Routine named {@code name}, -1 if there is none.
+	 */
+	public int find_routine(String name) {
+		for (int r = 0; r < routine_count; r++)
+			if (string(routine_name(r)).equals(name)) return r;
+		return -1;
+	}
+
+	/**
+	 * Code of all routines, read straight from the program.
+	 */
+	public IntBuffer code() {
+		return code.duplicate();
+	}
+
+	public int code_length() {
+		return code.limit();
+	}
+
+	public int label_count() {
+		return label_count;
+	}
+
+	/**
+	 * Code offset of label entry {@code i}.
+	 */
+	public int label(int i) {
+		return buffer.getInt(labels + 4 * i);
+	}
+
+	/**
+	 * Source line of the instruction at {@code pc}, 0 if unknown.
+	 */
+	public int line_of(int pc) {
+		int low = 0, high = line_count - 1, line = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (buffer.getInt(lines + LINE * middle) <= pc) {
+				line = buffer.getInt(lines + LINE * middle + 4);
+				low = middle + 1;
+			} else
+				high = middle - 1;
+		}
+		return line;
+	}
+}
@@ -0,0 +1,366 @@
+package sir.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Builds the binary form of a {@link Program}.
+ * <p>
+ * Strings and constants are interned as they are added. Routines are
+ * written one after the other: {@link #routine} starts one, its code is
+ * emitted word by word, each word being attributed to the last line given
+ * to {@link #line}, and {@link #end_routine} closes it. Jump tables are
+ * entries of the labels, reserved by {@link #labels} and set to code offsets
+ * once the labels are placed.
+ */
+public class ProgramWriter {
+	private final HashMap<String, Integer> string_ids;
+	private String[] strings;
+	private int string_count;
+
+	private final HashMap<Long, Integer> constant_ids;
+	private int[] constant_tags;
+	private long[] constant_bits;
+	private int constant_count;
+
+	private int[] routines;     // Program.ROUTINE / 4 ints per routine
+	private int routine_count;
+	private int routine;        // routine being written, -1 if none
+
+	private int[] code;
+	private int code_length;
+
+	private int[] lines;        // (code offset, line) pairs
+	private int line_count;
+	private int line;
+
+	private int[] labels;       // code offsets
+	private int label_count;
+
+	private int globals, entry;
+
+	public ProgramWriter() {
+		this.string_ids = new HashMap<>();
+		this.strings = new String[16];
+		this.constant_ids = new HashMap<>();
+		this.constant_tags = new int[16];
+		this.constant_bits = new long[16];
+		this.routines = new int[5 * 8];
+		this.routine = -1;
+		this.code = new int[256];
+		this.lines = new int[64];
+		this.labels = new int[16];
+		this.entry = -1;
+	}
+
+	public int string(String value) {
+		Integer id = string_ids.get(value);
+		if (id != null) return id;
+		if (string_count == strings.length) strings = Arrays.copyOf(strings, string_count * 2);
+		strings[string_count] = value;
+		string_ids.put(value, string_count);
+		return string_count++;
+	}
+
+	public int constant_int(long value) {
+		return constant(Program.INTEGER, value);
+	}
+
+	public int constant_float(double value) {
+		return constant(Program.FLOAT, Double.doubleToRawLongBits(value));
+	}
+
+	public int constant_string(String value) {
+		return constant(Program.STRING, string(value));
+	}
+
+	public int constant_bool(boolean value) {
+		return constant(Program.BOOL, value ? 1 : 0);
+	}
+
+	public int constant_null() {
+		return constant(Program.NULL, 0);
+	}
+
+	/**
+	 * Constant of the given tag and payload, as read back by
+	 * {@link Program#constant_tag} and {@link Program#constant_bits}.
+	 */
+	public int constant(int tag, long bits) {
+		// Payloads of interned constants are told apart by 3 tag bits
+		Long key = bits * 8 + tag;
+		Integer id = constant_ids.get(key);
+		if (id != null && constant_tags[id] == tag && constant_bits[id] == bits) return id;
+		if (constant_count == constant_tags.length) {
+			constant_tags = Arrays.copyOf(constant_tags, constant_count * 2);
+			constant_bits = Arrays.copyOf(constant_bits, constant_count * 2);
+		}
+		constant_tags[constant_count] = tag;
+		constant_bits[constant_count] = bits;
+		if (id == null) constant_ids.put(key, constant_count);
+		return constant_count++;
+	}
+
+	public void globals(int count) {
+		this.globals = count;
+	}
+
+	public void entry(int routine) {
+		this.entry = routine;
+	}
+
+	public int routine_count() {
+		return routine_count;
+	}
+
+	/**
+	 * Declares a routine, its code to be emitted after
+	 * {@link #begin_routine(int)}. Returns its index.
+	 */
+	public int routine(String name, int arity, int frame_size) {
+		if (5 * routine_count + 5 > routines.length) routines = Arrays.copyOf(routines, routines.length * 2);
+		int at = 5 * routine_count;
+		routines[at] = string(name);
+		routines[at + 1] = arity;
+		routines[at + 2] = frame_size;
+		routines[at + 3] = routines[at + 4] = 0;
+		return routine_count++;
+	}
+
+	/**
+	 * Starts the code of a declared routine, at the end of the code so far.
+	 */
+	public void begin_routine(int r) {
+		if (routine != -1) throw new IllegalStateException("Routine " + routine + " is not ended");
+		routine = r;
+		routines[5 * r + 3] = code_length;
+		line = 0;
+	}
+
+	public void end_routine() {
+		routines[5 * routine + 4] = code_length;
+		routine = -1;
+	}
+
+	/**
+	 * Sets the frame size of a declared routine, once its code is known.
+	 */
+	public void frame_size(int r, int frame_size) {
+		routines[5 * r + 2] = frame_size;
+	}
+
+	/**
+	 * Source line of the words emitted from now on.
+	 */
+	public void line(int line) {
+		if (line == this.line) return;
+		this.line = line;
+		if (line_count > 0 && lines[2 * line_count - 2] == code_length) {
+			lines[2 * line_count - 1] = line;
+			return;
+		}
+		if (2 * line_count + 2 > lines.length) lines = Arrays.copyOf(lines, lines.length * 2);
+		lines[2 * line_count] = code_length;
+		lines[2 * line_count + 1] = line;
+		line_count++;
+	}
+
+	/**
+	 * Offset of the next word, from the start of the program code.
+	 */
+	public int position() {
+		return code_length;
+	}
+
+	public void emit(int word) {
+		if (code_length == code.length) code = Arrays.copyOf(code, code_length * 2);
+		code[code_length++] = word;
+	}
+
+	public void emit(int a, int b) {
+		emit(a);
+		emit(b);
+	}
+
+	public void emit(int a, int b, int c) {
+		emit(a);
+		emit(b);
+		emit(c);
+	}
+
+	public void emit(int a, int b, int c, int d) {
+		emit(a, b);
+		emit(c, d);
+	}
+
+	public void emit(int a, int b, int c, int d, int e) {
+		emit(a, b, c);
+		emit(d, e);
+	}
+
+	/**
+	 * Reserves {@code count} label entries, returns the first.
+	 */
+	public int labels(int count) {
+		if (label_count + count > labels.length)
+			labels = Arrays.copyOf(labels, Math.max(labels.length * 2, label_count + count));
+		label_count += count;
+		return label_count - count;
+	}
+
+	/**
+	 * Sets label entry {@code i} to a code offset.
+	 */
+	public void label(int i, int offset) {
+		labels[i] = offset;
+	}
+
+	int label_count() {
+		return label_count;
+	}
+
+	int label_offset(int i) {
+		return labels[i];
+	}
+
+	/**
+	 * Overwrites an emitted word, to fix up a jump.
+	 */
+	public void patch(int at, int word) {
+		code[at] = word;
+	}
+
+	public int word(int at) {
+		return code[at];
+	}
+
+	/**
+	 * Drops the words emitted past {@code length}, along with their lines.
+	 */
+	public void truncate(int length) {
+		code_length = length;
+		while (line_count > 0 && lines[2 * line_count - 2] >= length)
+			line_count--;
+		line = line_count > 0 ? lines[2 * line_count - 1] : 0;
+	}
+
+	int arity(int r) {
+		return routines[5 * r + 1];
+	}
+
+	int frame_size(int r) {
+		return routines[5 * r + 2];
+	}
+
+	int code_start(int r) {
+		return routines[5 * r + 3];
+	}
+
+	int code_end(int r) {
+		return routines[5 * r + 4];
+	}
+
+	/**
+	 * Source line of the word at {@code at}, 0 if unknown.
+	 */
+	int line_at(int at) {
+		int low = 0, high = line_count - 1, line = 0;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (lines[2 * middle] <= at) {
+				line = lines[2 * middle + 1];
+				low = middle + 1;
+			} else high = middle - 1;
+		}
+		return line;
+	}
+
+	/**
+	 * Replaces the code and lines of all routines, {@code bounds} holding
+	 * the new start and end of every routine.
+	 */
+	void rewrite(int[] code, int length, int[] lines, int line_count, int[] bounds) {
+		if (routine != -1) throw new IllegalStateException("Routine " + routine + " is not ended");
+		this.code = code;
+		this.code_length = length;
+		this.lines = lines;
+		this.line_count = line_count;
+		this.line = line_count > 0 ? lines[2 * line_count - 1] : 0;
+		for (int r = 0; r < routine_count; r++) {
+			routines[5 * r + 3] = bounds[2 * r];
+			routines[5 * r + 4] = bounds[2 * r + 1];
+		}
+	}
+
+	public ByteBuffer to_buffer() {
+		if (routine != -1) throw new IllegalStateException("Routine " + routine + " is not ended");
+		byte[][] encoded = new byte[string_count][];
+		int string_bytes = 0;
+		for (int i = 0; i < string_count; i++)
+			string_bytes += (encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8)).length;
+
+		int strings_at = Program.HEADER;
+		int constants_at = align(strings_at + 8 * string_count + string_bytes);
+		int routines_at = constants_at + Program.CONSTANT * constant_count;
+		int code_at = routines_at + Program.ROUTINE * routine_count;
+		int lines_at = code_at + 4 * code_length;
+		int labels_at = lines_at + Program.LINE * line_count;
+		int size = labels_at + 4 * label_count;
+
+		ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(Program.MAGIC).putInt(Program.VERSION).putInt(globals).putInt(entry)
+				.putInt(strings_at).putInt(string_count)
+				.putInt(constants_at).putInt(constant_count)
+				.putInt(routines_at).putInt(routine_count)
+				.putInt(code_at).putInt(code_length)
+				.putInt(lines_at).putInt(line_count)
+				.putInt(labels_at).putInt(label_count);
+
+		int bytes_at = strings_at + 8 * string_count;
+		for (int i = 0; i < string_count; i++) {
+			out.putInt(bytes_at).putInt(encoded[i].length);
+			bytes_at += encoded[i].length;
+		}
+		for (int i = 0; i < string_count; i++)
+			out.put(encoded[i]);
+
+		out.position(constants_at);
+		for (int i = 0; i < constant_count; i++)
+			out.putInt(constant_tags[i]).putInt(0).putLong(constant_bits[i]);
+		for (int i = 0; i < 5 * routine_count; i++)
+			out.putInt(routines[i]);
+		for (int i = 0; i < code_length; i++)
+			out.putInt(code[i]);
+		for (int i = 0; i < 2 * line_count; i++)
+			out.putInt(lines[i]);
+		for (int i = 0; i < label_count; i++)
+			out.putInt(labels[i]);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Writes the program to a file, replacing it atomically.
+	 */
+	public void write(Path path) throws IOException {
+		ByteBuffer buffer = to_buffer();
+		Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), "program", ".tmp");
+		try {
+			Files.write(temporary, Arrays.copyOf(buffer.array(), buffer.limit()));
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static int align(int offset) {
+		return offset + 3 & ~3;
+	}
+}
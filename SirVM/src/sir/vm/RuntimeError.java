@@ -0,0 +1,18 @@
+package sir.vm;
+
+/**
+ * Failure of a running program, located by the source line of the
+ * instruction that failed.
+ */
+public class RuntimeError extends RuntimeException {
+	private final int line;
+
+	public RuntimeError(int line, String message) {
+		super("line " + line + ": " + message);
+		this.line = line;
+	}
+
+	public int line_of() {
+		return line;
+	}
+}
@@ -0,0 +1,1027 @@
+package sir.vm;
+
+import sir.compiler.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static sir.compiler.Token.Type.*;
+
+/**
+ * Runs a resolved tree without compiling it, for scripts too short-lived for
+ * a {@link Program} to pay off.
+ * <p>
+ * Every statement and expression becomes a node that runs itself, variables
+ * being read from the slots the {@link Resolver} gave them. Binary operator
+ * nodes specialize themselves on the operands they see: a node starts
+ * uninitialized and, once run, puts an integer or a float node in its place
+ * if its operands were both of that type, a generic one deferring to
+ * {@link Value} otherwise. A specialized node whose operands turn out of
+ * another type replaces itself by a generic one, and nodes never specialize
+ * back, so that a tree settles after a few runs.
+ * <p>
+ * Running a statement returns where control goes next, so that gotos can
+ * land in nested blocks: statements know the labels they hold, and a block
+ * goes on from the statement holding the label a goto targets. Programs run
+ * as on the {@link VirtualMachine}, with the same errors; the same programs
+ * are refused, the same diagnostics being reported.
+ * <p>
+ * Routine calls nest on the Java stack, so programs run on a thread of their
+ * own whose stack holds the {@link VirtualMachine}'s depth limit of calls.
+ */
+public class TreeInterpreter {
+	private static final int MAX_DEPTH = 1 << 16;
+	private static final long STACK_SIZE = 1L << 30;
+
+	// Threads running programs, kept a while once idle
+	private static final ExecutorService runners = Executors.newCachedThreadPool(task -> {
+		Thread thread = new Thread(null, task, "sir-interpreter", STACK_SIZE);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Run statuses, labels being run statuses as well
+	private static final int NEXT = -1, RETURN = -2;
+	private static final int START = -1;
+
+	private static final Value ONE = Value.Integer(1);
+
+	private final Ast ast;
+	private final SymbolTable symbols;
+	private final Resolver resolver;
+	private final Diagnostics diagnostics;
+
+	// Per routine slot, bodies being null for routines not defined
+	private final Statement[] bodies;
+	private final int[] arities, frame_sizes;
+	private final boolean[] defined;
+
+	private final Value[] globals;
+	private Statement initializers;     // of the globals, run in declaration order
+	private int main;
+
+	private int label_count;            // of the routine being built
+	private int depth;
+	private Value returned;
+
+	public TreeInterpreter(Ast ast, SymbolTable symbols, Resolver resolver, Diagnostics diagnostics) {
+		this.ast = ast;
+		this.symbols = symbols;
+		this.resolver = resolver;
+		this.diagnostics = diagnostics;
+		int routines = resolver.routines();
+		this.bodies = new Statement[routines];
+		this.arities = new int[routines];
+		this.frame_sizes = new int[routines];
+		this.defined = new boolean[routines];
+		this.globals = new Value[resolver.globals()];
+		this.main = Ast.NONE;
+		build();
+	}
+
+	/**
+	 * Initializes the globals and runs {@code main}, its missing arguments
+	 * being null. Returns null if the program has no {@code main}.
+	 *
+	 * @throws RuntimeError if the program fails
+	 */
+	public Value run(Value... arguments) {
+		if (!diagnostics.is_empty())
+			throw new IllegalStateException("Program does not compile: " + diagnostics.get(0));
+		Future<Value> result = runners.submit(() -> start(arguments));
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw (RuntimeException) e.getCause();
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running the program", e);
+		}
+	}
+
+	private Value start(Value[] arguments) {
+		initializers.run(new Value[0], START);
+		if (main == Ast.NONE) return Value.Null();
+		Value[] frame = new Value[frame_sizes[main]];
+		System.arraycopy(arguments, 0, frame, 0, Math.min(arguments.length, arities[main]));
+		depth = 1;
+		return invoke(main, frame);
+	}
+
+	private Value invoke(int routine, Value[] frame) {
+		if (bodies[routine].run(frame, START) != RETURN) return Value.Null();
+		Value value = returned;
+		returned = null;
+		return value;
+	}
+
+	// Building
+
+	private void build() {
+		for (int routine = ast.first_child(0); routine != Ast.NONE; routine = ast.next_sibling(routine)) {
+			if (ast.kind_of(routine) != Ast.Kind.ROUTINE || resolver.slot_of(routine) == Ast.NONE) continue;
+			int slot = resolver.slot_of(routine);
+			arities[slot] = ast.child_count(routine) - 1 - (body_of(routine) == Ast.NONE ? 0 : 1);
+			frame_sizes[slot] = Math.max(arities[slot], resolver.frame_size(slot));
+			defined[slot] |= body_of(routine) != Ast.NONE;
+			if (symbols.name(ast.symbol_of(ast.first_child(routine))).equals("main")) main = slot;
+		}
+		for (int routine = ast.first_child(0); routine != Ast.NONE; routine = ast.next_sibling(routine))
+			if (ast.kind_of(routine) == Ast.Kind.ROUTINE && resolver.slot_of(routine) != Ast.NONE && body_of(routine) != Ast.NONE) {
+				int slot = resolver.slot_of(routine);
+				label_count = resolver.label_count(slot);
+				bodies[slot] = statement(body_of(routine));
+			}
+		if (main != Ast.NONE && !defined[main]) main = Ast.NONE;
+
+		label_count = 0;
+		int count = 0;
+		for (int global = ast.first_child(0); global != Ast.NONE; global = ast.next_sibling(global))
+			if (ast.kind_of(global) == Ast.Kind.GLOBAL) count += ast.child_count(global);
+		Statement[] statements = new Statement[count];
+		count = 0;
+		for (int global = ast.first_child(0); global != Ast.NONE; global = ast.next_sibling(global)) {
+			if (ast.kind_of(global) != Ast.Kind.GLOBAL) continue;
+			for (int declarator = ast.first_child(global); declarator != Ast.NONE; declarator = ast.next_sibling(declarator)) {
+				int initializer = ast.first_child(declarator);
+				if (initializer == Ast.NONE || resolver.slot_of(declarator) == Ast.NONE) continue;
+				int line = ast.line_of(declarator);
+				statements[count++] = new Evaluate(line,
+						new SetGlobal(line, resolver.slot_of(declarator), expression(initializer, line)));
+			}
+		}
+		initializers = new Block(0, Arrays.copyOf(statements, count));
+	}
+
+	private int body_of(int routine) {
+		int last = Ast.NONE;
+		for (int child = ast.first_child(routine); child != Ast.NONE; child = ast.next_sibling(child))
+			last = child;
+		return ast.kind_of(last) == Ast.Kind.BLOCK ? last : Ast.NONE;
+	}
+
+	private Statement statement(int node) {
+		int line = ast.line_of(node);
+		switch (ast.kind_of(node)) {
+			case BLOCK: {
+				Statement[] statements = new Statement[ast.child_count(node)];
+				int i = 0;
+				for (int child = ast.first_child(node); child != Ast.NONE; child = ast.next_sibling(child))
+					statements[i++] = statement(child);
+				return new Block(line, statements);
+			}
+			case EMPTY:
+				return new Block(line, new Statement[0]);
+			case LABEL:
+				return new Label(line, resolver.slot_of(node));
+			case GOTO:
+				return new Goto(line, resolver.slot_of(node));
+			case COMPUTED_GOTO:
+				return new ComputedGoto(line, expression(ast.first_child(node), line), label_count);
+			case VAR: {
+				Statement[] statements = new Statement[ast.child_count(node)];
+				int i = 0;
+				for (int declarator = ast.first_child(node); declarator != Ast.NONE; declarator = ast.next_sibling(declarator)) {
+					int initializer = ast.first_child(declarator);
+					Expression value = initializer == Ast.NONE ? new Constant(line, Value.Null()) : expression(initializer, line);
+					statements[i++] = new Evaluate(line, new SetLocal(line, resolver.slot_of(declarator), value));
+				}
+				return new Block(line, statements);
+			}
+			case RETURN: {
+				int value = ast.first_child(node);
+				return new Return(line, value == Ast.NONE ? new Constant(line, Value.Null()) : expression(value, line));
+			}
+			case IF: {
+				int condition = ast.first_child(node), then = ast.next_sibling(condition), otherwise = ast.next_sibling(then);
+				return new If(line, expression(condition, line), statement(then),
+						otherwise == Ast.NONE ? null : statement(otherwise));
+			}
+			case WHILE: {
+				int condition = ast.first_child(node);
+				return new While(line, expression(condition, line), statement(ast.next_sibling(condition)));
+			}
+			case EVALUATE:
+				return new Evaluate(line, expression(ast.first_child(node), line));
+			default:
+				diagnostics.report(line, "Cannot compile %s statement", ast.kind_of(node));
+				return new Block(line, new Statement[0]);
+		}
+	}
+
+	// Node of an expression, failing at the line of its statement
+	private Expression expression(int node, int line) {
+		switch (ast.kind_of(node)) {
+			case INTEGER:
+			case FLOAT:
+			case STRING:
+			case BOOL:
+			case NULL:
+				return new Constant(line, Value.Literal(ast, node));
+			case NAME:
+				return name(node, line);
+			case UNARY:
+				return new Unary(line, ast.op_of(node), expression(ast.first_child(node), line));
+			case BINARY: {
+				Token.Type op = ast.op_of(node);
+				int left = ast.first_child(node), right = ast.next_sibling(left);
+				if (op == AND || op == OR)
+					return new Logical(line, op == AND, expression(left, line), expression(right, line));
+				return new UninitializedBinary(line, op, expression(left, line), expression(right, line));
+			}
+			case TERNARY: {
+				int condition = ast.first_child(node), then = ast.next_sibling(condition);
+				return new Ternary(line, expression(condition, line), expression(then, line),
+						expression(ast.next_sibling(then), line));
+			}
+			case ASSIGN:
+				return assign(node, line);
+			case POSTFIX:
+				return postfix(node, line);
+			case CALL:
+				return call(node, line);
+			default:
+				diagnostics.report(ast.line_of(node), "%s expressions are not supported yet", ast.kind_of(node));
+				return new Constant(line, Value.Null());
+		}
+	}
+
+	private Expression name(int node, int line) {
+		int slot = resolver.slot_of(node);
+		switch (resolver.storage_of(node)) {
+			case LOCAL:
+			case ARGUMENT:
+				return new Local(line, slot);
+			case GLOBAL:
+				return new Global(line, slot);
+			case LABEL:
+				return new Constant(line, Value.Integer(slot));
+			default:
+				diagnostics.report(ast.line_of(node), "Routine '%s' is not a value", symbols.name(ast.symbol_of(node)));
+				return new Constant(line, Value.Null());
+		}
+	}
+
+	private boolean is_frame(int node) {
+		Resolver.Storage storage = resolver.storage_of(node);
+		return storage == Resolver.Storage.LOCAL || storage == Resolver.Storage.ARGUMENT;
+	}
+
+	private Expression assign(int node, int line) {
+		Token.Type op = ast.op_of(node);
+		int target = ast.first_child(node), value = ast.next_sibling(target);
+		if (ast.kind_of(target) != Ast.Kind.NAME) {
+			diagnostics.report(ast.line_of(node), "Only variables can be assigned yet");
+			return new Constant(line, Value.Null());
+		}
+		boolean global = resolver.storage_of(target) == Resolver.Storage.GLOBAL;
+		if (!global && !is_frame(target)) {
+			diagnostics.report(ast.line_of(node), "Cannot assign to '%s'", symbols.name(ast.symbol_of(target)));
+			return new Constant(line, Value.Null());
+		}
+		int slot = resolver.slot_of(target);
+		Expression assigned = expression(value, line);
+		if (op == B_NOT_ASSIGN)
+			assigned = new Unary(line, B_NOT, assigned);
+		else if (op != STRICT_ASSIGN)
+			assigned = new UninitializedBinary(line, compound(op),
+					global ? new Global(line, slot) : new Local(line, slot), assigned);
+		return global ? new SetGlobal(line, slot, assigned) : new SetLocal(line, slot, assigned);
+	}
+
+	private Expression postfix(int node, int line) {
+		int target = ast.first_child(node);
+		if (ast.kind_of(target) != Ast.Kind.NAME || resolver.storage_of(target) == Resolver.Storage.LABEL
+				|| resolver.storage_of(target) == Resolver.Storage.ROUTINE) {
+			diagnostics.report(ast.line_of(node), "Only variables can be incremented or decremented");
+			return new Constant(line, Value.Null());
+		}
+		Token.Type op = ast.op_of(node) == PLUSPLUS ? PLUS : MINUS;
+		return new Postfix(line, !is_frame(target), resolver.slot_of(target), new UninitializedBinary(line, op, null, null));
+	}
+
+	private Expression call(int node, int line) {
+		int callee = ast.first_child(node);
+		if (ast.kind_of(callee) != Ast.Kind.NAME || resolver.storage_of(callee) != Resolver.Storage.ROUTINE) {
+			diagnostics.report(ast.line_of(node), "Only routines can be called");
+			return new Constant(line, Value.Null());
+		}
+		int routine = resolver.slot_of(callee), count = ast.child_count(node) - 1;
+		String name = symbols.name(ast.symbol_of(callee));
+		if (!defined[routine])
+			diagnostics.report(ast.line_of(node), "Routine '%s' is not defined in this program", name);
+		if (count != arities[routine])
+			diagnostics.report(ast.line_of(node), "Routine '%s' takes %d arguments, not %d", name, arities[routine], count);
+
+		Expression[] arguments = new Expression[count];
+		int i = 0;
+		for (int argument = ast.next_sibling(callee); argument != Ast.NONE; argument = ast.next_sibling(argument))
+			arguments[i++] = expression(argument, line);
+		return new Call(line, routine, arguments);
+	}
+
+	private static Token.Type compound(Token.Type op) {
+		switch (op) {
+			case PLUS_ASSIGN:       return PLUS;
+			case MINUS_ASSIGN:      return MINUS;
+			case TIMES_ASSIGN:      return TIMES;
+			case DIV_ASSIGN:        return DIV;
+			case MOD_ASSIGN:        return MOD;
+			case B_AND_ASSIGN:      return B_AND;
+			case B_OR_ASSIGN:       return B_OR;
+			case B_XOR_ASSIGN:      return B_XOR;
+			case R_SHIFT_ASSIGN:    return R_SHIFT;
+			default:                return L_SHIFT;
+		}
+	}
+
+	private static String describe(Value value) {
+		return value.type_of() + " " + value.str_value();
+	}
+
+	// Nodes
+
+	abstract static class Node {
+		final int line;
+		Node parent;
+
+		Node(int line) {
+			this.line = line;
+		}
+
+		// Puts a node in the place of a child, false if it is no child any more
+		boolean adopt(Node child, Node with) {
+			return false;
+		}
+
+		// Adopts this node, setting its parent, returns it
+		<T extends Node> T adopted(T child) {
+			if (child != null) child.parent = this;
+			return child;
+		}
+
+		/**
+		 * Puts a node in the place of this one. False if this one was replaced
+		 * already, by a run further down the stack.
+		 */
+		final boolean replace(Node with) {
+			with.parent = parent;
+			return parent.adopt(this, with);
+		}
+	}
+
+	abstract static class Expression extends Node {
+		Expression(int line) {
+			super(line);
+		}
+
+		abstract Value execute(Value[] frame);
+	}
+
+	abstract static class Statement extends Node {
+		private boolean[] labels;   // labels the statement holds, null if none
+
+		Statement(int line) {
+			super(line);
+		}
+
+		/**
+		 * Runs the statement from its start, or from a label it holds.
+		 * Returns {@link #NEXT}, {@link #RETURN} or the label to go to.
+		 */
+		abstract int run(Value[] frame, int label);
+
+		final boolean holds(int label) {
+			return labels != null && labels[label];
+		}
+
+		// Adds the labels a nested statement holds to those of this one
+		final void hold(Statement nested, int label_count) {
+			if (nested == null || nested.labels == null) return;
+			if (labels == null) labels = new boolean[label_count];
+			for (int i = 0; i < label_count; i++)
+				labels[i] |= nested.labels[i];
+		}
+
+		final void hold(int label, int label_count) {
+			if (labels == null) labels = new boolean[label_count];
+			labels[label] = true;
+		}
+	}
+
+	// Statements
+
+	final class Block extends Statement {
+		private final Statement[] statements;
+
+		Block(int line, Statement[] statements) {
+			super(line);
+			this.statements = statements;
+			for (Statement statement : statements)
+				hold(adopted(statement), label_count);
+		}
+
+		int run(Value[] frame, int label) {
+			int i = label == START ? 0 : find(label);
+			while (i < statements.length) {
+				int status = statements[i].run(frame, label);
+				if (status == NEXT) {
+					i++;
+					label = START;
+				} else if (status >= 0 && holds(status)) {
+					i = find(status);
+					label = status;
+				} else
+					return status;
+			}
+			return NEXT;
+		}
+
+		private int find(int label) {
+			int i = 0;
+			while (!statements[i].holds(label))
+				i++;
+			return i;
+		}
+	}
+
+	final class Label extends Statement {
+		Label(int line, int label) {
+			super(line);
+			hold(label, label_count);
+		}
+
+		int run(Value[] frame, int label) {
+			return NEXT;
+		}
+	}
+
+	final class Goto extends Statement {
+		private final int target;
+
+		Goto(int line, int target) {
+			super(line);
+			this.target = target;
+		}
+
+		int run(Value[] frame, int label) {
+			return target;
+		}
+	}
+
+	final class ComputedGoto extends Statement {
+		private Expression value;
+		private final int labels;
+
+		ComputedGoto(int line, Expression value, int labels) {
+			super(line);
+			this.value = adopted(value);
+			this.labels = labels;
+		}
+
+		int run(Value[] frame, int label) {
+			Value target = value.execute(frame);
+			// Labels compare as integers do, 1.0 going to label 1
+			double index = target.type_of() == Value.Type.INTEGER ? target.bits()
+					: target.type_of() == Value.Type.FLOAT ? target.float_value() : -1;
+			if (index >= 0 && index < labels && index == (int) index) return (int) index;
+			throw new RuntimeError(line, "Computed goto to " + describe(target) + ", which is no label of the routine");
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (value != child) return false;
+			value = (Expression) with;
+			return true;
+		}
+	}
+
+	final class Evaluate extends Statement {
+		private Expression expression;
+
+		Evaluate(int line, Expression expression) {
+			super(line);
+			this.expression = adopted(expression);
+		}
+
+		int run(Value[] frame, int label) {
+			expression.execute(frame);
+			return NEXT;
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (expression != child) return false;
+			expression = (Expression) with;
+			return true;
+		}
+	}
+
+	final class Return extends Statement {
+		private Expression value;
+
+		Return(int line, Expression value) {
+			super(line);
+			this.value = adopted(value);
+		}
+
+		int run(Value[] frame, int label) {
+			returned = value.execute(frame);
+			return RETURN;
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (value != child) return false;
+			value = (Expression) with;
+			return true;
+		}
+	}
+
+	final class If extends Statement {
+		private Expression condition;
+		private final Statement then, otherwise;
+
+		If(int line, Expression condition, Statement then, Statement otherwise) {
+			super(line);
+			this.condition = adopted(condition);
+			this.then = adopted(then);
+			this.otherwise = adopted(otherwise);
+			hold(then, label_count);
+			hold(otherwise, label_count);
+		}
+
+		int run(Value[] frame, int label) {
+			Statement branch;
+			if (label == START) branch = condition.execute(frame).truthy() ? then : otherwise;
+			else branch = then.holds(label) ? then : otherwise;
+			if (branch == null) return NEXT;
+			for (; ; ) {
+				int status = branch.run(frame, label);
+				if (status < 0 || !branch.holds(status)) return status;
+				label = status;
+			}
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (condition != child) return false;
+			condition = (Expression) with;
+			return true;
+		}
+	}
+
+	final class While extends Statement {
+		private Expression condition;
+		private final Statement body;
+
+		While(int line, Expression condition, Statement body) {
+			super(line);
+			this.condition = adopted(condition);
+			this.body = adopted(body);
+			hold(body, label_count);
+		}
+
+		int run(Value[] frame, int label) {
+			for (; ; ) {
+				if (label == START && !condition.execute(frame).truthy()) return NEXT;
+				int status = body.run(frame, label);
+				if (status >= 0 && body.holds(status)) label = status;
+				else if (status != NEXT) return status;
+				else label = START;
+			}
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (condition != child) return false;
+			condition = (Expression) with;
+			return true;
+		}
+	}
+
+	// Expressions
+
+	static final class Constant extends Expression {
+		private final Value value;
+
+		Constant(int line, Value value) {
+			super(line);
+			this.value = value;
+		}
+
+		Value execute(Value[] frame) {
+			return value;
+		}
+	}
+
+	static final class Local extends Expression {
+		private final int slot;
+
+		Local(int line, int slot) {
+			super(line);
+			this.slot = slot;
+		}
+
+		Value execute(Value[] frame) {
+			Value value = frame[slot];
+			return value != null ? value : Value.Null();
+		}
+	}
+
+	final class Global extends Expression {
+		private final int slot;
+
+		Global(int line, int slot) {
+			super(line);
+			this.slot = slot;
+		}
+
+		Value execute(Value[] frame) {
+			Value value = globals[slot];
+			return value != null ? value : Value.Null();
+		}
+	}
+
+	static final class SetLocal extends Expression {
+		private final int slot;
+		private Expression value;
+
+		SetLocal(int line, int slot, Expression value) {
+			super(line);
+			this.slot = slot;
+			this.value = adopted(value);
+		}
+
+		Value execute(Value[] frame) {
+			return frame[slot] = value.execute(frame);
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (value != child) return false;
+			value = (Expression) with;
+			return true;
+		}
+	}
+
+	final class SetGlobal extends Expression {
+		private final int slot;
+		private Expression value;
+
+		SetGlobal(int line, int slot, Expression value) {
+			super(line);
+			this.slot = slot;
+			this.value = adopted(value);
+		}
+
+		Value execute(Value[] frame) {
+			return globals[slot] = value.execute(frame);
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (value != child) return false;
+			value = (Expression) with;
+			return true;
+		}
+	}
+
+	static final class Unary extends Expression {
+		private final Token.Type op;
+		private Expression operand;
+
+		Unary(int line, Token.Type op, Expression operand) {
+			super(line);
+			this.op = op;
+			this.operand = adopted(operand);
+		}
+
+		Value execute(Value[] frame) {
+			Value a = operand.execute(frame);
+			Value result = Value.unary(op, a);
+			if (result == null)
+				throw new RuntimeError(line, "Operator " + op + " does not apply to " + describe(a));
+			return result;
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (operand != child) return false;
+			operand = (Expression) with;
+			return true;
+		}
+	}
+
+	// '&&' and '||', whose value is the truth of the last operand evaluated
+	static final class Logical extends Expression {
+		private final boolean and;
+		private Expression left, right;
+
+		Logical(int line, boolean and, Expression left, Expression right) {
+			super(line);
+			this.and = and;
+			this.left = adopted(left);
+			this.right = adopted(right);
+		}
+
+		Value execute(Value[] frame) {
+			boolean truth = left.execute(frame).truthy();
+			if (truth == and) truth = right.execute(frame).truthy();
+			return Value.BOOL(truth);
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (left == child) left = (Expression) with;
+			else if (right == child) right = (Expression) with;
+			else return false;
+			return true;
+		}
+	}
+
+	static final class Ternary extends Expression {
+		private Expression condition, then, otherwise;
+
+		Ternary(int line, Expression condition, Expression then, Expression otherwise) {
+			super(line);
+			this.condition = adopted(condition);
+			this.then = adopted(then);
+			this.otherwise = adopted(otherwise);
+		}
+
+		Value execute(Value[] frame) {
+			return condition.execute(frame).truthy() ? then.execute(frame) : otherwise.execute(frame);
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (condition == child) condition = (Expression) with;
+			else if (then == child) then = (Expression) with;
+			else if (otherwise == child) otherwise = (Expression) with;
+			else return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Binary operator, '&&' and '||' excepted, specialized on its operands.
+	 * Its operands are null in a {@link Postfix}, which applies it to values
+	 * of its own.
+	 */
+	abstract static class Binary extends Expression {
+		final Token.Type op;
+		Expression left, right;
+
+		Binary(int line, Token.Type op, Expression left, Expression right) {
+			super(line);
+			this.op = op;
+			this.left = adopted(left);
+			this.right = adopted(right);
+		}
+
+		final Value execute(Value[] frame) {
+			Value a = left.execute(frame);
+			return apply(a, right.execute(frame));
+		}
+
+		abstract Value apply(Value a, Value b);
+
+		// Puts another node for the operator in the place of this one, returns it
+		final Binary specialize(Binary with) {
+			with.left = left;
+			with.right = right;
+			if (replace(with)) {
+				if (left != null) left.parent = with;
+				if (right != null) right.parent = with;
+			}
+			return with;
+		}
+
+		final Value generic(Value a, Value b) {
+			Value result = Value.binary(op, a, b);
+			if (result == null)
+				throw new RuntimeError(line, "Operator " + op + " does not apply to " + describe(a) + " and " + describe(b));
+			return result;
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (left == child) left = (Expression) with;
+			else if (right == child) right = (Expression) with;
+			else return false;
+			return true;
+		}
+	}
+
+	static final class UninitializedBinary extends Binary {
+		UninitializedBinary(int line, Token.Type op, Expression left, Expression right) {
+			super(line, op, left, right);
+		}
+
+		Value apply(Value a, Value b) {
+			Value.Type left = a.type_of(), right = b.type_of();
+			Binary with;
+			if (left == Value.Type.INTEGER && right == Value.Type.INTEGER && is_integer(op))
+				with = new IntegerBinary(line, op);
+			else if ((left == Value.Type.FLOAT || right == Value.Type.FLOAT) && is_number(left) && is_number(right)
+					&& is_float(op))
+				with = new FloatBinary(line, op);
+			else
+				with = new GenericBinary(line, op);
+			return specialize(with).apply(a, b);
+		}
+
+		private static boolean is_number(Value.Type type) {
+			return type == Value.Type.INTEGER || type == Value.Type.FLOAT;
+		}
+
+		private static boolean is_integer(Token.Type op) {
+			return op != EQUALS && op != NEQUALS;
+		}
+
+		private static boolean is_float(Token.Type op) {
+			switch (op) {
+				case PLUS:
+				case MINUS:
+				case TIMES:
+				case DIV:
+				case LT:
+				case LEQ:
+				case GT:
+				case GEQ:
+					return true;
+				default:
+					return false;
+			}
+		}
+	}
+
+	// Operator on two integers, division and remainder by zero excepted
+	static final class IntegerBinary extends Binary {
+		IntegerBinary(int line, Token.Type op) {
+			super(line, op, null, null);
+		}
+
+		Value apply(Value a, Value b) {
+			if (a.type_of() == Value.Type.INTEGER && b.type_of() == Value.Type.INTEGER) {
+				long x = a.bits(), y = b.bits();
+				switch (op) {
+					case PLUS:      return Value.Integer(x + y);
+					case MINUS:     return Value.Integer(x - y);
+					case TIMES:     return Value.Integer(x * y);
+					case DIV:       if (y != 0) return Value.Integer(x / y); break;
+					case MOD:       if (y != 0) return Value.Integer(x % y); break;
+					case B_AND:     return Value.Integer(x & y);
+					case B_OR:      return Value.Integer(x | y);
+					case B_XOR:     return Value.Integer(x ^ y);
+					case L_SHIFT:   return Value.Integer(x << y);
+					case R_SHIFT:   return Value.Integer(x >> y);
+					case LT:        return Value.BOOL(x < y);
+					case LEQ:       return Value.BOOL(x <= y);
+					case GT:        return Value.BOOL(x > y);
+					default:        return Value.BOOL(x >= y);
+				}
+				// The generic node reports the division by zero
+				return generic(a, b);
+			}
+			return specialize(new GenericBinary(line, op)).apply(a, b);
+		}
+	}
+
+	// Arithmetic or comparison of numbers, one of them at least a float
+	static final class FloatBinary extends Binary {
+		FloatBinary(int line, Token.Type op) {
+			super(line, op, null, null);
+		}
+
+		Value apply(Value a, Value b) {
+			Value.Type left = a.type_of(), right = b.type_of();
+			if ((left == Value.Type.FLOAT || right == Value.Type.FLOAT)
+					&& (left == Value.Type.FLOAT || left == Value.Type.INTEGER)
+					&& (right == Value.Type.FLOAT || right == Value.Type.INTEGER)) {
+				double x = a.float_value(), y = b.float_value();
+				switch (op) {
+					case PLUS:      return Value.Float(x + y);
+					case MINUS:     return Value.Float(x - y);
+					case TIMES:     return Value.Float(x * y);
+					case DIV:       return Value.Float(x / y);
+					case LT:        return Value.BOOL(x < y);
+					case LEQ:       return Value.BOOL(x <= y);
+					case GT:        return Value.BOOL(x > y);
+					default:        return Value.BOOL(x >= y);
+				}
+			}
+			return specialize(new GenericBinary(line, op)).apply(a, b);
+		}
+	}
+
+	static final class GenericBinary extends Binary {
+		GenericBinary(int line, Token.Type op) {
+			super(line, op, null, null);
+		}
+
+		Value apply(Value a, Value b) {
+			return generic(a, b);
+		}
+	}
+
+	// x++ and x--, its value being the one before
+	final class Postfix extends Expression {
+		private final boolean global;
+		private final int slot;
+		private Binary step;
+
+		Postfix(int line, boolean global, int slot, Binary step) {
+			super(line);
+			this.global = global;
+			this.slot = slot;
+			this.step = adopted(step);
+		}
+
+		Value execute(Value[] frame) {
+			Value before = global ? globals[slot] : frame[slot];
+			if (before == null) before = Value.Null();
+			Value after = step.apply(before, ONE);
+			if (global) globals[slot] = after;
+			else frame[slot] = after;
+			return before;
+		}
+
+		boolean adopt(Node child, Node with) {
+			if (step != child) return false;
+			step = (Binary) with;
+			return true;
+		}
+	}
+
+	final class Call extends Expression {
+		private final int routine;
+		private final Expression[] arguments;
+
+		Call(int line, int routine, Expression[] arguments) {
+			super(line);
+			this.routine = routine;
+			this.arguments = arguments;
+			for (Expression argument : arguments)
+				adopted(argument);
+		}
+
+		Value execute(Value[] frame) {
+			Value[] callee = new Value[frame_sizes[routine]];
+			for (int i = 0; i < arguments.length; i++)
+				callee[i] = arguments[i].execute(frame);
+			if (depth == MAX_DEPTH - 1)
+				throw new RuntimeError(line, "Stack overflow");
+			depth++;
+			try {
+				return invoke(routine, callee);
+			} catch (StackOverflowError e) {
+				throw new RuntimeError(line, "Stack overflow");
+			} finally {
+				depth--;
+			}
+		}
+
+		boolean adopt(Node child, Node with) {
+			for (int i = 0; i < arguments.length; i++)
+				if (arguments[i] == child) {
+					arguments[i] = (Expression) with;
+					return true;
+				}
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a source file on a tree interpreter.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: TreeInterpreter <file.sir>");
+			System.exit(2);
+		}
+		String source = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+		Lexer lexer = new Lexer(new StringSource(args[0], source));
+		Parser parser = new Parser(lexer, lexer.diagnostics(), null);
+		Diagnostics diagnostics = parser.diagnostics();
+		TreeInterpreter interpreter = null;
+		if (parser.check()) {
+			SymbolTable symbols = lexer.production().symbols();
+			new ConstantFolder(parser.ast(), symbols, diagnostics).visit(0);
+			Resolver resolver = new Resolver(parser.ast(), symbols, diagnostics);
+			resolver.visit(0);
+			if (diagnostics.is_empty())
+				interpreter = new TreeInterpreter(parser.ast(), symbols, resolver, diagnostics);
+		}
+		if (!diagnostics.is_empty()) {
+			diagnostics.sort();
+			diagnostics.render(args[0], System.err);
+			System.exit(1);
+		}
+		try {
+			System.out.println(interpreter.run().str_value());
+		} catch (RuntimeError e) {
+			System.err.println(args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -1,4 +1,667 @@
 package sir.vm;
 
+import sir.compiler.*;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static sir.vm.Opcode.*;
+
+/**
+ * Interpreter of the register code of a {@link Program}.
+ * <p>
+ * Nothing of the program is read ahead: the code of a routine is copied out
+ * of the program the first time the routine runs, and a string constant is
+ * decoded the first time it is loaded, so that a mapped program only has
+ * the pages it uses read.
+ * <p>
+ * All values live unboxed in one {@link ValueStack}: the globals at its
+ * bottom, then the frame of every running routine, a frame starting at the
+ * arguments its caller evaluated. Calls push their return address on an
+ * int stack rather than recursing, so that the dispatch loop allocates
+ * nothing but the strings operators make. Those stay in the string table of
+ * the value stack until it grows past a limit at a call or a backward jump,
+ * where the strings no live register refers to are dropped.
+ * <p>
+ * Integer operands take fast paths in the loop, any other operand goes
+ * through {@link ValueStack}, which defers to {@link Value} for the
+ * semantics. Routines called or looping often are handed to the
+ * {@link Jit}, whose compiled code the loop enters at calls and backward
+ * jumps, and which calls back into the loop for the routines it cannot run.
+ */
 public class VirtualMachine {
+	private static final int MAX_DEPTH = 1 << 16;
+	private static final int CALL_FRAME = 5;    // return pc, base, result register, top, routine
+
+	private static final Token.Type[] UNARY = {
+			Token.Type.PLUS, Token.Type.MINUS, Token.Type.NOT, Token.Type.B_NOT
+	};
+	private static final Token.Type[] BINARY = {
+			Token.Type.PLUS, Token.Type.MINUS, Token.Type.TIMES, Token.Type.DIV, Token.Type.MOD,
+			Token.Type.B_AND, Token.Type.B_OR, Token.Type.B_XOR, Token.Type.L_SHIFT, Token.Type.R_SHIFT,
+			Token.Type.LT, Token.Type.LEQ, Token.Type.GT, Token.Type.GEQ, Token.Type.EQUALS, Token.Type.NEQUALS
+	};
+
+	// Tag of the string constants not decoded yet
+	private static final byte UNDECODED = -1;
+
+	private final Program program;
+	private final int[] code;               // of the routines loaded so far, at their program offsets
+	private final boolean[] loaded;
+	private final int return_stub;          // RETURN 0, past the code of the program
+	private final int[] labels;
+	private final int[] starts, frame_sizes;
+	private final byte[] constant_tags;
+	private final long[] constant_bits;     // string constants index pinned strings
+	private final int globals;
+
+	private final ValueStack stack;
+	private int[] calls;
+	private int pinned, string_limit;
+	private long[] pairs;       // dispatches by pair of successive opcodes, when profiling
+	private Jit jit;
+
+	public VirtualMachine(Program program) {
+		this.program = program;
+		this.return_stub = program.code_length();
+		this.code = new int[return_stub + size(RETURN)];
+		code[return_stub] = RETURN;
+		this.labels = new int[program.label_count()];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = program.label(i);
+		int routines = program.routine_count();
+		this.loaded = new boolean[routines];
+		this.starts = new int[routines];
+		this.frame_sizes = new int[routines];
+		for (int r = 0; r < routines; r++) {
+			starts[r] = program.code_start(r);
+			frame_sizes[r] = program.frame_size(r);
+		}
+
+		this.globals = program.globals();
+		this.stack = new ValueStack(Math.max(256, 2 * globals));
+		this.calls = new int[CALL_FRAME * 64];
+		int constants = program.constant_count();
+		this.constant_tags = new byte[constants];
+		this.constant_bits = new long[constants];
+		for (int k = 0; k < constants; k++) {
+			constant_tags[k] = (byte) program.constant_tag(k);
+			if (constant_tags[k] == ValueStack.STRING) {
+				constant_tags[k] = UNDECODED;
+				constant_bits[k] = stack.add_string(null);
+			} else constant_bits[k] = program.constant_bits(k);
+		}
+		this.pinned = stack.strings_mark();
+		this.string_limit = pinned + 1024;
+		this.jit = new Jit(this, program, code, constant_tags, constant_bits, stack);
+	}
+
+	/**
+	 * Machine running the program file at {@code path}, mapped rather than
+	 * read.
+	 */
+	public static VirtualMachine load(Path path) throws IOException {
+		return new VirtualMachine(Program.map(path));
+	}
+
+	public Program program() {
+		return program;
+	}
+
+	/**
+	 * Runs the entry routine of the program.
+	 *
+	 * @throws RuntimeError if the program fails
+	 */
+	public Value run(Value... arguments) {
+		if (program.entry() < 0)
+			throw new IllegalStateException("Program has no entry routine");
+		return call(program.entry(), arguments);
+	}
+
+	/**
+	 * Runs a routine, its missing arguments being null. Globals keep the
+	 * values earlier runs left them.
+	 *
+	 * @throws RuntimeError if the program fails
+	 */
+	public Value call(int routine, Value... arguments) {
+		int base = globals;
+		stack.ensure(base + Math.max(1, frame_sizes[routine]) + 1);
+		for (int i = 0; i < program.arity(routine); i++)
+			if (i < arguments.length) stack.set(base + i, arguments[i]);
+			else stack.set_null(base + i);
+		invoke(routine, base, 0, -1);
+		return stack.get(base);
+	}
+
+	/**
+	 * Turns the {@link Jit} tier on, as it is by default, or off. Routines
+	 * compiled so far are dropped either way.
+	 */
+	public void jit(boolean enabled) {
+		jit = enabled ? new Jit(this, program, code, constant_tags, constant_bits, stack) : null;
+	}
+
+	public Jit jit() {
+		return jit;
+	}
+
+	/**
+	 * Starts or stops counting the dispatches of every pair of successive
+	 * opcodes, counts being reset.
+	 */
+	public void profile(boolean enabled) {
+		pairs = enabled ? new long[COUNT * COUNT] : null;
+	}
+
+	/**
+	 * Dispatches of opcode {@code second} right after opcode {@code first}
+	 * since profiling started.
+	 */
+	public long pair_count(int first, int second) {
+		return pairs == null ? 0 : pairs[first * COUNT + second];
+	}
+
+	/**
+	 * Instructions dispatched since profiling started.
+	 */
+	public long dispatches() {
+		long total = 0;
+		if (pairs != null)
+			for (long count : pairs)
+				total += count;
+		return total;
+	}
+
+	/**
+	 * Runs a routine at call depth {@code depth}, its arguments being in the
+	 * frame at {@code base}, where its value is left. Compiled code calls
+	 * routines through here, {@code call_pc} being the call instruction.
+	 */
+	void invoke(int routine, int base, int depth, int call_pc) {
+		if (depth >= MAX_DEPTH)
+			throw new RuntimeError(program.line_of(call_pc), "Stack overflow");
+		stack.ensure(base + Math.max(1, frame_sizes[routine]) + 1);
+		if (!loaded[routine]) load(routine);
+		int pc = starts[routine];
+		if (jit != null) pc = jit.enter(routine, base, depth, pc);
+		if (pc != Jit.DONE) execute(routine, base, pc, depth);
+	}
+
+	// Runs from pc until the frame at depth floor returns
+	private void execute(int routine, int base, int pc, int floor) {
+		final int[] code = this.code;
+		final ValueStack stack = this.stack;
+		final long[] pairs = this.pairs;
+		int last = NOP;
+		int depth = floor;
+		int top = base + Math.max(1, frame_sizes[routine]);
+		int at0 = CALL_FRAME * floor;
+		if (at0 + CALL_FRAME > this.calls.length)
+			this.calls = Arrays.copyOf(calls, Math.max(this.calls.length * 2, at0 + CALL_FRAME));
+		int[] calls = this.calls;
+		calls[at0] = -1;
+		calls[at0 + 1] = base;
+		calls[at0 + 2] = base;
+		calls[at0 + 3] = top;
+		calls[at0 + 4] = routine;
+
+		for (; ; ) {
+			if (pairs != null) {
+				pairs[last * COUNT + code[pc]]++;
+				last = code[pc];
+			}
+			switch (code[pc]) {
+				case NOP:
+					pc += 1;
+					break;
+				case CONST: {
+					int k = code[pc + 2];
+					if (constant_tags[k] == UNDECODED) decode(k);
+					stack.set_tagged(base + code[pc + 1], constant_tags[k], constant_bits[k]);
+					pc += 3;
+					break;
+				}
+				case MOVE:
+					stack.copy(base + code[pc + 1], base + code[pc + 2]);
+					pc += 3;
+					break;
+				case GET_GLOBAL:
+					stack.copy(base + code[pc + 1], code[pc + 2]);
+					pc += 3;
+					break;
+				case SET_GLOBAL:
+					stack.copy(code[pc + 1], base + code[pc + 2]);
+					pc += 3;
+					break;
+
+				case NEG: {
+					int r = base + code[pc + 1], a = base + code[pc + 2];
+					if (stack.tag(a) == ValueStack.INTEGER) stack.set_int(r, -stack.bits(a));
+					else unary(pc, r, a);
+					pc += 3;
+					break;
+				}
+				case POS:
+				case NOT:
+				case B_NOT:
+					unary(pc, base + code[pc + 1], base + code[pc + 2]);
+					pc += 3;
+					break;
+				case TRUTH:
+					stack.set_bool(base + code[pc + 1], stack.truthy(base + code[pc + 2]));
+					pc += 3;
+					break;
+
+				case ADD: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_int(r, stack.bits(a) + stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case SUB: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_int(r, stack.bits(a) - stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case MUL: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_int(r, stack.bits(a) * stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case LT: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_bool(r, stack.bits(a) < stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case LE: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_bool(r, stack.bits(a) <= stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case GT: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_bool(r, stack.bits(a) > stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case GE: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_bool(r, stack.bits(a) >= stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case EQ: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_bool(r, stack.bits(a) == stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case NE: {
+					int r = base + code[pc + 1], a = base + code[pc + 2], b = base + code[pc + 3];
+					if (stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER)
+						stack.set_bool(r, stack.bits(a) != stack.bits(b));
+					else binary(pc, r, a, b);
+					pc += 4;
+					break;
+				}
+				case DIV:
+				case MOD:
+				case B_AND:
+				case B_OR:
+				case B_XOR:
+				case SHL:
+				case SHR:
+					binary(pc, base + code[pc + 1], base + code[pc + 2], base + code[pc + 3]);
+					pc += 4;
+					break;
+
+				case JUMP:
+					pc = branch(pc, code[pc + 1], top, routine, base, depth);
+					calls = this.calls;
+					break;
+				case JUMP_IF: {
+					if (!stack.truthy(base + code[pc + 1])) {
+						pc += 3;
+						break;
+					}
+					pc = branch(pc, code[pc + 2], top, routine, base, depth);
+					calls = this.calls;
+					break;
+				}
+				case JUMP_UNLESS: {
+					if (stack.truthy(base + code[pc + 1])) {
+						pc += 3;
+						break;
+					}
+					pc = branch(pc, code[pc + 2], top, routine, base, depth);
+					calls = this.calls;
+					break;
+				}
+				case JUMP_IF_LT: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) < stack.bits(b) : compare(pc, top, a, b);
+					if (holds) {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case JUMP_IF_LE: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) <= stack.bits(b) : compare(pc, top, a, b);
+					if (holds) {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case JUMP_IF_GT: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) > stack.bits(b) : compare(pc, top, a, b);
+					if (holds) {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case JUMP_IF_GE: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) >= stack.bits(b) : compare(pc, top, a, b);
+					if (holds) {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case JUMP_IF_EQ: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) == stack.bits(b) : compare(pc, top, a, b);
+					if (holds) {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case JUMP_IF_NE: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) != stack.bits(b) : compare(pc, top, a, b);
+					if (holds) {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case JUMP_UNLESS_LT: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) < stack.bits(b) : compare(pc, top, a, b);
+					if (holds) pc += 4;
+					else {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					}
+					break;
+				}
+				case JUMP_UNLESS_LE: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) <= stack.bits(b) : compare(pc, top, a, b);
+					if (holds) pc += 4;
+					else {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					}
+					break;
+				}
+				case JUMP_UNLESS_GT: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) > stack.bits(b) : compare(pc, top, a, b);
+					if (holds) pc += 4;
+					else {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					}
+					break;
+				}
+				case JUMP_UNLESS_GE: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) >= stack.bits(b) : compare(pc, top, a, b);
+					if (holds) pc += 4;
+					else {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					}
+					break;
+				}
+				case JUMP_UNLESS_EQ: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) == stack.bits(b) : compare(pc, top, a, b);
+					if (holds) pc += 4;
+					else {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					}
+					break;
+				}
+				case JUMP_UNLESS_NE: {
+					int a = base + code[pc + 1], b = base + code[pc + 2];
+					boolean holds = stack.tag(a) == ValueStack.INTEGER && stack.tag(b) == ValueStack.INTEGER
+							? stack.bits(a) != stack.bits(b) : compare(pc, top, a, b);
+					if (holds) pc += 4;
+					else {
+						pc = branch(pc, code[pc + 3], top, routine, base, depth);
+						calls = this.calls;
+					}
+					break;
+				}
+				case JUMP_TABLE: {
+					int a = base + code[pc + 1];
+					long label = stack.tag(a) == ValueStack.INTEGER ? stack.bits(a) : label_of(a);
+					if (label >= 0 && label < code[pc + 3]) {
+						pc = branch(pc, labels[code[pc + 2] + (int) label], top, routine, base, depth);
+						calls = this.calls;
+					} else pc += 4;
+					break;
+				}
+				case BAD_LABEL:
+					throw new RuntimeError(program.line_of(pc),
+							"Computed goto to " + describe(base + code[pc + 1]) + ", which is no label of the routine");
+
+				case CALL: {
+					int callee = code[pc + 2];
+					if (++depth == MAX_DEPTH)
+						throw new RuntimeError(program.line_of(pc), "Stack overflow");
+					int at = CALL_FRAME * depth;
+					if (at + CALL_FRAME > calls.length)
+						this.calls = calls = Arrays.copyOf(calls, calls.length * 2);
+					calls[at] = pc + 4;
+					calls[at + 1] = base;
+					calls[at + 2] = base + code[pc + 1];
+					calls[at + 3] = top;
+					calls[at + 4] = routine;
+					routine = callee;
+					base += code[pc + 3];
+					top = base + frame_sizes[callee];
+					stack.ensure(top + 1);
+					if (stack.strings_mark() > string_limit) collect(top);
+					if (!loaded[callee]) load(callee);
+					pc = starts[callee];
+					if (jit != null) {
+						pc = jit.enter(callee, base, depth, pc);
+						if (pc == Jit.DONE) pc = return_stub;
+						calls = this.calls;
+					}
+					break;
+				}
+				case RETURN:
+				case RETURN_NULL: {
+					int at = CALL_FRAME * depth;
+					int result = calls[at + 2];
+					if (code[pc] == RETURN) stack.copy(result, base + code[pc + 1]);
+					else stack.set_null(result);
+					if (depth == floor) return;
+					pc = calls[at];
+					base = calls[at + 1];
+					top = calls[at + 3];
+					routine = calls[at + 4];
+					depth--;
+					break;
+				}
+				default:
+					throw new RuntimeError(program.line_of(pc), "Invalid instruction " + code[pc] + " at " + pc);
+			}
+		}
+	}
+
+	/**
+	 * Copies the code of a routine out of the program, if not done yet.
+	 */
+	void load(int routine) {
+		if (loaded[routine]) return;
+		IntBuffer from = program.code();
+		from.position(starts[routine]);
+		from.get(code, starts[routine], program.code_end(routine) - starts[routine]);
+		loaded[routine] = true;
+	}
+
+	// Decodes a string constant into the string table entry kept for it
+	private void decode(int k) {
+		stack.define_string((int) constant_bits[k], program.string((int) program.constant_bits(k)));
+		constant_tags[k] = ValueStack.STRING;
+	}
+
+	// Pc after a taken jump. Backward jumps collect strings and may go on
+	// in compiled code, which can run the routine to its end.
+	private int branch(int pc, int target, int top, int routine, int base, int depth) {
+		if (target > pc) return target;
+		if (stack.strings_mark() > string_limit) collect(top);
+		if (jit == null) return target;
+		target = jit.enter(routine, base, depth, target);
+		return target == Jit.DONE ? return_stub : target;
+	}
+
+	// Label a value other than an integer stands for, -1 if none: labels
+	// compare as integers do, 1.0 being label 1
+	private long label_of(int slot) {
+		if (stack.tag(slot) != ValueStack.FLOAT) return -1;
+		double value = stack.float_value(slot);
+		return value == (long) value ? (long) value : -1;
+	}
+
+	// Comparison of a compare-and-branch, made in the scratch slot past the frame
+	private boolean compare(int pc, int top, int a, int b) {
+		binary(pc, BINARY[LT - ADD + (code[pc] - JUMP_IF_LT) % 6], top, a, b);
+		return stack.truthy(top);
+	}
+
+	private void unary(int pc, int r, int a) {
+		Token.Type op = UNARY[code[pc] - POS];
+		if (!stack.unary(op, r, a))
+			throw new RuntimeError(program.line_of(pc), "Operator " + op + " does not apply to " + describe(a));
+	}
+
+	private void binary(int pc, int r, int a, int b) {
+		binary(pc, BINARY[code[pc] - ADD], r, a, b);
+	}
+
+	private void binary(int pc, Token.Type op, int r, int a, int b) {
+		if (!stack.binary(op, r, a, b))
+			throw new RuntimeError(program.line_of(pc),
+					"Operator " + op + " does not apply to " + describe(a) + " and " + describe(b));
+	}
+
+	private String describe(int slot) {
+		return stack.type_of(slot) + " " + stack.str_value(slot);
+	}
+
+	// Drops the strings no register below top refers to
+	private void collect(int top) {
+		int live = stack.compact_strings(pinned, top);
+		string_limit = Math.max(pinned + 1024, 2 * live);
+	}
+
+	/**
+	 * Compiles a source file and runs it, or writes the program with
+	 * {@code -o}; runs a program file if the path does not end in
+	 * {@code .sir}.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1 && !(args.length == 3 && args[1].equals("-o"))) {
+			System.err.println("usage: VirtualMachine <file.sir|program> [-o program]");
+			System.exit(2);
+		}
+		Path path = Paths.get(args[0]);
+		Program program;
+		if (args[0].endsWith(".sir")) {
+			String source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+			Lexer lexer = new Lexer(new StringSource(args[0], source));
+			Parser parser = new Parser(lexer, lexer.diagnostics(), null);
+			Diagnostics diagnostics = parser.diagnostics();
+			ProgramWriter writer = null;
+			if (parser.check()) {
+				SymbolTable symbols = lexer.production().symbols();
+				new ConstantFolder(parser.ast(), symbols, diagnostics).visit(0);
+				Resolver resolver = new Resolver(parser.ast(), symbols, diagnostics);
+				resolver.visit(0);
+				if (diagnostics.is_empty())
+					writer = new Compiler(parser.ast(), symbols, resolver, diagnostics).compile();
+				if (diagnostics.is_empty())
+					new Optimizer(writer).optimize();
+			}
+			if (!diagnostics.is_empty()) {
+				diagnostics.sort();
+				diagnostics.render(args[0], System.err);
+				System.exit(1);
+			}
+			if (args.length == 3) {
+				writer.write(Paths.get(args[2]));
+				return;
+			}
+			program = Program.wrap(writer.to_buffer());
+		} else
+			program = Program.map(path);
+
+		try {
+			System.out.println(new VirtualMachine(program).run().str_value());
+		} catch (RuntimeError e) {
+			System.err.println(args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
 }